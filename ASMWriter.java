@@ -1,19 +1,217 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
- * Translates VM commands into HACK assembly code
+ * Translates VM commands into HACK assembly code.
+ * Generated labels are namespaced by the current file name, so units written
+ * by separate writers can be concatenated without clashes.
+ * Code is appended to an AsmBuffer as pre-encoded fragments, label names and
+ * numbers, so writing a command creates no objects.
  */
 public class ASMWriter {
 
     private int arthJumpFlag;
-    private PrintWriter outPrinter;
-    private static final Pattern labelReg = Pattern.compile("^[^0-9][0-9A-Za-z\\_\\:\\.\\$]+");
-    private static int labelCnt = 0;
-    private static String fileName = "";
+    private AsmBuffer out;
+    private AsmBuffer code;
+    private final AsmBuffer unitCode = new AsmBuffer();
+    private int labelCnt;
+    private String fileName = "";
+    private boolean unitWriter;
+
+    private static final String SHARED_RETURN = "$$RETURN";
+    private static final String SHARED_LEAN_RETURN = "$$RETURN_LEAN";
+    private static final String SHARED_CALL = "$$CALL";
+    private static final String SHARED_LOCALS = "$$LOCALS";
+    private static final String SHARED_LOCALS_ODD = "$$LOCALS_ODD";
+    private static final String HALT_LABEL = "$$HALT";
+
+    private boolean sharedReturn;
+    private boolean sharedReturnUsed;
+    private boolean sharedLeanReturnUsed;
+    private boolean sharedCall;
+    private boolean sharedCallUsed;
+    private boolean compactPrologue;
+    private boolean sharedLocalsUsed;
+    private boolean sharedCompare;
+    private final LinkedHashSet<String> sharedCompareUsed = new LinkedHashSet<>();
+    private int cycleWeight = 1;
+    private int romWeight = 1;
+    private int siteFrequency = 1;
+    private PeepholeReport peepholeReport;
+    private boolean cacheTos;
+    private boolean tosInD;
+    private String unitName = "(bootstrap)";
+    private SourceMap sourceMap;
+    private int unitMapStart;
+    private int commandCount;
+    private Set<String> pointerPreserving = Collections.emptySet();
+    private boolean leanReturn;
+    private boolean specializeIndex;
+
+    // Size and average cycle cost of one comparison in each form
+    private static final int COMPARE_INLINE_WORDS = 15;
+    private static final int COMPARE_INLINE_CYCLES = 11;
+    private static final int COMPARE_SHARED_WORDS = 4;
+    private static final int COMPARE_SHARED_CYCLES = 19;
+
+    // Largest index stored by walking the segment base with A=A+1
+    private static final int MAX_CHAINED_INDEX = 7;
+
+    // Largest indices for which walking the segment base is shorter than adding the index
+    private static final int MAX_CHAINED_LOAD_INDEX = 2;
+    private static final int MAX_CHAINED_POP_INDEX = 6;
+
+    // Fewest locals zeroed by the shared loop instead of unrolled stores. Unrolled,
+    // n locals take 2n + 4 words and as many cycles. The loop's call site is 8 words,
+    // and a call takes 11 cycles plus 10 per pair of locals and 4 for an odd one, so
+    // it is never faster: at 8 locals it takes 51 cycles against 20, paying 31
+    // cycles per call to save 12 ROM words in each such function. From 8 locals on it
+    // still beats the 7 cycles per local of the default push constant 0 prologue
+    private static final int MIN_SHARED_LOCALS = 8;
+
+    // Pre-encoded code fragments
+    private static final AsmBuffer.Fragment POP_TO_D = AsmBuffer.fragment("@SP\nAM=M-1\nD=M\n");
+    private static final AsmBuffer.Fragment POP_OPERANDS = AsmBuffer.fragment("@SP\nAM=M-1\nD=M\nA=A-1\n");
+    private static final AsmBuffer.Fragment PUSH_D = AsmBuffer.fragment("@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final AsmBuffer.Fragment D_IS_A = AsmBuffer.fragment("D=A\n");
+    private static final AsmBuffer.Fragment D_IS_M = AsmBuffer.fragment("D=M\n");
+    private static final AsmBuffer.Fragment M_IS_D = AsmBuffer.fragment("M=D\n");
+    private static final AsmBuffer.Fragment ADD_INDEX = AsmBuffer.fragment("D=D+A\n");
+    private static final AsmBuffer.Fragment LOAD_INDEXED = AsmBuffer.fragment("A=D+A\nD=M\n");
+    private static final AsmBuffer.Fragment PUSH_CONSTANT = AsmBuffer.fragment("D=A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final AsmBuffer.Fragment PUSH_INDEXED = AsmBuffer.fragment(
+            "A=D+A\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final AsmBuffer.Fragment PUSH_M = AsmBuffer.fragment("D=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final AsmBuffer.Fragment POP_VIA_R13 = AsmBuffer.fragment(
+            "@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n");
+    private static final AsmBuffer.Fragment POP_ADDRESS = AsmBuffer.fragment(
+            "D=A\n@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n");
+    private static final AsmBuffer.Fragment POP_INDEXED = AsmBuffer.fragment(
+            "D=D+A\n@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n");
+    private static final AsmBuffer.Fragment STORE_VIA_R14 = AsmBuffer.fragment(
+            "D=D+A\n@R14\nM=D\n@R13\nD=M\n@R14\nA=M\nM=D\n");
+    private static final AsmBuffer.Fragment SAVE_D_R13 = AsmBuffer.fragment("@R13\nM=D\n");
+    private static final AsmBuffer.Fragment NEXT_ADDRESS = AsmBuffer.fragment("A=A+1\n");
+    private static final AsmBuffer.Fragment FLUSH_TOS = AsmBuffer.fragment("@SP\nAM=M+1\nA=A-1\nM=D\n");
+    private static final AsmBuffer.Fragment JUMP = AsmBuffer.fragment("0;JMP\n");
+    private static final AsmBuffer.Fragment JUMP_IF_TRUE = AsmBuffer.fragment("D;JNE\n");
+    private static final AsmBuffer.Fragment COMPARE_OPERANDS = AsmBuffer.fragment(
+            "@SP\nAM=M-1\nD=M\nA=A-1\nD=M-D\n");
+    private static final AsmBuffer.Fragment SET_TRUE = AsmBuffer.fragment("@SP\nA=M-1\nM=-1\n");
+    private static final AsmBuffer.Fragment SET_FALSE = AsmBuffer.fragment("@SP\nA=M-1\nM=0\n");
+    private static final AsmBuffer.Fragment SUBTRACT_D = AsmBuffer.fragment("@SP\nAM=M-1\nD=M-D\n");
+    private static final AsmBuffer.Fragment D_FALSE = AsmBuffer.fragment("D=0\n");
+    private static final AsmBuffer.Fragment D_TRUE = AsmBuffer.fragment("D=-1\n");
+    private static final AsmBuffer.Fragment BOOTSTRAP = AsmBuffer.fragment("@256\nD=A\n@SP\nM=D\n");
+    private static final AsmBuffer.Fragment TRAMPOLINE_TARGET = AsmBuffer.fragment("D=A\n@R13\nM=D\n");
+    private static final AsmBuffer.Fragment TRAMPOLINE_JUMP = AsmBuffer.fragment(
+            "D=A\n@" + SHARED_CALL + "\n0;JMP\n");
+    private static final AsmBuffer.Fragment R14_ZERO = AsmBuffer.fragment("@R14\nM=0\n");
+    private static final AsmBuffer.Fragment R14_ONE = AsmBuffer.fragment("@R14\nM=1\n");
+    private static final AsmBuffer.Fragment R14_IS_D = AsmBuffer.fragment("D=A\n@R14\nM=D\n");
+    private static final AsmBuffer.Fragment SAVE_FRAME = AsmBuffer.fragment(
+            pushTemplate1("LCL", 0, true) + pushTemplate1("ARG", 0, true) +
+                    pushTemplate1("THIS", 0, true) + pushTemplate1("THAT", 0, true) +
+                    "@SP\nD=M\n@5\nD=D-A\n");
+    private static final AsmBuffer.Fragment SET_ARG_LCL = AsmBuffer.fragment(
+            "D=D-A\n@ARG\nM=D\n@SP\nD=M\n@LCL\nM=D\n");
+    private static final AsmBuffer.Fragment RETURN = AsmBuffer.fragment(returnTemplate());
+    private static final AsmBuffer.Fragment SHARED_RETURN_JUMP = AsmBuffer.fragment(
+            "@" + SHARED_RETURN + "\n0;JMP\n");
+    // Frame without THIS and THAT: their slots are skipped, not written
+    private static final AsmBuffer.Fragment SAVE_LEAN_FRAME = AsmBuffer.fragment(
+            pushTemplate1("LCL", 0, true) + pushTemplate1("ARG", 0, true) +
+                    "@SP\nM=M+1\nMD=M+1\n@5\nD=D-A\n");
+    private static final AsmBuffer.Fragment LEAN_RETURN = AsmBuffer.fragment(leanReturnTemplate());
+    private static final AsmBuffer.Fragment SHARED_LEAN_RETURN_JUMP = AsmBuffer.fragment(
+            "@" + SHARED_LEAN_RETURN + "\n0;JMP\n");
+    // Tail call: D = arguments of the current frame, then moves through R13 -> R14
+    private static final AsmBuffer.Fragment TAIL_FRAME_ARGS = AsmBuffer.fragment("@ARG\nD=M\n@LCL\nD=M-D\n");
+    private static final AsmBuffer.Fragment D_MINUS_A = AsmBuffer.fragment("D=D-A\n");
+    private static final AsmBuffer.Fragment JUMP_IF_NEGATIVE = AsmBuffer.fragment("D;JLT\n");
+    private static final AsmBuffer.Fragment JUMP_IF_ZERO = AsmBuffer.fragment("D;JEQ\n");
+    private static final AsmBuffer.Fragment TAIL_FRAME_SOURCE = AsmBuffer.fragment(
+            "@LCL\nD=M\n@6\nD=D-A\n@R13\nM=D\n@ARG\nD=M\n");
+    private static final AsmBuffer.Fragment R14_IS_D_PLUS_A_MINUS_1 = AsmBuffer.fragment("D=D+A\n@R14\nM=D-1\n");
+    private static final AsmBuffer.Fragment TAIL_ONE_ARG = AsmBuffer.fragment("@SP\nA=M-1\nD=M\n@ARG\nA=M\nM=D\n");
+    private static final AsmBuffer.Fragment SP_BASE = AsmBuffer.fragment("@SP\nD=M\n");
+    private static final AsmBuffer.Fragment TAIL_ARGS_TARGET = AsmBuffer.fragment(
+            "D=D-A\n@R13\nM=D\n@ARG\nD=M-1\n@R14\nM=D\n");
+    private static final AsmBuffer.Fragment MOVE_WORD = AsmBuffer.fragment("@R13\nAM=M+1\nD=M\n@R14\nAM=M+1\nM=D\n");
+    private static final AsmBuffer.Fragment ARG_BASE = AsmBuffer.fragment("@ARG\nD=M\n");
+    private static final AsmBuffer.Fragment SET_SP_LCL = AsmBuffer.fragment("D=D+A\n@SP\nM=D\n@LCL\nM=D\n");
+    // Function prologue: locals zeroed at SP, SP moved past them once
+    private static final AsmBuffer.Fragment ZERO_FIRST_LOCAL = AsmBuffer.fragment("@SP\nA=M\nM=0\n");
+    private static final AsmBuffer.Fragment ZERO_NEXT_LOCAL = AsmBuffer.fragment("A=A+1\nM=0\n");
+    private static final AsmBuffer.Fragment SP_PAST_ONE_LOCAL = AsmBuffer.fragment("@SP\nM=M+1\n");
+    private static final AsmBuffer.Fragment SP_PAST_LOCALS = AsmBuffer.fragment("D=A+1\n@SP\nM=D\n");
+    private static final AsmBuffer.Fragment SAVE_RETURN_R15 = AsmBuffer.fragment("D=A\n@R15\nM=D\n");
+    private static final AsmBuffer.Fragment SHARED_LOCALS_JUMP = AsmBuffer.fragment(
+            "D=A\n@" + SHARED_LOCALS + "\n0;JMP\n");
+    private static final AsmBuffer.Fragment SHARED_LOCALS_ODD_JUMP = AsmBuffer.fragment(
+            "D=A\n@" + SHARED_LOCALS_ODD + "\n0;JMP\n");
+
+    // Fragments indexed by opcode or segment ordinal
+    private static final AsmBuffer.Fragment[] ARITHMETIC = new AsmBuffer.Fragment[Opcode.values().length];
+    private static final AsmBuffer.Fragment[] ARITHMETIC_CACHED = new AsmBuffer.Fragment[Opcode.values().length];
+    private static final AsmBuffer.Fragment[] JUMP_IF = new AsmBuffer.Fragment[Opcode.values().length];
+    private static final AsmBuffer.Fragment[] JUMP_UNLESS = new AsmBuffer.Fragment[Opcode.values().length];
+    private static final AsmBuffer.Fragment[] SHARED_COMPARE_JUMP = new AsmBuffer.Fragment[Opcode.values().length];
+    private static final AsmBuffer.Fragment[] BASE_LOAD = new AsmBuffer.Fragment[Segment.values().length];
+    private static final AsmBuffer.Fragment[] BASE_ADDRESS = new AsmBuffer.Fragment[Segment.values().length];
+    private static final AsmBuffer.Fragment[] BASE_NEXT_ADDRESS = new AsmBuffer.Fragment[Segment.values().length];
+    private static final AsmBuffer.Fragment[] POINTER_PUSH = new AsmBuffer.Fragment[2];
+    private static final AsmBuffer.Fragment[] POINTER_POP = new AsmBuffer.Fragment[2];
+    private static final AsmBuffer.Fragment[] POINTER_LOAD = new AsmBuffer.Fragment[2];
+    private static final AsmBuffer.Fragment[] POINTER_STORE = new AsmBuffer.Fragment[2];
+
+    static {
+        ARITHMETIC[Opcode.ADD.ordinal()] = AsmBuffer.fragment(arithmeticTemplate1() + "M=D+M\n");
+        ARITHMETIC[Opcode.SUB.ordinal()] = AsmBuffer.fragment(arithmeticTemplate1() + "M=M-D\n");
+        ARITHMETIC[Opcode.AND.ordinal()] = AsmBuffer.fragment(arithmeticTemplate1() + "M=D&M\n");
+        ARITHMETIC[Opcode.OR.ordinal()] = AsmBuffer.fragment(arithmeticTemplate1() + "M=D|M\n");
+        ARITHMETIC[Opcode.NOT.ordinal()] = AsmBuffer.fragment("@SP\nA=M-1\nM=!M\n");
+        ARITHMETIC[Opcode.NEG.ordinal()] = AsmBuffer.fragment("@SP\nA=M-1\nM=-M\n");
+
+        ARITHMETIC_CACHED[Opcode.ADD.ordinal()] = AsmBuffer.fragment("@SP\nAM=M-1\nD=D+M\n");
+        ARITHMETIC_CACHED[Opcode.SUB.ordinal()] = AsmBuffer.fragment("@SP\nAM=M-1\nD=M-D\n");
+        ARITHMETIC_CACHED[Opcode.AND.ordinal()] = AsmBuffer.fragment("@SP\nAM=M-1\nD=D&M\n");
+        ARITHMETIC_CACHED[Opcode.OR.ordinal()] = AsmBuffer.fragment("@SP\nAM=M-1\nD=D|M\n");
+        ARITHMETIC_CACHED[Opcode.NOT.ordinal()] = AsmBuffer.fragment("D=!D\n");
+        ARITHMETIC_CACHED[Opcode.NEG.ordinal()] = AsmBuffer.fragment("D=-D\n");
+
+        String[][] jumps = { { "EQ", "JNE" }, { "GT", "JLE" }, { "LT", "JGE" } };
+        for (String[] jump : jumps) {
+            int op = Opcode.valueOf(jump[0]).ordinal();
+            JUMP_IF[op] = AsmBuffer.fragment("D;J" + jump[0] + "\n");
+            JUMP_UNLESS[op] = AsmBuffer.fragment("D;" + jump[1] + "\n");
+            SHARED_COMPARE_JUMP[op] = AsmBuffer.fragment("D=A\n@$$" + jump[0] + "\n0;JMP\n");
+        }
+
+        for (Segment segment : Segment.values()) {
+            if (segment.getBase() != null) {
+                BASE_LOAD[segment.ordinal()] = AsmBuffer.fragment("@" + segment.getBase() + "\nD=M\n");
+                BASE_ADDRESS[segment.ordinal()] = AsmBuffer.fragment("@" + segment.getBase() + "\nA=M\n");
+                BASE_NEXT_ADDRESS[segment.ordinal()] = AsmBuffer.fragment("@" + segment.getBase() + "\nA=M+1\n");
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            String register = pointerRegister(i);
+            POINTER_PUSH[i] = AsmBuffer.fragment("@" + register + "\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+            POINTER_POP[i] = AsmBuffer.fragment("@SP\nAM=M-1\nD=M\n@" + register + "\nM=D\n");
+            POINTER_LOAD[i] = AsmBuffer.fragment("@" + register + "\nD=M\n");
+            POINTER_STORE[i] = AsmBuffer.fragment("@" + register + "\nM=D\n");
+        }
+    }
 
     /**
      * Constructor: Opens an output file and prepares to write content
@@ -22,63 +220,451 @@ public class ASMWriter {
      */
     public ASMWriter(File fileOut) {
         try {
-            fileName = fileOut.getName();
-            outPrinter = new PrintWriter(fileOut);
-            arthJumpFlag = 0;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            out = new AsmBuffer(FileChannel.open(fileOut.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot write " + fileOut.getName() + ": " + e.getMessage());
+        }
+        code = out;
+        arthJumpFlag = 0;
+    }
+
+    /**
+     * Constructor: Writes to an already open output, e.g. an in-memory buffer
+     * 
+     * @param out Output for the assembly code
+     */
+    public ASMWriter(Writer out) {
+        this.out = new AsmBuffer(out);
+        code = this.out;
+        arthJumpFlag = 0;
+    }
+
+    /**
+     * Constructor: Writes into a buffer, e.g. an in-memory buffer whose code
+     * is assembled directly
+     * 
+     * @param out Buffer for the assembly code
+     */
+    public ASMWriter(AsmBuffer out) {
+        this.out = out;
+        code = out;
+        arthJumpFlag = 0;
+    }
+
+    // Writer for one unit, keeping its code in memory
+    private ASMWriter() {
+        out = new AsmBuffer();
+        code = out;
+        unitWriter = true;
+    }
+
+    /**
+     * Creates a writer for one unit of the program with the same code
+     * generation settings, writing into its own in-memory buffer. Units can
+     * be written concurrently and are added to this writer with appendUnit.
+     * 
+     * @return Writer for one unit
+     */
+    public ASMWriter newUnitWriter() {
+        ASMWriter unit = new ASMWriter();
+        unit.sharedReturn = sharedReturn;
+        unit.sharedCall = sharedCall;
+        unit.sharedCompare = sharedCompare;
+        unit.cycleWeight = cycleWeight;
+        unit.romWeight = romWeight;
+        unit.setPeephole(peepholeReport != null);
+        unit.cacheTos = cacheTos;
+        unit.setSourceMap(sourceMap != null);
+        unit.pointerPreserving = pointerPreserving;
+        unit.specializeIndex = specializeIndex;
+        unit.compactPrologue = compactPrologue;
+        return unit;
+    }
+
+    /**
+     * Finishes the current unit: writes back the cached top of the stack and
+     * optimizes the buffered code. Shared routines are left to close.
+     */
+    public void finishUnit() {
+        flushTos();
+        if (peepholeReport != null) {
+            flushUnit();
+        }
+    }
+
+    /**
+     * Appends the code of a finished unit writer and takes over its ROM size,
+     * peephole report and use of shared routines
+     * 
+     * @param unit Unit writer created by newUnitWriter
+     */
+    public void appendUnit(ASMWriter unit) {
+        if (!unit.unitWriter) {
+            throw new IllegalArgumentException("Not a unit writer");
+        }
+        finishUnit();
+        if (peepholeReport != null) {
+            peepholeReport.addReport(unit.peepholeReport);
+        }
+        if (sourceMap != null) {
+            sourceMap.append(unit.sourceMap, out.getRomSize());
+            unitMapStart = sourceMap.size();
+        }
+        out.append(unit.out);
+        commandCount += unit.commandCount;
+        sharedReturnUsed |= unit.sharedReturnUsed;
+        sharedLeanReturnUsed |= unit.sharedLeanReturnUsed;
+        sharedCallUsed |= unit.sharedCallUsed;
+        sharedLocalsUsed |= unit.sharedLocalsUsed;
+        sharedCompareUsed.addAll(unit.sharedCompareUsed);
+    }
+
+    /**
+     * Saves a finished unit writer: its code, use of shared routines, source
+     * map and peephole report. The code of a unit depends only on its file
+     * and the code generation settings, so it can be reused with readUnit.
+     *
+     * @param data Output stream
+     * @throws IOException If writing fails
+     */
+    public void writeUnit(DataOutputStream data) throws IOException {
+        if (!unitWriter) {
+            throw new IllegalArgumentException("Not a unit writer");
+        }
+        data.writeInt(commandCount);
+        data.writeInt(out.getRomSize());
+        data.writeInt(out.size());
+        data.write(out.array(), 0, out.size());
+        data.writeBoolean(sharedReturnUsed);
+        data.writeBoolean(sharedLeanReturnUsed);
+        data.writeBoolean(sharedCallUsed);
+        data.writeBoolean(sharedLocalsUsed);
+        data.writeInt(sharedCompareUsed.size());
+        for (String type : sharedCompareUsed) {
+            data.writeUTF(type);
         }
+        data.writeBoolean(sourceMap != null);
+        if (sourceMap != null) {
+            sourceMap.writeTo(data);
+        }
+        data.writeBoolean(peepholeReport != null);
+        if (peepholeReport != null) {
+            peepholeReport.writeTo(data);
+        }
+    }
+
+    /**
+     * Creates a unit writer holding a unit saved by writeUnit, to be added
+     * with appendUnit
+     *
+     * @param data Input stream
+     * @return Finished unit writer
+     * @throws IOException If reading fails
+     */
+    public ASMWriter readUnit(DataInputStream data) throws IOException {
+        ASMWriter unit = newUnitWriter();
+        unit.commandCount = data.readInt();
+        int romSize = data.readInt();
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        unit.out.append(bytes, bytes.length, romSize);
+        unit.sharedReturnUsed = data.readBoolean();
+        unit.sharedLeanReturnUsed = data.readBoolean();
+        unit.sharedCallUsed = data.readBoolean();
+        unit.sharedLocalsUsed = data.readBoolean();
+        int compares = data.readInt();
+        for (int i = 0; i < compares; i++) {
+            unit.sharedCompareUsed.add(data.readUTF());
+        }
+        unit.sourceMap = data.readBoolean() ? SourceMap.readFrom(data) : null;
+        unit.peepholeReport = data.readBoolean() ? PeepholeReport.readFrom(data) : null;
+        if ((unit.sourceMap == null) != (sourceMap == null)
+                || (unit.peepholeReport == null) != (peepholeReport == null)) {
+            throw new IOException("Unit written with other settings");
+        }
+        return unit;
+    }
+
+    /**
+     * Enables the shared return routine: every return site becomes a jump to a
+     * single $$RETURN routine that is emitted once at the end of the program
+     * 
+     * @param enabled True to share the return sequence
+     */
+    public void setSharedReturn(boolean enabled) {
+        sharedReturn = enabled;
+    }
+
+    /**
+     * Sets the functions that leave THIS and THAT as they found them, see
+     * VMLinker.pointerPreservingFunctions. Calls to them skip saving THIS
+     * and THAT, leaving those frame slots unwritten, and their returns skip
+     * restoring them. The frame keeps its size, so such a function can also
+     * be called with a full frame that saved the current THIS and THAT, as
+     * the bootstrap and the call trampoline build. A caller outside the
+     * program may have saved other values, so the set must only hold
+     * functions of a closed program.
+     * 
+     * @param functions Names of the functions
+     */
+    public void setPointerPreservingFunctions(Set<String> functions) {
+        pointerPreserving = functions;
+    }
+
+    public Set<String> getPointerPreservingFunctions() {
+        return pointerPreserving;
+    }
+
+    /**
+     * Enables the call trampoline: every call site loads the callee address
+     * into R13 and the number of arguments into R14, then jumps with the
+     * return address in D to a single $$CALL routine that builds the frame
+     * 
+     * @param enabled True to share the frame building sequence
+     */
+    public void setSharedCall(boolean enabled) {
+        sharedCall = enabled;
+    }
+
+    /**
+     * Enables the compact function prologue: up to MIN_SHARED_LOCALS - 1
+     * locals are zeroed with unrolled M=0 stores and one SP update, more
+     * by a jump to a single $$LOCALS loop that clears two per iteration
+     * and returns through R15
+     * 
+     * @param enabled True to pick the prologue encoding by number of locals
+     */
+    public void setCompactPrologue(boolean enabled) {
+        compactPrologue = enabled;
     }
 
     /**
-     * Sets the current file name for static variables
+     * Enables shared eq/gt/lt routines. Each comparison site is then written
+     * inline or as a call to the shared routine, returning through R15,
+     * depending on the cost model.
      * 
-     * @param fileOut Input file
+     * @param enabled True to allow shared comparisons
      */
-    public void setFileName(File fileOut) {
-        fileName = fileOut.getName();
+    public void setSharedCompare(boolean enabled) {
+        sharedCompare = enabled;
+    }
+
+    /**
+     * Sets the weights the cost model gives to one executed cycle and one ROM word
+     * 
+     * @param cycles Weight of one cycle
+     * @param rom    Weight of one ROM word
+     */
+    public void setCostWeights(int cycles, int rom) {
+        cycleWeight = cycles;
+        romWeight = rom;
+    }
+
+    /**
+     * Sets the estimated number of times the next command runs relative to
+     * straight-line code, as used by the cost model
+     * 
+     * @param frequency Estimated execution frequency
+     */
+    public void setSiteFrequency(int frequency) {
+        siteFrequency = frequency;
+    }
+
+    /**
+     * Enables the peephole optimizer. Generated code is then buffered per
+     * input file and optimized as lines before it is written.
+     * 
+     * @param enabled True to optimize the generated code
+     */
+    public void setPeephole(boolean enabled) {
+        peepholeReport = enabled ? new PeepholeReport() : null;
+        code = enabled ? unitCode : out;
+    }
+
+    /**
+     * Returns the sizes recorded by the peephole optimizer
+     * 
+     * @return Peephole report, or null if the optimizer is disabled
+     */
+    public PeepholeReport getPeepholeReport() {
+        return peepholeReport;
+    }
+
+    /**
+     * Enables push and pop code specialized by index: constant addresses
+     * (temp, static) are stored directly instead of through R13, small
+     * indices walk the segment base with A=M+1 and A=A+1. Large indices
+     * keep the generic sequence, which adds the index to the base and is
+     * shorter there.
+     * 
+     * @param enabled True to pick the shortest sequence per segment and index
+     */
+    public void setSpecializeIndex(boolean enabled) {
+        specializeIndex = enabled;
+    }
+
+    /**
+     * Enables top-of-stack caching: the logical top of the stack is kept in D
+     * across commands and only written to RAM before labels, jumps, calls,
+     * returns and function entries
+     * 
+     * @param enabled True to cache the top of the stack in D
+     */
+    public void setCacheTos(boolean enabled) {
+        cacheTos = enabled;
+    }
+
+    /**
+     * Enables recording a source map from ROM addresses to VM commands.
+     * Commands are marked with markCommand before they are written.
+     * 
+     * @param enabled True to record a source map
+     */
+    public void setSourceMap(boolean enabled) {
+        sourceMap = enabled ? new SourceMap() : null;
+        unitMapStart = 0;
+    }
+
+    /**
+     * Returns the source map, complete once the writer is closed
+     * 
+     * @return Source map, or null if not enabled
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * Starts a source map entry for the next command written. Does nothing
+     * unless the source map is enabled.
+     * 
+     * @param file     Name of the .vm file
+     * @param line     Line of the command in the file
+     * @param function Enclosing function
+     * @param command  Command text
+     */
+    public void markCommand(String file, int line, String function, String command) {
+        if (sourceMap != null) {
+            sourceMap.add(code.getRomSize(), file, line, function, command);
+        }
+    }
+
+    /**
+     * Returns the number of ROM words (instructions, not labels) written so far
+     * 
+     * @return ROM size in words
+     */
+    public int getRomSize() {
+        return out.getRomSize();
+    }
+
+    /**
+     * Counts VM commands translated by this writer, for reports
+     * 
+     * @param count Number of commands
+     */
+    public void addCommands(int count) {
+        commandCount += count;
+    }
+
+    /**
+     * Returns the number of VM commands translated, including those of
+     * appended units
+     * 
+     * @return Command count
+     */
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Sets the current file name for static variables and generated labels.
+     * Label numbering restarts for every file.
+     * 
+     * @param name Name of the input .vm file
+     */
+    public void setFileName(String name) {
+        flushTos();
+        fileName = name;
+        labelCnt = 0;
+        arthJumpFlag = 0;
+        if (peepholeReport != null) {
+            flushUnit();
+            unitName = name;
+        }
     }
 
     /**
      * Writes the assembly code for an arithmetic command
      * 
-     * @param command Arithmetic command
+     * @param command Arithmetic opcode
      */
-    public void writeArithmetic(String command) {
+    public void writeArithmetic(Opcode command) {
+        if (cacheTos) {
+            writeArithmeticCached(command);
+            return;
+        }
         switch (command) {
-            case "add":
-                outPrinter.print(arithmeticTemplate1() + "M=D+M\n");
-                break;
-            case "sub":
-                outPrinter.print(arithmeticTemplate1() + "M=M-D\n");
-                break;
-            case "and":
-                outPrinter.print(arithmeticTemplate1() + "M=D&M\n");
-                break;
-            case "or":
-                outPrinter.print(arithmeticTemplate1() + "M=D|M\n");
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case NOT:
+            case NEG:
+                code.append(ARITHMETIC[command.ordinal()]);
                 break;
-            case "gt":
-                outPrinter.print(arithmeticTemplate2("JLE"));
-                arthJumpFlag++;
-                break;
-            case "lt":
-                outPrinter.print(arithmeticTemplate2("JGE"));
-                arthJumpFlag++;
-                break;
-            case "eq":
-                outPrinter.print(arithmeticTemplate2("JNE"));
-                arthJumpFlag++;
-                break;
-            case "not":
-                outPrinter.print("@SP\nA=M-1\nM=!M\n");
-                break;
-            case "neg":
-                outPrinter.print("D=0\n@SP\nA=M-1\nM=M-D\n");
+            case GT:
+            case LT:
+            case EQ:
+                writeCompare(command);
                 break;
             default:
-                throw new IllegalArgumentException("Invalid arithmetic command: " + command);
+                throw new IllegalArgumentException("Invalid arithmetic command: " + command.getVmName());
+        }
+    }
+
+    /**
+     * Writes a comparison either inline or as a call to the shared routine,
+     * whichever the cost model rates cheaper at the current site
+     * 
+     * @param command Comparison opcode, GT, LT or EQ
+     */
+    private void writeCompare(Opcode command) {
+        if (useSharedCompare()) {
+            code.at(fileName, "CONTINUE", arthJumpFlag);
+            code.append(SHARED_COMPARE_JUMP[command.ordinal()]);
+            code.label(fileName, "CONTINUE", arthJumpFlag);
+            sharedCompareUsed.add(command.name());
+        } else {
+            code.append(COMPARE_OPERANDS);
+            code.at(fileName, "FALSE", arthJumpFlag);
+            code.append(JUMP_UNLESS[command.ordinal()]);
+            code.append(SET_TRUE);
+            code.at(fileName, "CONTINUE", arthJumpFlag);
+            code.append(JUMP);
+            code.label(fileName, "FALSE", arthJumpFlag);
+            code.append(SET_FALSE);
+            code.label(fileName, "CONTINUE", arthJumpFlag);
         }
+        arthJumpFlag++;
+    }
+
+    /**
+     * Cost model for comparison sites. Sharing saves ROM words at every site
+     * but costs extra cycles each time the site runs, so the cycles are scaled
+     * by the estimated execution frequency of the site. The one-off size of
+     * the routine itself is not charged to any site.
+     * 
+     * @return True if the current site should call the shared routine
+     */
+    private boolean useSharedCompare() {
+        if (!sharedCompare) {
+            return false;
+        }
+        int romSaved = COMPARE_INLINE_WORDS - COMPARE_SHARED_WORDS;
+        int cyclesLost = COMPARE_SHARED_CYCLES - COMPARE_INLINE_CYCLES;
+        return (long) romWeight * romSaved > (long) cycleWeight * cyclesLost * siteFrequency;
     }
 
     /**
@@ -88,92 +674,169 @@ public class ASMWriter {
      * @param segment Memory segment
      * @param index   Index within the segment
      */
-    public void writePushPop(int command, String segment, int index) {
-        if (command == VMParser.PUSH) {
+    public void writePushPop(Opcode command, Segment segment, int index) {
+        if (cacheTos) {
+            writePushPopCached(command, segment, index);
+        } else if (command == Opcode.PUSH) {
             writePush(segment, index);
-        } else if (command == VMParser.POP) {
+        } else if (command == Opcode.POP) {
             writePop(segment, index);
         } else {
             throw new IllegalArgumentException("Invalid command for writePushPop");
         }
     }
 
-    private void writePush(String segment, int index) {
+    private void writePush(Segment segment, int index) {
         switch (segment) {
-            case "constant":
-                outPrinter.print("@" + index + "\nD=A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
-                break;
-            case "local":
-                outPrinter.print(pushTemplate1("LCL", index, false));
+            case CONSTANT:
+                code.at(index);
+                code.append(PUSH_CONSTANT);
                 break;
-            case "argument":
-                outPrinter.print(pushTemplate1("ARG", index, false));
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (specializeIndex && index <= MAX_CHAINED_LOAD_INDEX) {
+                    writeChainedAddress(segment, index);
+                    code.append(PUSH_M);
+                    break;
+                }
+                code.append(BASE_LOAD[segment.ordinal()]);
+                code.at(index);
+                code.append(PUSH_INDEXED);
                 break;
-            case "this":
-                outPrinter.print(pushTemplate1("THIS", index, false));
+            case TEMP:
+                code.at(index + 5);
+                code.append(PUSH_M);
                 break;
-            case "that":
-                outPrinter.print(pushTemplate1("THAT", index, false));
+            case POINTER:
+                code.append(POINTER_PUSH[pointerIndex(index)]);
                 break;
-            case "temp":
-                outPrinter.print("@" + (index + 5) + "\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
-                break;
-            case "pointer":
-                outPrinter.print(pushPointer(index));
-                break;
-            case "static":
-                outPrinter.print("@" + fileName + index + "\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+            case STATIC:
+                code.at(fileName, index);
+                code.append(PUSH_M);
                 break;
             default:
-                throw new IllegalArgumentException("Invalid segment for push: " + segment);
+                throw new IllegalArgumentException("Invalid segment for push: " + segment.getVmName());
         }
     }
 
-    private void writePop(String segment, int index) {
+    private void writePop(Segment segment, int index) {
         switch (segment) {
-            case "local":
-                outPrinter.print(popTemplate1("LCL", index, false));
-                break;
-            case "argument":
-                outPrinter.print(popTemplate1("ARG", index, false));
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (specializeIndex && index <= MAX_CHAINED_POP_INDEX) {
+                    code.append(POP_TO_D);
+                    writeChainedAddress(segment, index);
+                    code.append(M_IS_D);
+                    break;
+                }
+                code.append(BASE_LOAD[segment.ordinal()]);
+                code.at(index);
+                code.append(POP_INDEXED);
                 break;
-            case "this":
-                outPrinter.print(popTemplate1("THIS", index, false));
+            case TEMP:
+                if (specializeIndex) {
+                    code.append(POP_TO_D);
+                    code.at(index + 5);
+                    code.append(M_IS_D);
+                    break;
+                }
+                code.at(index + 5);
+                code.append(POP_ADDRESS);
                 break;
-            case "that":
-                outPrinter.print(popTemplate1("THAT", index, false));
+            case POINTER:
+                code.append(POINTER_POP[pointerIndex(index)]);
                 break;
-            case "temp":
-                outPrinter.print("@" + (index + 5) + "\nD=A\n@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n");
+            case STATIC:
+                if (specializeIndex) {
+                    code.append(POP_TO_D);
+                    code.at(fileName, index);
+                    code.append(M_IS_D);
+                    break;
+                }
+                code.at(fileName, index);
+                code.append(POP_ADDRESS);
                 break;
-            case "pointer":
-                outPrinter.print(popPointer(index));
+            default:
+                throw new IllegalArgumentException("Invalid segment for pop: " + segment.getVmName());
+        }
+    }
+
+    /**
+     * Writes an arithmetic command with the top of the stack cached in D.
+     * Binary commands take their second operand from D when it is cached and
+     * leave the result in D; otherwise they work on RAM as usual.
+     * 
+     * @param command Arithmetic opcode
+     */
+    private void writeArithmeticCached(Opcode command) {
+        switch (command) {
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case NOT:
+            case NEG:
+                code.append(tosInD ? ARITHMETIC_CACHED[command.ordinal()] : ARITHMETIC[command.ordinal()]);
                 break;
-            case "static":
-                outPrinter.print("@" + fileName + index + "\nD=A\n@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n");
+            case GT:
+            case LT:
+            case EQ:
+                if (!tosInD) {
+                    code.append(POP_TO_D);
+                    tosInD = true;
+                }
+                code.append(SUBTRACT_D);
+                code.at(fileName, "TRUE", arthJumpFlag);
+                code.append(JUMP_IF[command.ordinal()]);
+                code.append(D_FALSE);
+                code.at(fileName, "CONTINUE", arthJumpFlag);
+                code.append(JUMP);
+                code.label(fileName, "TRUE", arthJumpFlag);
+                code.append(D_TRUE);
+                code.label(fileName, "CONTINUE", arthJumpFlag);
+                arthJumpFlag++;
                 break;
             default:
-                throw new IllegalArgumentException("Invalid segment for pop: " + segment);
+                throw new IllegalArgumentException("Invalid arithmetic command: " + command.getVmName());
         }
     }
 
-    private String pushPointer(int index) {
-        if (index == 0) {
-            return "@THIS\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n";
-        } else if (index == 1) {
-            return "@THAT\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n";
+    /**
+     * Writes a push or pop with the top of the stack cached in D.
+     * A push flushes the cached value and loads the new one into D; a pop
+     * stores the cached value, loading it from RAM first if needed.
+     * 
+     * @param command PUSH or POP
+     * @param segment Memory segment
+     * @param index   Index within the segment
+     */
+    private void writePushPopCached(Opcode command, Segment segment, int index) {
+        if (command == Opcode.PUSH) {
+            flushTos();
+            writeLoad(segment, index);
+            tosInD = true;
+        } else if (command == Opcode.POP) {
+            if (!tosInD) {
+                code.append(POP_TO_D);
+            }
+            writeStore(segment, index);
+            tosInD = false;
         } else {
-            throw new IllegalArgumentException("Invalid index for pointer: " + index);
+            throw new IllegalArgumentException("Invalid command for writePushPop");
         }
     }
 
-    private String popPointer(int index) {
-        if (index == 0) {
-            return "@SP\nAM=M-1\nD=M\n@THIS\nM=D\n";
-        } else if (index == 1) {
-            return "@SP\nAM=M-1\nD=M\n@THAT\nM=D\n";
-        } else {
-            throw new IllegalArgumentException("Invalid index for pointer: " + index);
+    /**
+     * Writes the cached top of the stack back to RAM
+     */
+    private void flushTos() {
+        if (tosInD) {
+            code.append(FLUSH_TOS);
+            tosInD = false;
         }
     }
 
@@ -183,8 +846,8 @@ public class ASMWriter {
      * @param label Label name
      */
     public void writeLabel(String label) {
-        validateLabel(label);
-        outPrinter.print("(" + label + ")\n");
+        flushTos();
+        code.label(label);
     }
 
     /**
@@ -193,8 +856,9 @@ public class ASMWriter {
      * @param label Label name
      */
     public void writeGoto(String label) {
-        validateLabel(label);
-        outPrinter.print("@" + label + "\n0;JMP\n");
+        flushTos();
+        code.at(label);
+        code.append(JUMP);
     }
 
     /**
@@ -203,23 +867,45 @@ public class ASMWriter {
      * @param label Label name
      */
     public void writeIf(String label) {
-        validateLabel(label);
-        outPrinter.print(arithmeticTemplate1() + "@" + label + "\nD;JNE\n");
+        if (tosInD) {
+            tosInD = false;
+        } else {
+            code.append(POP_OPERANDS);
+        }
+        code.at(label);
+        code.append(JUMP_IF_TRUE);
     }
 
-    private void validateLabel(String label) {
-        Matcher m = labelReg.matcher(label);
-        if (!m.find()) {
-            throw new IllegalArgumentException("Invalid label format: " + label);
+    /**
+     * Writes the assembly code for a comparison immediately followed by an
+     * if-goto: both operands are popped and the comparison result drives the
+     * jump directly, without storing a boolean on the stack
+     * 
+     * @param command Comparison opcode, EQ, GT or LT
+     * @param label   Label name
+     */
+    public void writeCompareIf(Opcode command, String label) {
+        if (!command.isCompare()) {
+            throw new IllegalArgumentException("Invalid comparison command: " + command.getVmName());
         }
+        if (tosInD) {
+            tosInD = false;
+        } else {
+            code.append(POP_TO_D);
+        }
+        code.append(SUBTRACT_D);
+        code.at(label);
+        code.append(JUMP_IF[command.ordinal()]);
     }
 
     /**
      * Writes the assembly code for VM initialization (bootstrap code)
      */
     public void writeBootstrapInit() {
-        outPrinter.print("@256\nD=A\n@SP\nM=D\n");
-        writeCall("Sys.init", 0);
+        markCommand("-", 0, "(bootstrap)", "bootstrap");
+        code.append(BOOTSTRAP);
+        markCommand("-", 0, "(bootstrap)", "call Sys.init 0");
+        writeCall("Sys.init", 0, false); // Full frame, as expected by the test scripts
     }
 
     /**
@@ -229,23 +915,133 @@ public class ASMWriter {
      * @param numArgs      Number of arguments
      */
     public void writeCall(String functionName, int numArgs) {
-        String returnLabel = "RETURN_LABEL" + (labelCnt++);
-        outPrinter.print("@" + returnLabel + "\nD=A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
-        outPrinter.print(pushTemplate1("LCL", 0, true));
-        outPrinter.print(pushTemplate1("ARG", 0, true));
-        outPrinter.print(pushTemplate1("THIS", 0, true));
-        outPrinter.print(pushTemplate1("THAT", 0, true));
-        outPrinter.print("@SP\nD=M\n@5\nD=D-A\n@" + numArgs + "\nD=D-A\n@ARG\nM=D\n");
-        outPrinter.print("@SP\nD=M\n@LCL\nM=D\n");
-        outPrinter.print("@" + functionName + "\n0;JMP\n");
-        outPrinter.print("(" + returnLabel + ")\n");
+        writeCall(functionName, numArgs, pointerPreserving.contains(functionName));
+    }
+
+    /**
+     * Writes a call with a full frame or one without THIS and THAT
+     * 
+     * @param functionName Function name
+     * @param numArgs      Number of arguments
+     * @param lean         True to leave out THIS and THAT, unless the call
+     *                     trampoline builds the frame
+     */
+    private void writeCall(String functionName, int numArgs, boolean lean) {
+        flushTos();
+        int returnLabel = labelCnt++;
+        if (sharedCall) {
+            code.at(functionName);
+            code.append(TRAMPOLINE_TARGET);
+            writeLoadR14(numArgs);
+            code.at(fileName, "RETURN_LABEL", returnLabel);
+            code.append(TRAMPOLINE_JUMP);
+            code.label(fileName, "RETURN_LABEL", returnLabel);
+            sharedCallUsed = true;
+            return;
+        }
+        code.at(fileName, "RETURN_LABEL", returnLabel);
+        code.append(D_IS_A);
+        code.append(PUSH_D);
+        code.append(lean ? SAVE_LEAN_FRAME : SAVE_FRAME);
+        code.at(numArgs);
+        code.append(SET_ARG_LCL);
+        code.at(functionName);
+        code.append(JUMP);
+        code.label(fileName, "RETURN_LABEL", returnLabel);
+    }
+
+    /**
+     * Writes a call directly followed by a return. The callee reuses the
+     * current frame: the saved frame of the caller moves down to just above
+     * the new arguments, which are copied over the current ones, so the
+     * callee returns straight to the caller. When the call passes more
+     * arguments than the current frame holds, which is only known at run
+     * time, the code falls back to an ordinary call and return.
+     * 
+     * @param functionName Function name
+     * @param numArgs      Number of arguments
+     */
+    public void writeTailCall(String functionName, int numArgs) {
+        if (!leanReturn && pointerPreserving.contains(functionName)) {
+            // The callee's return would not restore THIS and THAT for our caller
+            markFallback("call " + functionName + " " + numArgs);
+            writeCall(functionName, numArgs);
+            markFallback("return");
+            writeReturn();
+            return;
+        }
+        flushTos();
+        int tailLabel = labelCnt++;
+
+        // D = current arguments - new arguments
+        code.append(TAIL_FRAME_ARGS);
+        code.at(numArgs + 5);
+        code.append(D_MINUS_A);
+        code.at(fileName, "TAIL_CALL", tailLabel);
+        code.append(JUMP_IF_NEGATIVE);
+        code.at(fileName, "TAIL_ARGS", tailLabel);
+        code.append(JUMP_IF_ZERO);
+
+        // Fewer arguments: move the saved frame down, lowest word first
+        code.append(TAIL_FRAME_SOURCE);
+        code.at(numArgs);
+        code.append(R14_IS_D_PLUS_A_MINUS_1);
+        code.repeat(MOVE_WORD, 5);
+
+        code.label(fileName, "TAIL_ARGS", tailLabel);
+        if (numArgs == 1) {
+            code.append(TAIL_ONE_ARG);
+        } else if (numArgs > 1) {
+            code.append(SP_BASE);
+            code.at(numArgs + 1);
+            code.append(TAIL_ARGS_TARGET);
+            code.repeat(MOVE_WORD, numArgs);
+        }
+        code.append(ARG_BASE);
+        code.at(numArgs + 5);
+        code.append(SET_SP_LCL);
+        code.at(functionName);
+        code.append(JUMP);
+
+        code.label(fileName, "TAIL_CALL", tailLabel);
+        markFallback("call " + functionName + " " + numArgs);
+        writeCall(functionName, numArgs);
+        markFallback("return");
+        writeReturn();
+    }
+
+    /**
+     * Starts a source map entry for the ordinary call or return a tail call
+     * falls back to, at the line of the tail call. The tail call's own entry
+     * then ends with its jump to the callee, and the fallback has the
+     * entries of a plain call and return.
+     *
+     * @param command Command text
+     */
+    private void markFallback(String command) {
+        if (sourceMap != null && sourceMap.size() > 0) {
+            int last = sourceMap.size() - 1;
+            sourceMap.add(code.getRomSize(), sourceMap.file(last), sourceMap.line(last), sourceMap.function(last),
+                    command);
+        }
     }
 
     /**
      * Writes the assembly code for a return command
      */
     public void writeReturn() {
-        outPrinter.print(returnTemplate());
+        flushTos();
+        if (leanReturn && sharedReturn) {
+            code.append(SHARED_LEAN_RETURN_JUMP);
+            sharedLeanReturnUsed = true;
+        } else if (leanReturn) {
+            code.append(LEAN_RETURN);
+        } else if (sharedReturn) {
+            code.append(SHARED_RETURN_JUMP);
+            sharedReturnUsed = true;
+        } else {
+            code.append(RETURN);
+        }
     }
 
     /**
@@ -255,41 +1051,291 @@ public class ASMWriter {
      * @param numLocals    Number of local variables
      */
     public void writeFunction(String functionName, int numLocals) {
-        outPrinter.print("(" + functionName + ")\n");
+        flushTos();
+        leanReturn = pointerPreserving.contains(functionName);
+        code.label(functionName);
+        if (compactPrologue && numLocals > 0) {
+            writeLocals(numLocals);
+            return;
+        }
         for (int i = 0; i < numLocals; i++) {
-            writePushPop(VMParser.PUSH, "constant", 0);
+            writePushPop(Opcode.PUSH, Segment.CONSTANT, 0);
+        }
+    }
+
+    /**
+     * Writes a compact function prologue that pushes zeros for the locals.
+     * An odd number of locals enters the shared loop at $$LOCALS_ODD, which
+     * clears one local before the loop clears the remaining pairs.
+     * 
+     * @param numLocals Number of local variables, at least 1
+     */
+    private void writeLocals(int numLocals) {
+        if (numLocals < MIN_SHARED_LOCALS) {
+            code.append(ZERO_FIRST_LOCAL);
+            code.repeat(ZERO_NEXT_LOCAL, numLocals - 1);
+            code.append(numLocals == 1 ? SP_PAST_ONE_LOCAL : SP_PAST_LOCALS);
+            return;
         }
+        int returnLabel = labelCnt++;
+        code.at(fileName, "LOCALS_RETURN", returnLabel);
+        code.append(SAVE_RETURN_R15);
+        code.at(numLocals / 2);
+        code.append(numLocals % 2 == 0 ? SHARED_LOCALS_JUMP : SHARED_LOCALS_ODD_JUMP);
+        code.label(fileName, "LOCALS_RETURN", returnLabel);
+        sharedLocalsUsed = true;
     }
 
     /**
      * Closes the output file
      */
     public void close() {
-        outPrinter.close();
+        finishUnit();
+        if (peepholeReport != null) {
+            unitName = "(shared routines)";
+        }
+        writeSharedRoutines();
+        finishUnit();
+        if (sourceMap != null) {
+            sourceMap.setRomSize(out.getRomSize());
+        }
+        out.close();
+    }
+
+    /**
+     * Writes the shared routines used by the program after the translated code.
+     * A halt loop guards them so that a program falling off its last command
+     * does not run into a routine.
+     */
+    private void writeSharedRoutines() {
+        if (!sharedReturnUsed && !sharedLeanReturnUsed && !sharedCallUsed && !sharedLocalsUsed
+                && sharedCompareUsed.isEmpty()) {
+            return;
+        }
+        markCommand("-", 0, HALT_LABEL, "halt");
+        code.append(AsmBuffer.fragment("(" + HALT_LABEL + ")\n@" + HALT_LABEL + "\n0;JMP\n"));
+        if (sharedReturnUsed) {
+            markCommand("-", 0, SHARED_RETURN, "return");
+            code.append(AsmBuffer.fragment("(" + SHARED_RETURN + ")\n" + returnTemplate()));
+        }
+        if (sharedLeanReturnUsed) {
+            markCommand("-", 0, SHARED_LEAN_RETURN, "return");
+            code.append(AsmBuffer.fragment("(" + SHARED_LEAN_RETURN + ")\n" + leanReturnTemplate()));
+        }
+        if (sharedCallUsed) {
+            markCommand("-", 0, SHARED_CALL, "call");
+            code.append(AsmBuffer.fragment("(" + SHARED_CALL + ")\n" + callTemplate()));
+        }
+        if (sharedLocalsUsed) {
+            markCommand("-", 0, SHARED_LOCALS, "function");
+            code.append(AsmBuffer.fragment(localsTemplate()));
+        }
+        for (String type : sharedCompareUsed) {
+            markCommand("-", 0, "$$" + type, type.toLowerCase());
+            code.append(AsmBuffer.fragment(compareTemplate(type)));
+        }
     }
 
-    // Templates for common assembly code patterns
-    private String arithmeticTemplate1() {
+    /**
+     * Optimizes the buffered code of the current unit and writes it out
+     */
+    private void flushUnit() {
+        ArrayList<String> unitLines = unitCode.takeLines();
+        if (unitLines.isEmpty()) {
+            if (sourceMap != null) {
+                remapUnit(unitLines, new ArrayList<>());
+            }
+            return;
+        }
+        ArrayList<Integer> origins = (sourceMap != null) ? lineOrigins(unitLines) : null;
+        ArrayList<String> optimized = Peephole.optimize(unitLines, origins);
+        peepholeReport.addUnit(unitName, unitLines, optimized);
+        if (sourceMap != null) {
+            remapUnit(optimized, origins);
+        }
+        for (String line : optimized) {
+            out.line(line);
+        }
+    }
+
+    /**
+     * Finds the source map entry of every line of the current unit. Entries
+     * of the unit start at ROM addresses relative to the unit.
+     */
+    private ArrayList<Integer> lineOrigins(ArrayList<String> lines) {
+        ArrayList<Integer> origins = new ArrayList<>(lines.size());
+        int entry = unitMapStart - 1;
+        int words = 0;
+        for (String line : lines) {
+            while (entry + 1 < sourceMap.size() && sourceMap.start(entry + 1) <= words) {
+                entry++;
+            }
+            origins.add(entry);
+            if (!line.startsWith("(")) {
+                words++;
+            }
+        }
+        return origins;
+    }
+
+    /**
+     * Moves the source map entries of the current unit to the addresses of
+     * the optimized lines in the output. An entry whose code was removed
+     * entirely gets no words.
+     */
+    private void remapUnit(ArrayList<String> lines, ArrayList<Integer> origins) {
+        int base = out.getRomSize();
+        int entry = unitMapStart;
+        int words = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            while (entry < sourceMap.size() && entry <= origins.get(i)) {
+                sourceMap.setStart(entry++, base + words);
+            }
+            if (!lines.get(i).startsWith("(")) {
+                words++;
+            }
+        }
+        while (entry < sourceMap.size()) {
+            sourceMap.setStart(entry++, base + words);
+        }
+        unitMapStart = sourceMap.size();
+    }
+
+    // Loads segment[index] into D
+    private void writeLoad(Segment segment, int index) {
+        switch (segment) {
+            case CONSTANT:
+                code.at(index);
+                code.append(D_IS_A);
+                break;
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (specializeIndex && index <= MAX_CHAINED_LOAD_INDEX) {
+                    writeChainedAddress(segment, index);
+                    code.append(D_IS_M);
+                    break;
+                }
+                code.append(BASE_LOAD[segment.ordinal()]);
+                code.at(index);
+                code.append(LOAD_INDEXED);
+                break;
+            case TEMP:
+                code.at(index + 5);
+                code.append(D_IS_M);
+                break;
+            case POINTER:
+                code.append(POINTER_LOAD[pointerIndex(index)]);
+                break;
+            case STATIC:
+                code.at(fileName, index);
+                code.append(D_IS_M);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid segment for push: " + segment.getVmName());
+        }
+    }
+
+    // Stores D into segment[index]; small indices walk the base with A=A+1 so D is kept
+    private void writeStore(Segment segment, int index) {
+        switch (segment) {
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (index <= MAX_CHAINED_INDEX) {
+                    if (specializeIndex) {
+                        writeChainedAddress(segment, index);
+                    } else {
+                        code.append(BASE_ADDRESS[segment.ordinal()]);
+                        code.repeat(NEXT_ADDRESS, index);
+                    }
+                    code.append(M_IS_D);
+                    break;
+                }
+                code.append(SAVE_D_R13);
+                code.append(BASE_LOAD[segment.ordinal()]);
+                code.at(index);
+                code.append(STORE_VIA_R14);
+                break;
+            case TEMP:
+                code.at(index + 5);
+                code.append(M_IS_D);
+                break;
+            case POINTER:
+                code.append(POINTER_STORE[pointerIndex(index)]);
+                break;
+            case STATIC:
+                code.at(fileName, index);
+                code.append(M_IS_D);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid segment for pop: " + segment.getVmName());
+        }
+    }
+
+    // Points A at segment[index], starting with A=M+1 for indices above 0
+    private void writeChainedAddress(Segment segment, int index) {
+        if (index == 0) {
+            code.append(BASE_ADDRESS[segment.ordinal()]);
+        } else {
+            code.append(BASE_NEXT_ADDRESS[segment.ordinal()]);
+            code.repeat(NEXT_ADDRESS, index - 1);
+        }
+    }
+
+    private void writeLoadR14(int value) {
+        if (value == 0) {
+            code.append(R14_ZERO);
+        } else if (value == 1) {
+            code.append(R14_ONE);
+        } else {
+            code.at(value);
+            code.append(R14_IS_D);
+        }
+    }
+
+    private static int pointerIndex(int index) {
+        if (index != 0 && index != 1) {
+            throw new IllegalArgumentException("Invalid index for pointer: " + index);
+        }
+        return index;
+    }
+
+    // Templates for common assembly code patterns, encoded into fragments once
+    private static String arithmeticTemplate1() {
         return "@SP\nAM=M-1\nD=M\nA=A-1\n";
     }
 
-    private String arithmeticTemplate2(String type) {
-        return "@SP\nAM=M-1\nD=M\nA=A-1\nD=M-D\n@FALSE" + arthJumpFlag + "\nD;" + type + "\n" +
-                "@SP\nA=M-1\nM=-1\n@CONTINUE" + arthJumpFlag + "\n0;JMP\n" +
-                "(FALSE" + arthJumpFlag + ")\n@SP\nA=M-1\nM=0\n(CONTINUE" + arthJumpFlag + ")\n";
+    private static String compareTemplate(String type) {
+        String trueLabel = "$$" + type + "_TRUE";
+        return "($$" + type + ")\n@R15\nM=D\n@SP\nAM=M-1\nD=M\nA=A-1\nD=M-D\nM=-1\n" +
+                "@" + trueLabel + "\nD;J" + type + "\n@SP\nA=M-1\nM=0\n" +
+                "(" + trueLabel + ")\n@R15\nA=M\n0;JMP\n";
     }
 
-    private String pushTemplate1(String segment, int index, boolean isDirect) {
+    private static String pushTemplate1(String segment, int index, boolean isDirect) {
         String noPointerCode = isDirect ? "" : "@" + index + "\nA=D+A\nD=M\n";
         return "@" + segment + "\nD=M\n" + noPointerCode + "@SP\nA=M\nM=D\n@SP\nM=M+1\n";
     }
 
-    private String popTemplate1(String segment, int index, boolean isDirect) {
+    private static String pointerRegister(int index) {
+        if (index == 0) {
+            return "THIS";
+        } else if (index == 1) {
+            return "THAT";
+        } else {
+            throw new IllegalArgumentException("Invalid index for pointer: " + index);
+        }
+    }
+
+    private static String popTemplate1(String segment, int index, boolean isDirect) {
         String noPointerCode = isDirect ? "D=A\n" : "D=M\n@" + index + "\nD=D+A\n";
         return "@" + segment + "\n" + noPointerCode + "@R13\nM=D\n@SP\nAM=M-1\nD=M\n@R13\nA=M\nM=D\n";
     }
 
-    private String returnTemplate() {
+    private static String returnTemplate() {
         return "@LCL\nD=M\n@R11\nM=D\n@5\nA=D-A\nD=M\n@R12\nM=D\n" +
                 popTemplate1("ARG", 0, false) +
                 "@ARG\nD=M\n@SP\nM=D+1\n" +
@@ -300,7 +1346,39 @@ public class ASMWriter {
                 "@R12\nA=M\n0;JMP\n";
     }
 
-    private String preFrameTemplate(String position) {
+    // Return from a frame whose THIS and THAT slots were not written
+    private static String leanReturnTemplate() {
+        return "@LCL\nD=M\n@R11\nM=D\n@5\nA=D-A\nD=M\n@R12\nM=D\n" +
+                popTemplate1("ARG", 0, false) +
+                "@ARG\nD=M\n@SP\nM=D+1\n" +
+                "@3\nD=A\n@R11\nAM=M-D\nD=M\n@ARG\nM=D\n" +
+                preFrameTemplate("LCL") +
+                "@R12\nA=M\n0;JMP\n";
+    }
+
+    private static String callTemplate() {
+        return "@SP\nA=M\nM=D\n" +
+                frameSaveTemplate("LCL") +
+                frameSaveTemplate("ARG") +
+                frameSaveTemplate("THIS") +
+                frameSaveTemplate("THAT") +
+                "@SP\nMD=M+1\n@LCL\nM=D\n@R14\nD=D-M\n@5\nD=D-A\n@ARG\nM=D\n" +
+                "@R13\nA=M\n0;JMP\n";
+    }
+
+    // Pushes 2 * D zeros, one more when entered at $$LOCALS_ODD, and returns to R15
+    private static String localsTemplate() {
+        return "(" + SHARED_LOCALS_ODD + ")\n@SP\nAM=M+1\nA=A-1\nM=0\n" +
+                "(" + SHARED_LOCALS + ")\n@SP\nM=M+1\nAM=M+1\nA=A-1\nM=0\nA=A-1\nM=0\n" +
+                "D=D-1\n@" + SHARED_LOCALS + "\nD;JGT\n" +
+                "@R15\nA=M\n0;JMP\n";
+    }
+
+    private static String frameSaveTemplate(String segment) {
+        return "@" + segment + "\nD=M\n@SP\nAM=M+1\nM=D\n";
+    }
+
+    private static String preFrameTemplate(String position) {
         return "@R11\nD=M-1\nAM=D\nD=M\n@" + position + "\nM=D\n";
     }
-}
\ No newline at end of file
+}
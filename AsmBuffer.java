@@ -0,0 +1,400 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Byte buffer for generated assembly code. Code is appended as pre-encoded
+ * fragments of whole lines, symbol names copied char by char and ASCII
+ * digits, so appending creates no objects. A buffer either writes to a
+ * FileChannel or Writer whenever it fills up, or, without a target, grows
+ * and keeps all code in memory. ROM words are counted as lines are appended.
+ */
+public class AsmBuffer {
+    private static final int DEFAULT_CHUNK = 1 << 18;
+    private static final int DEFAULT_CAPACITY = 1 << 12;
+
+    /**
+     * Pre-encoded lines of assembly with their number of ROM words
+     */
+    public static final class Fragment {
+        private final byte[] bytes;
+        private final int words;
+
+        private Fragment(String code) {
+            bytes = code.getBytes(StandardCharsets.ISO_8859_1);
+            int lines = 0;
+            int labels = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    lines++;
+                }
+                if (bytes[i] == '(' && (i == 0 || bytes[i - 1] == '\n')) {
+                    labels++;
+                }
+            }
+            words = lines - labels;
+        }
+    }
+
+    /**
+     * Encodes lines of assembly, each ending with a newline, into a fragment
+     *
+     * @param code Assembly code
+     * @return Fragment
+     */
+    public static Fragment fragment(String code) {
+        if (!code.isEmpty() && !code.endsWith("\n")) {
+            throw new IllegalArgumentException("Fragment must consist of whole lines: " + code);
+        }
+        return new Fragment(code);
+    }
+
+    private ByteBuffer buffer;
+    private final FileChannel channel;
+    private final Writer writer;
+    private char[] chars;
+    private int romSize;
+
+    /**
+     * Creates a buffer that keeps all code in memory
+     */
+    public AsmBuffer() {
+        buffer = ByteBuffer.allocate(DEFAULT_CAPACITY);
+        channel = null;
+        writer = null;
+    }
+
+    /**
+     * Creates a buffer that writes full chunks to a file channel
+     *
+     * @param channel Output channel
+     */
+    public AsmBuffer(FileChannel channel) {
+        buffer = ByteBuffer.allocateDirect(DEFAULT_CHUNK);
+        this.channel = channel;
+        writer = null;
+    }
+
+    /**
+     * Creates a buffer that writes full chunks to a Writer as ISO-8859-1 chars
+     *
+     * @param writer Output writer
+     */
+    public AsmBuffer(Writer writer) {
+        buffer = ByteBuffer.allocate(DEFAULT_CHUNK);
+        channel = null;
+        this.writer = writer;
+        chars = new char[DEFAULT_CHUNK];
+    }
+
+    public int getRomSize() {
+        return romSize;
+    }
+
+    /**
+     * Returns the backing array of an in-memory buffer, holding the code
+     * from index 0 up to size()
+     *
+     * @return Code bytes
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * Returns the number of bytes held in the buffer
+     *
+     * @return Buffered bytes
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Appends a fragment
+     *
+     * @param fragment Pre-encoded lines
+     */
+    public void append(Fragment fragment) {
+        ensure(fragment.bytes.length);
+        buffer.put(fragment.bytes);
+        romSize += fragment.words;
+    }
+
+    /**
+     * Appends a fragment a number of times
+     *
+     * @param fragment Pre-encoded lines
+     * @param times    Number of copies
+     */
+    public void repeat(Fragment fragment, int times) {
+        for (int i = 0; i < times; i++) {
+            append(fragment);
+        }
+    }
+
+    /**
+     * Appends an A-instruction loading a symbol: {@code @name}
+     *
+     * @param name Symbol
+     */
+    public void at(String name) {
+        ensure(name.length() + 2);
+        buffer.put((byte) '@');
+        putChars(name);
+        buffer.put((byte) '\n');
+        romSize++;
+    }
+
+    /**
+     * Appends an A-instruction loading a number: {@code @value}
+     *
+     * @param value Non-negative number
+     */
+    public void at(int value) {
+        ensure(12);
+        buffer.put((byte) '@');
+        putDigits(value);
+        buffer.put((byte) '\n');
+        romSize++;
+    }
+
+    /**
+     * Appends an A-instruction loading a numbered symbol: {@code @namevalue}
+     *
+     * @param name  Symbol prefix
+     * @param value Non-negative number
+     */
+    public void at(String name, int value) {
+        ensure(name.length() + 12);
+        buffer.put((byte) '@');
+        putChars(name);
+        putDigits(value);
+        buffer.put((byte) '\n');
+        romSize++;
+    }
+
+    /**
+     * Appends an A-instruction loading a generated label, see label(String, String, int)
+     *
+     * @param scope  File name prefix, or empty
+     * @param kind   Label kind
+     * @param number Label number
+     */
+    public void at(String scope, String kind, int number) {
+        ensure(scope.length() + kind.length() + 13);
+        buffer.put((byte) '@');
+        putLabel(scope, kind, number);
+        buffer.put((byte) '\n');
+        romSize++;
+    }
+
+    /**
+     * Appends a label declaration: {@code (name)}
+     *
+     * @param name Label
+     */
+    public void label(String name) {
+        ensure(name.length() + 3);
+        buffer.put((byte) '(');
+        putChars(name);
+        buffer.put((byte) ')');
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Appends the declaration of a generated label: {@code (scope$kindnumber)},
+     * or {@code (kindnumber)} when the scope is empty
+     *
+     * @param scope  File name prefix, or empty
+     * @param kind   Label kind
+     * @param number Label number
+     */
+    public void label(String scope, String kind, int number) {
+        ensure(scope.length() + kind.length() + 14);
+        buffer.put((byte) '(');
+        putLabel(scope, kind, number);
+        buffer.put((byte) ')');
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Appends one line given as a String, without its newline
+     *
+     * @param line Instruction or label
+     */
+    public void line(String line) {
+        ensure(line.length() + 1);
+        putChars(line);
+        buffer.put((byte) '\n');
+        if (!line.startsWith("(")) {
+            romSize++;
+        }
+    }
+
+    /**
+     * Appends all code held by an in-memory buffer
+     *
+     * @param other Buffer without output target
+     */
+    public void append(AsmBuffer other) {
+        ByteBuffer source = other.buffer.duplicate();
+        source.flip();
+        while (source.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                ensure(Math.min(source.remaining(), DEFAULT_CHUNK));
+            }
+            int n = Math.min(source.remaining(), buffer.remaining());
+            ByteBuffer part = source.slice();
+            part.limit(n);
+            buffer.put(part);
+            source.position(source.position() + n);
+        }
+        romSize += other.romSize;
+    }
+
+    /**
+     * Appends code saved from another buffer, e.g. a unit read from the
+     * translation cache
+     *
+     * @param code   Code bytes, whole lines
+     * @param length Number of bytes to append
+     * @param words  Number of ROM words in the code
+     */
+    public void append(byte[] code, int length, int words) {
+        int at = 0;
+        while (at < length) {
+            if (!buffer.hasRemaining()) {
+                ensure(Math.min(length - at, DEFAULT_CHUNK));
+            }
+            int n = Math.min(length - at, buffer.remaining());
+            buffer.put(code, at, n);
+            at += n;
+        }
+        romSize += words;
+    }
+
+    /**
+     * Splits the code appended since the last clear into lines and clears it.
+     * Used by the peephole optimizer, which works on lines.
+     *
+     * @return Assembly lines without newlines
+     */
+    public ArrayList<String> takeLines() {
+        ArrayList<String> lines = new ArrayList<>();
+        byte[] bytes = buffer.array();
+        int start = 0;
+        for (int i = 0; i < buffer.position(); i++) {
+            if (bytes[i] == '\n') {
+                lines.add(new String(bytes, start, i - start, StandardCharsets.ISO_8859_1));
+                start = i + 1;
+            }
+        }
+        buffer.clear();
+        romSize = 0;
+        return lines;
+    }
+
+    /**
+     * Writes buffered code to the output target. A buffer without target
+     * keeps its code.
+     */
+    public void flush() {
+        if (channel == null && writer == null) {
+            return;
+        }
+        buffer.flip();
+        try {
+            if (channel != null) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } else if (writer != null) {
+                int n = buffer.remaining();
+                for (int i = 0; i < n; i++) {
+                    chars[i] = (char) (buffer.get(i) & 0xFF);
+                }
+                writer.write(chars, 0, n);
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes the buffered code and closes the output target
+     */
+    public void close() {
+        flush();
+        try {
+            if (channel != null) {
+                channel.close();
+            } else if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Makes room for a number of bytes, flushing to the target or growing
+     */
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        if (channel != null || writer != null) {
+            flush();
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < bytes) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+        if (chars != null) {
+            chars = new char[capacity];
+        }
+    }
+
+    private void putLabel(String scope, String kind, int number) {
+        if (!scope.isEmpty()) {
+            putChars(scope);
+            buffer.put((byte) '$');
+        }
+        putChars(kind);
+        putDigits(number);
+    }
+
+    private void putChars(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    // Writes the decimal digits of a non-negative number, most significant first
+    private void putDigits(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative number in assembly: " + value);
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+}
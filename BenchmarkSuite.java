@@ -0,0 +1,309 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Benchmark suite for the translation pipeline, measuring the parsers, the
+ * code generator per command type and whole translations separately.
+ * Every benchmark runs in warmup and measurement iterations of fixed length,
+ * JMH style, and reports throughput together with the bytes allocated per
+ * operation and the GC runs and time during measurement. Results can be
+ * saved as CSV and compared with an earlier run.
+ */
+public class BenchmarkSuite {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 200_000_000L;
+
+    // Commands written per call of an emit benchmark
+    private static final int EMIT_BATCH = 1000;
+
+    // Files of the synthetic program
+    private static final int SYNTHETIC_FILES = 100;
+
+    // Test programs, relative to the project directory
+    private static final String[] PROGRAMS = { "Test_Files/BasicLoop", "FibonacciElement", "NestedCall", "StaticsTest" };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Receives benchmark results so the work cannot be optimized away
+    private static volatile long sink;
+
+    /**
+     * Result of one benchmark
+     */
+    private static final class Result {
+        private final String name;
+        private final double opsPerSecond;
+        private final double bytesPerOp;
+        private final long gcCount;
+        private final long gcMillis;
+
+        private Result(String name, double opsPerSecond, double bytesPerOp, long gcCount, long gcMillis) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+    }
+
+    private final String filter;
+    private final ArrayList<Result> results = new ArrayList<>();
+
+    private BenchmarkSuite(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Runs one benchmark. The body performs some operations per call and
+     * returns how many, e.g. the number of VM commands it parsed.
+     *
+     * @param name Benchmark name
+     * @param unit Name of one operation, for the report
+     * @param body Benchmark body
+     */
+    private void run(String name, String unit, LongSupplier body) {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(body);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long ops = 0;
+        long nanos = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            ops += iterate(body);
+            nanos += System.nanoTime() - start;
+        }
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+
+        Result result = new Result(name + " (" + unit + ")", ops * 1e9 / nanos, (double) allocated / ops,
+                gcCount() - gcCount, gcMillis() - gcMillis);
+        results.add(result);
+        System.out.printf("%-44s %14.1f ops/s %12.1f B/op %5d gc %6d ms%n", result.name, result.opsPerSecond,
+                result.bytesPerOp, result.gcCount, result.gcMillis);
+    }
+
+    // Calls the body until one iteration time has passed
+    private static long iterate(LongSupplier body) {
+        long ops = 0;
+        long end = System.nanoTime() + ITERATION_NANOS;
+        do {
+            ops += body.getAsLong();
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Parse rate of both parsers, in VM commands
+     */
+    private void parseBenchmarks(String name, List<File> vmFiles) {
+        run("parse.scanner." + name, "command", () -> {
+            long commands = 0;
+            for (File f : vmFiles) {
+                commands += VMCode.parse(f, new SymbolTable()).size();
+            }
+            return commands;
+        });
+        run("parse.lexer." + name, "command", () -> {
+            long commands = 0;
+            for (File f : vmFiles) {
+                commands += VMLexer.parse(f, new SymbolTable()).size();
+            }
+            return commands;
+        });
+    }
+
+    /**
+     * Emit rate of the code generator per command type, in VM commands.
+     * Each benchmark keeps one writer whose output is discarded.
+     */
+    private void emitBenchmarks() {
+        for (Segment segment : Segment.values()) {
+            int index = (segment == Segment.POINTER) ? 1 : 3;
+            emit("emit.push." + segment.getVmName(), w -> w.writePushPop(Opcode.PUSH, segment, index));
+            if (segment != Segment.CONSTANT) {
+                emit("emit.pop." + segment.getVmName(), w -> w.writePushPop(Opcode.POP, segment, index));
+            }
+        }
+        for (Opcode op : Opcode.values()) {
+            if (op.isArithmetic()) {
+                emit("emit.arithmetic." + op.getVmName(), w -> w.writeArithmetic(op));
+            }
+        }
+        emit("emit.label", w -> w.writeLabel("Main.loop$WHILE_EXP0"));
+        emit("emit.if-goto", w -> w.writeIf("Main.loop$WHILE_END0"));
+        emit("emit.function", w -> w.writeFunction("Main.fibonacci", 2));
+        emit("emit.call", w -> w.writeCall("Main.fibonacci", 1));
+        emit("emit.return", ASMWriter::writeReturn);
+    }
+
+    private interface Command {
+        void write(ASMWriter writer);
+    }
+
+    private void emit(String name, Command command) {
+        ASMWriter writer = new ASMWriter(Writer.nullWriter());
+        writer.setFileName("Main.vm");
+        run(name, "command", () -> {
+            for (int i = 0; i < EMIT_BATCH; i++) {
+                command.write(writer);
+            }
+            return EMIT_BATCH;
+        });
+    }
+
+    /**
+     * Whole translations of a program, parsing included, in programs
+     */
+    private void translateBenchmarks(String name, ArrayList<File> vmFiles) {
+        String[][] optionSets = { {}, { "-O1", "-cache-tos", "-fold", "-fuse-branches" } };
+        for (String[] args : optionSets) {
+            TranslatorOptions options = TranslatorOptions.parse(args);
+            options.setThreads(1);
+            String suffix = (args.length == 0) ? "" : ".optimized";
+            run("translate." + name + suffix, "program", () -> {
+                ASMWriter writer = new ASMWriter(Writer.nullWriter());
+                VMTranslator.translateProgram(vmFiles, options, writer, null);
+                sink += writer.getRomSize();
+                return 1;
+            });
+        }
+    }
+
+    /**
+     * Writes the results as CSV
+     *
+     * @param file Output file
+     */
+    private void writeCsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("benchmark,ops_per_second,bytes_per_op,gc_count,gc_ms");
+            for (Result r : results) {
+                out.println(r.name + "," + r.opsPerSecond + "," + r.bytesPerOp + "," + r.gcCount + "," + r.gcMillis);
+            }
+        }
+    }
+
+    /**
+     * Prints the change of throughput and allocation against an earlier CSV
+     *
+     * @param file CSV written by an earlier run
+     */
+    private void compare(File file) throws IOException {
+        HashMap<String, double[]> baseline = new HashMap<>();
+        List<String> lines = Files.readAllLines(file.toPath());
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            baseline.put(fields[0], new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) });
+        }
+
+        System.out.println();
+        System.out.println("Compared with " + file + ":");
+        for (Result r : results) {
+            double[] before = baseline.get(r.name);
+            if (before == null) {
+                System.out.printf("%-44s %10s%n", r.name, "new");
+                continue;
+            }
+            System.out.printf("%-44s %+9.1f%% ops/s %+12.1f B/op%n", r.name,
+                    (r.opsPerSecond / before[0] - 1) * 100, r.bytesPerOp - before[1]);
+        }
+    }
+
+    /**
+     * Usage: java BenchmarkSuite [-filter=TEXT] [-root=DIR] [-csv=FILE] [-baseline=FILE]
+     *
+     * @param args Options: only run benchmarks whose name contains TEXT, the
+     *             directory holding the test programs, where to save results
+     *             and an earlier result file to compare with
+     */
+    public static void main(String[] args) throws IOException {
+        String filter = null;
+        File root = new File(".");
+        File csv = null;
+        File baseline = null;
+        for (String arg : args) {
+            if (arg.startsWith("-filter=")) {
+                filter = arg.substring("-filter=".length());
+            } else if (arg.startsWith("-root=")) {
+                root = new File(arg.substring("-root=".length()));
+            } else if (arg.startsWith("-csv=")) {
+                csv = new File(arg.substring("-csv=".length()));
+            } else if (arg.startsWith("-baseline=")) {
+                baseline = new File(arg.substring("-baseline=".length()));
+            } else {
+                System.out.println("Usage: java BenchmarkSuite [-filter=TEXT] [-root=DIR] [-csv=FILE] [-baseline=FILE]");
+                return;
+            }
+        }
+
+        BenchmarkSuite suite = new BenchmarkSuite(filter);
+        File synthetic = Files.createTempDirectory("vmbench").toFile();
+        try {
+            SyntheticProgram.generate(synthetic, SYNTHETIC_FILES, SyntheticProgram.DEFAULT_FUNCTIONS);
+            ArrayList<String> names = new ArrayList<>();
+            ArrayList<ArrayList<File>> programs = new ArrayList<>();
+            for (String program : PROGRAMS) {
+                File input = new File(root, program);
+                if (!input.exists()) {
+                    System.err.println("Skipping missing test program: " + input);
+                    continue;
+                }
+                names.add(input.getName().replace(".vm", ""));
+                programs.add(VMTranslator.processInput(input));
+            }
+            names.add("Synthetic");
+            programs.add(VMTranslator.getVMFiles(synthetic));
+
+            for (int i = 0; i < programs.size(); i++) {
+                suite.parseBenchmarks(names.get(i), programs.get(i));
+            }
+            suite.emitBenchmarks();
+            for (int i = 0; i < programs.size(); i++) {
+                suite.translateBenchmarks(names.get(i), programs.get(i));
+            }
+        } finally {
+            SyntheticProgram.delete(synthetic);
+        }
+
+        if (csv != null) {
+            suite.writeCsv(csv);
+        }
+        if (baseline != null) {
+            suite.compare(baseline);
+        }
+    }
+}
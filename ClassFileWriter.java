@@ -0,0 +1,384 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Writes a minimal class file: the constant pool, and methods given as
+ * bytecode. Branch targets are recorded as StackMapTable frames that repeat
+ * the method's entry state, so a method may only branch where its locals
+ * are still its parameters and its operand stack is empty. That is all the
+ * HackRecompiler needs: its block methods are straight-line code and only
+ * its dispatch method branches.
+ */
+public class ClassFileWriter {
+    // Java 8 class files, the first that must carry StackMapTable frames
+    private static final int MAJOR_VERSION = 52;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // Opcodes used by the generated code
+    public static final int ICONST_M1 = 0x02;
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int ILOAD_0 = 0x1a;
+    public static final int ALOAD_0 = 0x2a;
+    public static final int IALOAD = 0x2e;
+    public static final int ISTORE = 0x36;
+    public static final int ISTORE_0 = 0x3b;
+    public static final int IASTORE = 0x4f;
+    public static final int IADD = 0x60;
+    public static final int IAND = 0x7e;
+    public static final int IXOR = 0x82;
+    public static final int I2S = 0x93;
+    public static final int LOOKUPSWITCH = 0xab;
+    public static final int IRETURN = 0xac;
+    public static final int RETURN = 0xb1;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount;
+
+    private final String name;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    /**
+     * Bytecode of one method
+     */
+    public static final class Code {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final TreeSet<Integer> frames = new TreeSet<>();
+
+        public int position() {
+            return bytes.size();
+        }
+
+        public void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        public void u1(int value) {
+            bytes.write(value);
+        }
+
+        public void u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+        }
+
+        public void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        /**
+         * Marks the current position as a branch target with the method's entry state
+         */
+        public void frame() {
+            frames.add(position());
+        }
+
+        public void iload(int local) {
+            local(ILOAD, ILOAD_0, local);
+        }
+
+        public void istore(int local) {
+            local(ISTORE, ISTORE_0, local);
+        }
+
+        public void aload(int local) {
+            local(ALOAD, ALOAD_0, local);
+        }
+
+        // Uses the one-byte form, e.g. iload_2, for locals 0 to 3
+        private void local(int opcode, int firstShortForm, int local) {
+            if (local <= 3) {
+                op(firstShortForm + local);
+            } else {
+                op(opcode);
+                u1(local);
+            }
+        }
+    }
+
+    /**
+     * Starts a class
+     *
+     * @param name       Internal name of the class
+     * @param superName  Internal name of the superclass
+     * @param interfaces Internal names of the implemented interfaces
+     */
+    public ClassFileWriter(String name, String superName, String... interfaces) {
+        this.name = name;
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        this.interfaces = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            this.interfaces[i] = classRef(interfaces[i]);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Pushes an int constant with the shortest instruction
+     *
+     * @param code  Method bytecode
+     * @param value Constant
+     */
+    public void pushInt(Code code, int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op(SIPUSH);
+            code.u2(value);
+        } else {
+            code.op(LDC_W);
+            code.u2(integer(value));
+        }
+    }
+
+    /**
+     * Calls a static method
+     *
+     * @param code       Method bytecode
+     * @param owner      Internal name of the class declaring the method
+     * @param method     Method name
+     * @param descriptor Method descriptor
+     */
+    public void invokeStatic(Code code, String owner, String method, String descriptor) {
+        code.op(INVOKESTATIC);
+        code.u2(methodRef(owner, method, descriptor));
+    }
+
+    /**
+     * Adds a constructor that only calls the superclass constructor
+     *
+     * @param superName Internal name of the superclass
+     */
+    public void addDefaultConstructor(String superName) {
+        Code code = new Code();
+        code.aload(0);
+        code.op(INVOKESPECIAL);
+        code.u2(methodRef(superName, "<init>", "()V"));
+        code.op(RETURN);
+        addMethod(ACC_PUBLIC, "<init>", "()V", code, 1, 1);
+    }
+
+    /**
+     * Adds a method
+     *
+     * @param access     Access flags
+     * @param method     Method name
+     * @param descriptor Method descriptor
+     * @param code       Bytecode
+     * @param maxStack   Largest operand stack depth
+     * @param maxLocals  Number of local variable slots, parameters included
+     */
+    public void addMethod(int access, String method, String descriptor, Code code, int maxStack, int maxLocals) {
+        if (code.position() >= 65536) {
+            throw new IllegalArgumentException("Method too large: " + method);
+        }
+        try {
+            byte[] stackMap = stackMapTable(code);
+            methods.writeShort(access);
+            methods.writeShort(utf8(method));
+            methods.writeShort(utf8(descriptor));
+            methods.writeShort(1);
+            methods.writeShort(utf8("Code"));
+            int attributesLength = (stackMap.length > 0) ? 6 + stackMap.length : 0;
+            methods.writeInt(12 + code.position() + attributesLength);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(code.position());
+            code.bytes.writeTo(methods);
+            methods.writeShort(0); // No exception handlers
+            if (stackMap.length > 0) {
+                methods.writeShort(1);
+                methods.writeShort(utf8("StackMapTable"));
+                methods.writeInt(stackMap.length);
+                methods.write(stackMap);
+            } else {
+                methods.writeShort(0);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    // One same_frame or same_frame_extended entry per branch target
+    private static byte[] stackMapTable(Code code) {
+        if (code.frames.isEmpty()) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(code.frames.size());
+            int previous = -1;
+            for (int offset : code.frames) {
+                int delta = offset - previous - 1;
+                if (delta < 64) {
+                    out.writeByte(delta);
+                } else {
+                    out.writeByte(251);
+                    out.writeShort(delta);
+                }
+                previous = offset;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the class file
+     *
+     * @return Class file bytes
+     */
+    public byte[] toByteArray() {
+        if (poolCount >= 65536) {
+            throw new IllegalArgumentException("Constant pool too large: " + name);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // No fields
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0); // No class attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Constant pool entries, each added once
+
+    private int utf8(String value) {
+        Integer index = poolIndex.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry("U" + value);
+    }
+
+    private int integer(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry("I" + value);
+    }
+
+    private int classRef(String className) {
+        Integer index = poolIndex.get("C" + className);
+        if (index != null) {
+            return index;
+        }
+        int nameIndex = utf8(className);
+        try {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(nameIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry("C" + className);
+    }
+
+    private int methodRef(String owner, String method, String descriptor) {
+        String key = "M" + owner + "." + method + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(method, descriptor);
+        try {
+            pool.writeByte(CONSTANT_METHODREF);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry(key);
+    }
+
+    private int nameAndType(String member, String descriptor) {
+        String key = "N" + member + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        int memberIndex = utf8(member);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(memberIndex);
+            pool.writeShort(descriptorIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry(key);
+    }
+
+    private int addEntry(String key) {
+        int index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+}
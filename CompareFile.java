@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the expected results of a CPU emulator compare file (.cmp): a header
+ * row naming RAM addresses and a row with their values, as in
+ * {@code | RAM[0] |RAM[256]|} followed by {@code |    257 |      6 |}.
+ */
+public class CompareFile {
+    private static final Pattern ramReg = Pattern.compile("RAM\\[(\\d+)\\]");
+
+    private final ArrayList<Integer> addresses = new ArrayList<>();
+    private final ArrayList<Integer> values = new ArrayList<>();
+
+    /**
+     * Parses a compare file. Only the first row of values is read.
+     *
+     * @param cmp Compare file
+     * @throws FileNotFoundException If the file is not found
+     */
+    public CompareFile(File cmp) throws FileNotFoundException {
+        Scanner scanner = new Scanner(cmp);
+        if (scanner.hasNextLine()) {
+            Matcher header = ramReg.matcher(scanner.nextLine());
+            while (header.find()) {
+                addresses.add(Integer.parseInt(header.group(1)));
+            }
+        }
+        if (scanner.hasNextLine()) {
+            for (String cell : scanner.nextLine().split("\\|")) {
+                if (!cell.isBlank()) {
+                    values.add(Integer.parseInt(cell.trim()));
+                }
+            }
+        }
+        scanner.close();
+
+        if (addresses.isEmpty() || addresses.size() != values.size()) {
+            throw new IllegalArgumentException("Invalid compare file: " + cmp.getName());
+        }
+    }
+
+    /**
+     * Compares the expected values with the RAM of an emulator
+     *
+     * @param emu Emulator after running the program
+     * @return One message per mismatching address, empty if all match
+     */
+    public ArrayList<String> check(HackMachine emu) {
+        ArrayList<String> mismatches = new ArrayList<>();
+        for (int i = 0; i < addresses.size(); i++) {
+            int actual = emu.getRam(addresses.get(i));
+            if (actual != values.get(i)) {
+                mismatches.add("RAM[" + addresses.get(i) + "]: expected " + values.get(i) + ", got " + actual);
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Returns the RAM addresses in the header row
+     *
+     * @return RAM addresses in column order
+     */
+    public ArrayList<Integer> getAddresses() {
+        return addresses;
+    }
+}
@@ -0,0 +1,860 @@
+@256
+D=A
+@SP
+M=D
+@RETURN_LABEL0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@0
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Sys.init
+0;JMP
+(RETURN_LABEL0)
+(Sys.init)
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@1234
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@0
+D=D+A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@5
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=-M
+@Sys.vm0
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=!M
+@Sys.vm1
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@32767
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D+M
+@Sys.vm2
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@3
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@10
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M-D
+@Sys.vm3
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@12
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@10
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D&M
+@Sys.vm4
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@12
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@3
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D|M
+@Sys.vm5
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@7
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@7
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Sys.vm$FALSE0
+D;JNE
+@SP
+A=M-1
+M=-1
+@Sys.vm$CONTINUE0
+0;JMP
+(Sys.vm$FALSE0)
+@SP
+A=M-1
+M=0
+(Sys.vm$CONTINUE0)
+@Sys.vm6
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@7
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@8
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Sys.vm$FALSE1
+D;JNE
+@SP
+A=M-1
+M=-1
+@Sys.vm$CONTINUE1
+0;JMP
+(Sys.vm$FALSE1)
+@SP
+A=M-1
+M=0
+(Sys.vm$CONTINUE1)
+@Sys.vm7
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@3
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@2
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Sys.vm$FALSE2
+D;JLE
+@SP
+A=M-1
+M=-1
+@Sys.vm$CONTINUE2
+0;JMP
+(Sys.vm$FALSE2)
+@SP
+A=M-1
+M=0
+(Sys.vm$CONTINUE2)
+@Sys.vm8
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@2
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@3
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Sys.vm$FALSE3
+D;JGE
+@SP
+A=M-1
+M=-1
+@Sys.vm$CONTINUE3
+0;JMP
+(Sys.vm$FALSE3)
+@SP
+A=M-1
+M=0
+(Sys.vm$CONTINUE3)
+@Sys.vm9
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@32767
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=-M
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Sys.vm$FALSE4
+D;JLE
+@SP
+A=M-1
+M=-1
+@Sys.vm$CONTINUE4
+0;JMP
+(Sys.vm$FALSE4)
+@SP
+A=M-1
+M=0
+(Sys.vm$CONTINUE4)
+@Sys.vm10
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@32767
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=!M
+@1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Sys.vm$FALSE5
+D;JGE
+@SP
+A=M-1
+M=-1
+@Sys.vm$CONTINUE5
+0;JMP
+(Sys.vm$FALSE5)
+@SP
+A=M-1
+M=0
+(Sys.vm$CONTINUE5)
+@Sys.vm11
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@2
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@3
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D+M
+@10
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M-D
+@SP
+A=M-1
+M=-M
+@Sys.vm12
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@32767
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=!M
+@SP
+A=M-1
+M=-M
+@Sys.vm13
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@32767
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=!M
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M-D
+@Sys.vm14
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@LCL
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D+M
+@Sys.vm15
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@LCL
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M-D
+@Sys.vm16
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@LCL
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D|M
+@Sys.vm17
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@LCL
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=-M
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D&M
+@Sys.vm18
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@LCL
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=!M
+@SP
+A=M-1
+M=!M
+@Sys.vm19
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@LCL
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M-1
+M=-M
+@SP
+A=M-1
+M=-M
+@Sys.vm20
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Sys.vm$FALSE6
+D;JNE
+@SP
+A=M-1
+M=-1
+@Sys.vm$CONTINUE6
+0;JMP
+(Sys.vm$FALSE6)
+@SP
+A=M-1
+M=0
+(Sys.vm$CONTINUE6)
+@SP
+AM=M-1
+D=M
+A=A-1
+@TAKEN
+D;JNE
+@111
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@Sys.vm21
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+(TAKEN)
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+@NOT_TAKEN
+D;JNE
+@222
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@Sys.vm22
+D=A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+(NOT_TAKEN)
+(END)
+@END
+0;JMP
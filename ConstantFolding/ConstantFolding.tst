@@ -0,0 +1,16 @@
+// Tests ConstantFolding.asm on the CPU emulator.
+// ConstantFolding.asm results from translating Sys.vm. Translating it
+// with -fold must give the same results: every constant expression is
+// then computed by the translator instead of the program.
+
+compare-to ConstantFolding.cmp,
+
+repeat 1000 {
+	ticktock;
+}
+
+// Outputs the stack pointer and the results, Sys.0 to Sys.22.
+output-list RAM[0]%D1.6.1 RAM[16]%D1.6.1 RAM[17]%D1.6.1 RAM[18]%D1.6.1 RAM[19]%D1.6.1 RAM[20]%D1.6.1 RAM[21]%D1.6.1 RAM[22]%D1.6.1
+            RAM[23]%D1.6.1 RAM[24]%D1.6.1 RAM[25]%D1.6.1 RAM[26]%D1.6.1 RAM[27]%D1.6.1 RAM[28]%D1.6.1 RAM[29]%D1.6.1 RAM[30]%D1.6.1
+            RAM[31]%D1.6.1 RAM[32]%D1.6.1 RAM[33]%D1.6.1 RAM[34]%D1.6.1 RAM[35]%D1.6.1 RAM[36]%D1.6.1 RAM[37]%D1.6.1 RAM[38]%D1.6.1;
+output;
@@ -0,0 +1,163 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Measures the latency of one translation request three ways: a cold
+ * VMTranslator process, a TranslatorClient process talking to a warm
+ * TranslatorDaemon, and a request sent to the daemon from an already
+ * running JVM, as a build tool would. The daemon is started as a child
+ * process on a private socket and stopped at the end. Also checks that
+ * the daemon writes the same output as the command line translator.
+ */
+public class DaemonBenchmark {
+    private static final int DEFAULT_FILES = 20;
+    private static final int DEFAULT_RUNS = 10;
+    private static final int WARMUP_REQUESTS = 20;
+    private static final long STARTUP_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Runs a command repeatedly and returns the wall time of each run
+     *
+     * @param runs    Number of runs
+     * @param command Command line of a child process
+     * @return Milliseconds per run
+     */
+    private static double[] timeProcess(int runs, ArrayList<String> command) throws IOException {
+        double[] millis = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try {
+                if (process.waitFor() != 0) {
+                    throw new IllegalStateException("Failed: " + String.join(" ", command));
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted");
+            }
+            millis[i] = (System.nanoTime() - start) / 1e6;
+        }
+        return millis;
+    }
+
+    private static ArrayList<String> javaCommand(String mainClass, String... args) {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    private static String[] concat(String[] first, String... second) {
+        String[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void report(String name, double[] millis) {
+        double[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (double m : millis) {
+            sum += m;
+        }
+        System.out.printf("%-28s %9.1f %9.1f %9.1f%n", name, sorted[0], sorted[sorted.length / 2],
+                sum / millis.length);
+    }
+
+    /**
+     * Usage: java DaemonBenchmark [input] [-runs=N] [translator options]
+     *
+     * @param args Program to translate (default: a synthetic program), runs
+     *             per measurement and options passed to the translator
+     */
+    public static void main(String[] args) throws IOException {
+        int runs = DEFAULT_RUNS;
+        String input = null;
+        ArrayList<String> options = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-runs=")) {
+                runs = Integer.parseInt(arg.substring("-runs=".length()));
+            } else if (!arg.startsWith("-") && input == null) {
+                input = new File(arg).getAbsolutePath();
+            } else {
+                options.add(arg);
+            }
+        }
+
+        File work = Files.createTempDirectory("vmdaemon").toFile();
+        Process daemon = null;
+        try {
+            if (input == null) {
+                File program = new File(work, "Synthetic");
+                program.mkdir();
+                SyntheticProgram.generate(program, DEFAULT_FILES, SyntheticProgram.DEFAULT_FUNCTIONS);
+                input = program.getPath();
+            }
+            String socket = new File(work, "daemon.sock").getPath();
+            SocketAddress address = TranslatorDaemon.address(socket, 0);
+            File cliOut = new File(work, "cli.out");
+            File daemonOut = new File(work, "daemon.out");
+            String[] cliArgs = concat(options.toArray(new String[0]), input, "-out=" + cliOut.getPath());
+            String[] daemonArgs = concat(options.toArray(new String[0]), input, "-out=" + daemonOut.getPath());
+
+            daemon = new ProcessBuilder(javaCommand("TranslatorDaemon", "-socket=" + socket))
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+            while (true) {
+                try {
+                    TranslatorDaemon.connect(address).close();
+                    break;
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline || !daemon.isAlive()) {
+                        throw new IllegalStateException("Translator daemon did not start");
+                    }
+                    Thread.onSpinWait();
+                }
+            }
+
+            double[] cold = timeProcess(runs, javaCommand("VMTranslator", cliArgs));
+            for (int i = 0; i < WARMUP_REQUESTS; i++) {
+                TranslatorClient.send(address, daemonArgs, null, null);
+            }
+            double[] client = timeProcess(runs,
+                    javaCommand("TranslatorClient", concat(new String[] { "-socket=" + socket }, daemonArgs)));
+            double[] warm = new double[runs];
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                if (TranslatorClient.send(address, daemonArgs, null, System.err) != 0) {
+                    throw new IllegalStateException("Daemon request failed");
+                }
+                warm[i] = (System.nanoTime() - start) / 1e6;
+            }
+
+            System.out.println("Translating " + input + " " + String.join(" ", options) + ", " + runs + " runs");
+            System.out.printf("%-28s %9s %9s %9s%n", "ms per request", "min", "median", "mean");
+            report("cold VMTranslator process", cold);
+            report("client process -> daemon", client);
+            report("in-process request -> daemon", warm);
+            System.out.println("Output identical: " +
+                    Arrays.equals(Files.readAllBytes(cliOut.toPath()), Files.readAllBytes(daemonOut.toPath())));
+
+            TranslatorClient.send(address, new String[] { TranslatorDaemon.STOP }, null, null);
+            daemon.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (daemon != null) {
+                daemon.destroy();
+            }
+            SyntheticProgram.delete(new File(work, "Synthetic"));
+            SyntheticProgram.delete(work);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Measures code generation alone: a SyntheticProgram is parsed once and then translated repeatedly to a
+ * file on one thread. Reports throughput and the bytes allocated by the
+ * translating thread per VM command.
+ */
+public class EmitterBenchmark {
+    private static final int DEFAULT_FILES = 200;
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 10;
+
+    /**
+     * Translates the parsed program once into the output file
+     *
+     * @return Size of the output in bytes
+     */
+    private static long translate(ArrayList<VMCode> program, SymbolTable symbols, TranslatorOptions options,
+            File out) {
+        ASMWriter writer = new ASMWriter(out);
+        options.configure(writer);
+        VMTranslator.translateVMFiles(program, symbols, writer, options);
+        writer.close();
+        return out.length();
+    }
+
+    /**
+     * Usage: java EmitterBenchmark [files] [translator options]
+     *
+     * @param args Number of files and translator options
+     */
+    public static void main(String[] args) throws IOException {
+        int files = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_FILES;
+        String[] optionArgs = new String[Math.max(0, args.length - 1)];
+        System.arraycopy(args, Math.min(1, args.length), optionArgs, 0, optionArgs.length);
+        TranslatorOptions options = TranslatorOptions.parse(optionArgs);
+        options.setThreads(1);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        File dir = Files.createTempDirectory("vmbench").toFile();
+        File out = new File(dir, "Out.asm");
+        try {
+            SyntheticProgram.generate(dir, files, SyntheticProgram.DEFAULT_FUNCTIONS);
+            SymbolTable symbols = new SymbolTable();
+            ArrayList<VMCode> program = VMTranslator.parseVMFiles(VMTranslator.getVMFiles(dir), symbols, options);
+            long commands = 0;
+            for (VMCode code : program) {
+                commands += code.size();
+            }
+
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                translate(program, symbols, options, out);
+            }
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long bytes = 0;
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                bytes = translate(program, symbols, options, out);
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / MEASURED_RUNS;
+            long allocated = (threads.getThreadAllocatedBytes(thread) - allocatedBefore) / MEASURED_RUNS;
+
+            System.out.println(commands + " VM commands, " + bytes + " bytes of assembly");
+            System.out.printf("%.1f ms/run, %.0f commands/ms, %.1f MB/s of output%n", ms, commands / ms,
+                    bytes / 1e3 / ms);
+            System.out.printf("Allocated %.1f MB/run, %.1f bytes per VM command%n", allocated / 1e6,
+                    (double) allocated / commands);
+        } finally {
+            SyntheticProgram.delete(dir);
+        }
+    }
+}
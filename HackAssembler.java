@@ -0,0 +1,295 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Two-pass assembler for HACK assembly. The first pass assigns ROM
+ * addresses to labels, the second encodes the instructions and allocates
+ * variables, such as the statics Foo.vm0, from RAM 16 in order of first use.
+ * Works directly on the bytes of the assembly code, so the translator's
+ * in-memory output can be assembled without writing an .asm file.
+ * Comments and white space are ignored as by the standard assembler.
+ */
+public class HackAssembler {
+    public static final int MAX_ADDRESS = 0x7FFF;
+    private static final int FIRST_VARIABLE = 16;
+
+    private static final String[] COMPS = {
+            "0", "101010", "1", "111111", "-1", "111010", "D", "001100", "A", "110000",
+            "!D", "001101", "!A", "110001", "-D", "001111", "-A", "110011", "D+1", "011111",
+            "A+1", "110111", "D-1", "001110", "A-1", "110010", "D+A", "000010", "D-A", "010011",
+            "A-D", "000111", "D&A", "000000", "D|A", "010101" };
+    private static final String[] JUMPS = { "", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+    private static final HashMap<String, Integer> compTable = new HashMap<>();
+
+    static {
+        for (int i = 0; i < COMPS.length; i += 2) {
+            int bits = Integer.parseInt(COMPS[i + 1], 2);
+            compTable.put(COMPS[i], bits);
+            if (COMPS[i].contains("A")) {
+                compTable.put(COMPS[i].replace('A', 'M'), bits | 0x40);
+            }
+        }
+        // Commutative spellings accepted by the standard assembler
+        compTable.put("A+D", compTable.get("D+A"));
+        compTable.put("M+D", compTable.get("D+M"));
+        compTable.put("A&D", compTable.get("D&A"));
+        compTable.put("M&D", compTable.get("D&M"));
+        compTable.put("A|D", compTable.get("D|A"));
+        compTable.put("M|D", compTable.get("D|M"));
+    }
+
+    private final byte[] source;
+    private final int length;
+    private byte[] line = new byte[64];
+    private final HashMap<String, Integer> symbols = predefinedSymbols();
+    // Encoded C-instructions by their text; programs repeat few distinct ones
+    private final HashMap<String, Integer> encoded = new HashMap<>();
+    private int pos;
+    private int lineLength;
+    private int lineNumber;
+
+    private HackAssembler(byte[] source, int length) {
+        this.source = source;
+        this.length = length;
+    }
+
+    /**
+     * Assembles HACK assembly held in a byte array
+     *
+     * @param source Assembly code as ISO-8859-1 bytes, lines ending with '\n'
+     * @param length Number of bytes to read
+     * @return Binary instructions, one per ROM address
+     */
+    public static int[] assemble(byte[] source, int length) {
+        return new HackAssembler(source, length).assemble();
+    }
+
+    /**
+     * Assembles lines of HACK assembly
+     *
+     * @param lines Assembly code, one instruction or label per entry
+     * @return Binary instructions, one per ROM address
+     */
+    public static int[] assemble(List<String> lines) {
+        byte[] source = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        return assemble(source, source.length);
+    }
+
+    /**
+     * Assembles the code held by an in-memory buffer
+     *
+     * @param code Buffer without output target
+     * @return Binary instructions, one per ROM address
+     */
+    public static int[] assemble(AsmBuffer code) {
+        return assemble(code.array(), code.size());
+    }
+
+    private int[] assemble() {
+        int address = 0;
+        while (nextLine()) {
+            if (line[0] == '(') {
+                if (lineLength < 3 || line[lineLength - 1] != ')') {
+                    throw error("Invalid label");
+                }
+                symbols.put(text(1, lineLength - 1), address);
+            } else {
+                address++;
+            }
+        }
+        if (address > HackEmulator.ROM_SIZE) {
+            throw new IllegalArgumentException("Program does not fit in ROM: " + address + " words");
+        }
+
+        int[] rom = new int[address];
+        int size = 0;
+        int nextVariable = FIRST_VARIABLE;
+        pos = 0;
+        lineNumber = 0;
+        while (nextLine()) {
+            if (line[0] == '(') {
+                continue;
+            }
+            if (line[0] != '@') {
+                rom[size++] = encodeC();
+                continue;
+            }
+            if (lineLength < 2) {
+                throw error("Missing address");
+            }
+
+            int value;
+            if (line[1] >= '0' && line[1] <= '9') {
+                value = 0;
+                for (int i = 1; i < lineLength; i++) {
+                    int digit = line[i] - '0';
+                    if (digit < 0 || digit > 9) {
+                        throw error("Invalid address: " + text(0, lineLength));
+                    }
+                    value = value * 10 + digit;
+                    if (value > MAX_ADDRESS) {
+                        throw error("Address out of range: " + text(0, lineLength));
+                    }
+                }
+            } else {
+                String symbol = text(1, lineLength);
+                Integer known = symbols.get(symbol);
+                if (known == null) {
+                    if (nextVariable > MAX_ADDRESS) {
+                        throw error("Out of variable space: " + symbol);
+                    }
+                    known = nextVariable++;
+                    symbols.put(symbol, known);
+                }
+                value = known;
+            }
+            rom[size++] = value;
+        }
+        return rom;
+    }
+
+    /**
+     * Copies the next line that holds an instruction or label into the line
+     * buffer, without white space and comments
+     *
+     * @return False at the end of the input
+     */
+    private boolean nextLine() {
+        while (pos < length) {
+            lineNumber++;
+            lineLength = 0;
+            while (pos < length && source[pos] != '\n') {
+                byte b = source[pos++];
+                if (b == '/' && pos < length && source[pos] == '/') {
+                    while (pos < length && source[pos] != '\n') {
+                        pos++;
+                    }
+                    break;
+                }
+                if (b != ' ' && b != '\t' && b != '\r') {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            pos++;
+            if (lineLength > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the C-instruction in the line buffer: dest=comp;jump
+     */
+    private int encodeC() {
+        String instruction = text(0, lineLength);
+        Integer known = encoded.get(instruction);
+        if (known != null) {
+            return known;
+        }
+
+        String comp = instruction;
+        int dest = 0;
+        int jump = 0;
+        int eq = comp.indexOf('=');
+        if (eq != -1) {
+            String d = comp.substring(0, eq);
+            dest = (d.contains("A") ? 4 : 0) | (d.contains("D") ? 2 : 0) | (d.contains("M") ? 1 : 0);
+            comp = comp.substring(eq + 1);
+        }
+        int semi = comp.indexOf(';');
+        if (semi != -1) {
+            String j = comp.substring(semi + 1);
+            jump = -1;
+            for (int i = 1; i < JUMPS.length; i++) {
+                if (JUMPS[i].equals(j)) {
+                    jump = i;
+                }
+            }
+            if (jump == -1) {
+                throw error("Invalid jump: " + instruction);
+            }
+            comp = comp.substring(0, semi);
+        }
+        Integer bits = compTable.get(comp);
+        if (bits == null) {
+            throw error("Invalid computation: " + instruction);
+        }
+
+        int code = 0xE000 | (bits << 6) | (dest << 3) | jump;
+        encoded.put(instruction, code);
+        return code;
+    }
+
+    private static HashMap<String, Integer> predefinedSymbols() {
+        HashMap<String, Integer> symbols = new HashMap<>();
+        symbols.put("SP", 0);
+        symbols.put("LCL", 1);
+        symbols.put("ARG", 2);
+        symbols.put("THIS", 3);
+        symbols.put("THAT", 4);
+        symbols.put("SCREEN", 16384);
+        symbols.put("KBD", 24576);
+        for (int i = 0; i < 16; i++) {
+            symbols.put("R" + i, i);
+        }
+        return symbols;
+    }
+
+    private String text(int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Line " + lineNumber + ": " + message);
+    }
+
+    /**
+     * Writes instructions as a .hack file: one line of 16 binary digits per word
+     *
+     * @param rom  Binary instructions
+     * @param file Output file
+     */
+    public static void writeHack(int[] rom, File file) {
+        byte[] text = new byte[rom.length * 17];
+        int at = 0;
+        for (int word : rom) {
+            for (int bit = 15; bit >= 0; bit--) {
+                text[at++] = (byte) (((word >> bit) & 1) != 0 ? '1' : '0');
+            }
+            text[at++] = '\n';
+        }
+        write(text, file);
+    }
+
+    /**
+     * Writes instructions as a raw ROM image: two bytes per word, big-endian
+     *
+     * @param rom  Binary instructions
+     * @param file Output file
+     */
+    public static void writeRom(int[] rom, File file) {
+        byte[] image = new byte[rom.length * 2];
+        for (int i = 0; i < rom.length; i++) {
+            image[2 * i] = (byte) (rom[i] >> 8);
+            image[2 * i + 1] = (byte) rom[i];
+        }
+        write(image, file);
+    }
+
+    private static void write(byte[] bytes, File file) {
+        try {
+            Files.write(file.toPath(), bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot write " + file.getName() + ": " + e.getMessage());
+        }
+    }
+}
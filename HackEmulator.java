@@ -0,0 +1,369 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Executes HACK assembly code and counts the cycles it takes.
+ * The program runs until it enters a halt loop (a jump to the instruction
+ * loading its own address), runs off the end of ROM or hits the cycle limit.
+ * Can be run on its own to execute an .asm file, dump RAM and check the
+ * results against a test script's compare file.
+ */
+public class HackEmulator implements HackMachine {
+    public static final int RAM_SIZE = 32768;
+    public static final int ROM_SIZE = 32768;
+    private static final long DEFAULT_MAX_CYCLES = 10_000_000L;
+    private static final int STACK_BASE = 256;
+
+    private final int[] rom;
+    private final int romSize;
+    private final int[] ram = new int[RAM_SIZE];
+    private long[] executionCounts;
+    private int a;
+    private int d;
+    private int pc;
+    private long cycles;
+    private boolean halted;
+
+    /**
+     * Loads a program given as assembly lines, resolving labels and variables
+     *
+     * @param lines Assembly code, one instruction or label per entry
+     */
+    public HackEmulator(List<String> lines) {
+        this(HackAssembler.assemble(lines));
+    }
+
+    /**
+     * Loads an assembled program
+     *
+     * @param program Binary instructions, one per ROM address
+     */
+    public HackEmulator(int[] program) {
+        if (program.length > ROM_SIZE) {
+            throw new IllegalArgumentException("Program does not fit in ROM: " + program.length + " words");
+        }
+        rom = new int[ROM_SIZE];
+        System.arraycopy(program, 0, rom, 0, program.length);
+        romSize = program.length;
+    }
+
+    /**
+     * Loads a program from an .asm file
+     *
+     * @param asm Assembly file
+     * @return Emulator with the program in ROM
+     */
+    public static HackEmulator load(File asm) {
+        try {
+            byte[] source = Files.readAllBytes(asm.toPath());
+            return new HackEmulator(HackAssembler.assemble(source, source.length));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + asm.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Enables counting how often each ROM address executes
+     */
+    public void enableExecutionCounts() {
+        executionCounts = new long[ROM_SIZE];
+    }
+
+    /**
+     * Runs the program until it halts or the cycle limit is reached
+     *
+     * @param maxCycles Cycle limit
+     * @return Number of cycles executed by this call
+     */
+    public long run(long maxCycles) {
+        long start = cycles;
+        long limit = cycles + maxCycles;
+
+        while (!halted && cycles < limit) {
+            step();
+        }
+
+        return cycles - start;
+    }
+
+    /**
+     * Executes one instruction, unless the program has halted
+     *
+     * @return False if the program has halted
+     */
+    public boolean step() {
+        if (halted) {
+            return false;
+        }
+        if (pc >= romSize) {
+            halted = true;
+            return false;
+        }
+        int ins = rom[pc];
+        cycles++;
+        if (executionCounts != null) {
+            executionCounts[pc]++;
+        }
+
+        if ((ins & 0x8000) == 0) {
+            a = ins;
+            pc++;
+            return true;
+        }
+
+        int out = alu(ins);
+        int address = a & 0x7FFF;
+        if ((ins & 0x08) != 0) {
+            ram[address] = out;
+        }
+        if ((ins & 0x10) != 0) {
+            d = out;
+        }
+        if ((ins & 0x20) != 0) {
+            a = out;
+        }
+
+        if (jumps(ins & 0x07, out)) {
+            if ((ins & 0x07) == 0x07 && address == pc - 1 && rom[address] == address) {
+                halted = true;
+            }
+            pc = address;
+        } else {
+            pc++;
+        }
+        return true;
+    }
+
+    private int alu(int ins) {
+        int x = d;
+        int y = ((ins & 0x1000) != 0) ? ram[a & 0x7FFF] : a;
+        if ((ins & 0x0800) != 0) {
+            x = 0;
+        }
+        if ((ins & 0x0400) != 0) {
+            x = ~x;
+        }
+        if ((ins & 0x0200) != 0) {
+            y = 0;
+        }
+        if ((ins & 0x0100) != 0) {
+            y = ~y;
+        }
+        int out = ((ins & 0x0080) != 0) ? x + y : x & y;
+        if ((ins & 0x0040) != 0) {
+            out = ~out;
+        }
+        return (short) out;
+    }
+
+    static boolean jumps(int jump, int out) {
+        return ((jump & 4) != 0 && out < 0) || ((jump & 2) != 0 && out == 0) || ((jump & 1) != 0 && out > 0);
+    }
+
+    public int getRam(int address) {
+        return ram[address];
+    }
+
+    public void setRam(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    int getA() {
+        return a;
+    }
+
+    int getD() {
+        return d;
+    }
+
+    /**
+     * Returns the RAM itself, for the HackRecompiler, which runs compiled
+     * code on it and steps this emulator where it has none
+     *
+     * @return RAM array
+     */
+    int[] ramArray() {
+        return ram;
+    }
+
+    /**
+     * Sets the registers, program counter and cycle count, e.g. to step one
+     * instruction from the state reached by compiled code
+     *
+     * @param a      A register
+     * @param d      D register
+     * @param pc     Program counter
+     * @param cycles Cycles executed so far
+     */
+    void setState(int a, int d, int pc, long cycles) {
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        this.cycles = cycles;
+    }
+
+    public int getRomSize() {
+        return romSize;
+    }
+
+    /**
+     * Returns the number of cycles spent at ROM addresses [from, to)
+     *
+     * @param from First address
+     * @param to   Address after the last one
+     * @return Executed cycles in the range
+     */
+    public long getCycles(int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += executionCounts[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Parses a RAM range given as FROM-TO, both inclusive, or a single address
+     *
+     * @param range   Range text
+     * @param dumpOut Receives the addresses
+     */
+    static void parseRange(String range, ArrayList<Integer> dumpOut) {
+        String[] bounds = range.split("-", 2);
+        int from;
+        int to;
+        try {
+            from = Integer.parseInt(bounds[0]);
+            to = (bounds.length > 1) ? Integer.parseInt(bounds[1]) : from;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid RAM range: " + range);
+        }
+        if (from < 0 || to >= RAM_SIZE || from > to) {
+            throw new IllegalArgumentException("Invalid RAM range: " + range);
+        }
+        for (int i = from; i <= to; i++) {
+            dumpOut.add(i);
+        }
+    }
+
+    private static String usage() {
+        return "Usage: java HackEmulator <file.asm> [-tst=FILE] [-cycles=N] [-dump=FROM-TO]...\n" +
+                "  -tst=FILE      Test script for RAM presets, cycle count, output list and compare file\n" +
+                "                 (default: <file>.tst next to the program, if present)\n" +
+                "  -cycles=N      Cycle limit (default: the script's repeat count, else " + DEFAULT_MAX_CYCLES + ")\n" +
+                "  -dump=FROM-TO  RAM range to print, may be repeated (default: the script's output list,\n" +
+                "                 else SP, LCL, ARG, THIS, THAT and the stack)";
+    }
+
+    /**
+     * Runs an assembled program until it halts or reaches the cycle limit,
+     * then prints the cycle count, a RAM dump and, if the test script names
+     * a compare file, whether the results match it. Exits with status 1 on
+     * a mismatch.
+     *
+     * @param args Program file and options, see usage()
+     */
+    public static void main(String[] args) {
+        File asm = null;
+        File tst = null;
+        long maxCycles = -1;
+        ArrayList<Integer> dump = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("-tst=")) {
+                    tst = new File(arg.substring("-tst=".length()));
+                } else if (arg.startsWith("-cycles=")) {
+                    maxCycles = Long.parseLong(arg.substring("-cycles=".length()));
+                } else if (arg.startsWith("-dump=")) {
+                    parseRange(arg.substring("-dump=".length()), dump);
+                } else if (!arg.startsWith("-") && asm == null) {
+                    asm = new File(arg);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid cycle count");
+            System.out.println(usage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.out.println(usage());
+            return;
+        }
+        if (asm == null) {
+            System.out.println(usage());
+            return;
+        }
+        if (tst == null) {
+            tst = TestScript.findFor(asm);
+        }
+
+        try {
+            HackEmulator emu = load(asm);
+            TestScript script = null;
+            if (tst != null) {
+                script = new TestScript(tst);
+                script.applyPresets(emu);
+            } else {
+                TestScript.applyDefaultPresets(emu);
+            }
+            if (maxCycles < 0) {
+                maxCycles = (script != null && script.getCycles() >= 0) ? script.getCycles() : DEFAULT_MAX_CYCLES;
+            }
+
+            emu.run(maxCycles);
+            System.out.println("Program: " + asm.getName() + " (" + emu.getRomSize() + " ROM words)" +
+                    ((script != null) ? ", test script " + tst.getName() : ""));
+            System.out.println("Cycles: " + emu.getCycles() + (emu.isHalted() ? " (halted)" : " (cycle limit reached)"));
+
+            if (dump.isEmpty()) {
+                if (script != null && !script.getOutputs().isEmpty()) {
+                    dump.addAll(script.getOutputs());
+                } else {
+                    for (int i = 0; i <= 4; i++) {
+                        dump.add(i); // SP, LCL, ARG, THIS, THAT
+                    }
+                    for (int i = STACK_BASE; i < emu.getRam(0) && i < RAM_SIZE; i++) {
+                        dump.add(i);
+                    }
+                }
+            }
+            for (int address : dump) {
+                System.out.println("RAM[" + address + "] = " + emu.getRam(address));
+            }
+
+            if (script != null && script.getCompareTo() != null && script.getCompareTo().isFile()) {
+                CompareFile cmp = new CompareFile(script.getCompareTo());
+                ArrayList<String> mismatches = cmp.check(emu);
+                for (String mismatch : mismatches) {
+                    System.err.println("Mismatch at " + mismatch);
+                }
+                System.out.println("Compared " + cmp.getAddresses().size() + " RAM locations with " +
+                        script.getCompareTo().getName() + ": " + (mismatches.isEmpty() ? "match" : "MISMATCH"));
+                if (!mismatches.isEmpty()) {
+                    System.exit(1);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * A machine running a HACK program: the HackEmulator, which interprets one
+ * instruction at a time, or the HackRecompiler, which runs the program as
+ * JVM bytecode. Both count cycles the same way, so test scripts and compare
+ * files work with either.
+ */
+public interface HackMachine {
+
+    /**
+     * Runs the program until it halts or the cycle limit is reached
+     *
+     * @param maxCycles Cycle limit
+     * @return Number of cycles executed by this call
+     */
+    long run(long maxCycles);
+
+    int getRam(int address);
+
+    void setRam(int address, int value);
+
+    long getCycles();
+
+    int getPc();
+
+    boolean isHalted();
+
+    int getRomSize();
+}
@@ -0,0 +1,631 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs HACK programs as JVM bytecode instead of interpreting them.
+ * The program is split into basic blocks, which start at address 0, after
+ * every jump and at every address loaded by an A-instruction (the labels
+ * the program refers to), and are cut after MAX_BLOCK_LENGTH instructions.
+ * Each block becomes a static method that runs its instructions on the RAM
+ * array with A and D in locals and returns the next program counter. The
+ * methods are grouped into hidden classes whose dispatch method switches on
+ * the program counter, and the JIT compiles them from there.
+ * Cycles are counted per block and match the HackEmulator exactly: a block
+ * that would run past the cycle limit, and a jump to an address that does
+ * not start a block, are run by stepping a HackEmulator on the same RAM.
+ */
+public class HackRecompiler implements HackMachine {
+    private static final long DEFAULT_MAX_CYCLES = 10_000_000L;
+    private static final int STACK_BASE = 256;
+
+    // Longest block, keeping block methods far below the 64 KB bytecode limit
+    private static final int MAX_BLOCK_LENGTH = 512;
+    // Blocks per generated class, keeping its dispatch method below the limit too
+    private static final int MAX_CLASS_BLOCKS = 1024;
+
+    private static final String SELF = "HackRecompiler";
+    private static final String BLOCKS = "HackRecompiler$Blocks";
+    private static final String BLOCK_DESCRIPTOR = "([I[I)I";
+
+    // Locals of a block method
+    private static final int RAM = 0;
+    private static final int REGISTERS = 1;
+    private static final int A = 2;
+    private static final int D = 3;
+    private static final int OUT = 4;
+    private static final int TARGET = 5;
+
+    /**
+     * The blocks of one generated class
+     */
+    interface Blocks {
+        /**
+         * Runs the block starting at an address
+         *
+         * @param pc        Address of the first instruction of the block
+         * @param ram       RAM
+         * @param registers A and D, updated by the block
+         * @return Next program counter, or -1 - address of the halt loop entered
+         */
+        int run(int pc, int[] ram, int[] registers);
+    }
+
+    private final HackEmulator interpreter;
+    private final int[] ram;
+    private final int romSize;
+    private final Blocks[] blocks;
+    private final int[] blockLengths;
+    private final int[] registers = new int[2];
+    private int pc;
+    private long cycles;
+    private boolean halted;
+    private int blockCount;
+    private int classCount;
+
+    /**
+     * Loads a program given as assembly lines, resolving labels and variables
+     *
+     * @param lines Assembly code, one instruction or label per entry
+     */
+    public HackRecompiler(List<String> lines) {
+        this(HackAssembler.assemble(lines));
+    }
+
+    /**
+     * Loads and compiles an assembled program
+     *
+     * @param program Binary instructions, one per ROM address
+     */
+    public HackRecompiler(int[] program) {
+        interpreter = new HackEmulator(program);
+        ram = interpreter.ramArray();
+        romSize = program.length;
+        blocks = new Blocks[romSize];
+        blockLengths = new int[romSize];
+        compile(program);
+    }
+
+    /**
+     * Loads a program from an .asm file
+     *
+     * @param asm Assembly file
+     * @return Recompiler with the program compiled
+     */
+    public static HackRecompiler load(File asm) {
+        try {
+            byte[] source = Files.readAllBytes(asm.toPath());
+            return new HackRecompiler(HackAssembler.assemble(source, source.length));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + asm.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the program until it halts or the cycle limit is reached
+     *
+     * @param maxCycles Cycle limit
+     * @return Number of cycles executed by this call
+     */
+    public long run(long maxCycles) {
+        long start = cycles;
+        long limit = cycles + maxCycles;
+
+        while (!halted && cycles < limit) {
+            Blocks block = (pc < romSize) ? blocks[pc] : null;
+            if (block != null && cycles + blockLengths[pc] <= limit) {
+                cycles += blockLengths[pc];
+                int next = block.run(pc, ram, registers);
+                if (next < 0) {
+                    halted = true;
+                    pc = -1 - next;
+                } else {
+                    pc = next;
+                }
+            } else {
+                step();
+            }
+        }
+
+        return cycles - start;
+    }
+
+    // Runs one instruction in the interpreter
+    private void step() {
+        interpreter.setState(registers[0], registers[1], pc, cycles);
+        interpreter.step();
+        registers[0] = interpreter.getA();
+        registers[1] = interpreter.getD();
+        pc = interpreter.getPc();
+        cycles = interpreter.getCycles();
+        halted = interpreter.isHalted();
+    }
+
+    public int getRam(int address) {
+        return ram[address];
+    }
+
+    public void setRam(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    public int getRomSize() {
+        return romSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Next program counter of a conditional jump, called by compiled blocks
+     *
+     * @param jump   Jump bits of the instruction
+     * @param out    ALU output
+     * @param target Jump target
+     * @param next   Address after the jump
+     * @return Target if the jump is taken, else next
+     */
+    static int branch(int jump, int out, int target, int next) {
+        return HackEmulator.jumps(jump, out) ? target : next;
+    }
+
+    /**
+     * Target of an unconditional jump that enters the halt loop when it
+     * jumps back to the A-instruction right before it, called by compiled blocks
+     *
+     * @param target      Jump target
+     * @param haltAddress Address of the preceding A-instruction
+     * @return Target, or -1 - target for the halt loop
+     */
+    static int jumpOrHalt(int target, int haltAddress) {
+        return (target == haltAddress) ? -1 - target : target;
+    }
+
+    /**
+     * Marks the first address of every block
+     *
+     * @param program Binary instructions
+     * @return True at the addresses that start a block
+     */
+    private static boolean[] blockStarts(int[] program) {
+        boolean[] starts = new boolean[program.length];
+        if (program.length == 0) {
+            return starts;
+        }
+        starts[0] = true;
+        for (int i = 0; i < program.length; i++) {
+            int ins = program[i];
+            if ((ins & 0x8000) == 0) {
+                if (ins < program.length) {
+                    starts[ins] = true;
+                }
+            } else if ((ins & 0x07) != 0 && i + 1 < program.length) {
+                starts[i + 1] = true;
+            }
+        }
+
+        int length = 0;
+        for (int i = 0; i < program.length; i++) {
+            if (starts[i] || length == MAX_BLOCK_LENGTH) {
+                starts[i] = true;
+                length = 0;
+            }
+            length++;
+        }
+        return starts;
+    }
+
+    /**
+     * Compiles every block and loads the generated classes
+     *
+     * @param program Binary instructions
+     */
+    private void compile(int[] program) {
+        boolean[] starts = blockStarts(program);
+        ArrayList<Integer> classBlocks = new ArrayList<>();
+        ClassFileWriter writer = null;
+
+        for (int start = 0; start < romSize;) {
+            int end = start + 1;
+            while (end < romSize && !starts[end]) {
+                end++;
+            }
+            if (writer == null) {
+                writer = new ClassFileWriter("HackBlocks" + classCount, "java/lang/Object", BLOCKS);
+            }
+            writeBlock(writer, program, start, end);
+            blockLengths[start] = end - start;
+            classBlocks.add(start);
+            blockCount++;
+            if (classBlocks.size() == MAX_CLASS_BLOCKS) {
+                defineClass(writer, classBlocks);
+                writer = null;
+                classBlocks.clear();
+            }
+            start = end;
+        }
+
+        if (writer != null) {
+            defineClass(writer, classBlocks);
+        }
+    }
+
+    /**
+     * Writes the method of one block. A jump can only be the last
+     * instruction of a block, so its target is kept in a local until the
+     * block returns.
+     *
+     * @param writer  Class being generated
+     * @param program Binary instructions
+     * @param start   Address of the first instruction
+     * @param end     Address after the last instruction
+     */
+    private static void writeBlock(ClassFileWriter writer, int[] program, int start, int end) {
+        ClassFileWriter.Code code = new ClassFileWriter.Code();
+        loadRegister(writer, code, 0, A);
+        loadRegister(writer, code, 1, D);
+
+        for (int i = start; i < end; i++) {
+            int ins = program[i];
+            if ((ins & 0x8000) == 0) {
+                writer.pushInt(code, ins);
+                code.istore(A);
+            } else {
+                writeComputation(writer, code, ins);
+            }
+        }
+
+        storeRegister(writer, code, 0, A);
+        storeRegister(writer, code, 1, D);
+        int last = program[end - 1];
+        int jump = last & 0x07;
+        if ((last & 0x8000) == 0 || jump == 0) {
+            writer.pushInt(code, end);
+        } else if (jump == 0x07) {
+            code.iload(TARGET);
+            int previous = end - 2;
+            if (previous >= 0 && program[previous] == previous) {
+                writer.pushInt(code, previous);
+                writer.invokeStatic(code, SELF, "jumpOrHalt", "(II)I");
+            }
+        } else {
+            writer.pushInt(code, jump);
+            code.iload(OUT);
+            code.iload(TARGET);
+            writer.pushInt(code, end);
+            writer.invokeStatic(code, SELF, "branch", "(IIII)I");
+        }
+        code.op(ClassFileWriter.IRETURN);
+
+        writer.addMethod(ClassFileWriter.ACC_STATIC, "b" + start, BLOCK_DESCRIPTOR, code, 5, 6);
+    }
+
+    /**
+     * Writes one C-instruction. Only the ALU inputs and operations selected
+     * by its bits are emitted. As in the HackEmulator, M and the jump target
+     * use the address in A before the instruction writes A.
+     */
+    private static void writeComputation(ClassFileWriter writer, ClassFileWriter.Code code, int ins) {
+        if ((ins & 0x0800) != 0) {
+            writer.pushInt(code, 0);
+        } else {
+            code.iload(D);
+        }
+        if ((ins & 0x0400) != 0) {
+            writeNot(writer, code);
+        }
+        if ((ins & 0x0200) != 0) {
+            writer.pushInt(code, 0);
+        } else if ((ins & 0x1000) != 0) {
+            code.aload(RAM);
+            writeAddress(writer, code);
+            code.op(ClassFileWriter.IALOAD);
+        } else {
+            code.iload(A);
+        }
+        if ((ins & 0x0100) != 0) {
+            writeNot(writer, code);
+        }
+        code.op(((ins & 0x0080) != 0) ? ClassFileWriter.IADD : ClassFileWriter.IAND);
+        if ((ins & 0x0040) != 0) {
+            writeNot(writer, code);
+        }
+        code.op(ClassFileWriter.I2S);
+        code.istore(OUT);
+
+        if ((ins & 0x08) != 0) {
+            code.aload(RAM);
+            writeAddress(writer, code);
+            code.iload(OUT);
+            code.op(ClassFileWriter.IASTORE);
+        }
+        if ((ins & 0x10) != 0) {
+            code.iload(OUT);
+            code.istore(D);
+        }
+        if ((ins & 0x07) != 0) {
+            writeAddress(writer, code);
+            code.istore(TARGET);
+        }
+        if ((ins & 0x20) != 0) {
+            code.iload(OUT);
+            code.istore(A);
+        }
+    }
+
+    // Pushes A & 0x7FFF
+    private static void writeAddress(ClassFileWriter writer, ClassFileWriter.Code code) {
+        code.iload(A);
+        writer.pushInt(code, 0x7FFF);
+        code.op(ClassFileWriter.IAND);
+    }
+
+    private static void writeNot(ClassFileWriter writer, ClassFileWriter.Code code) {
+        writer.pushInt(code, -1);
+        code.op(ClassFileWriter.IXOR);
+    }
+
+    private static void loadRegister(ClassFileWriter writer, ClassFileWriter.Code code, int index, int local) {
+        code.aload(REGISTERS);
+        writer.pushInt(code, index);
+        code.op(ClassFileWriter.IALOAD);
+        code.istore(local);
+    }
+
+    private static void storeRegister(ClassFileWriter writer, ClassFileWriter.Code code, int index, int local) {
+        code.aload(REGISTERS);
+        writer.pushInt(code, index);
+        code.iload(local);
+        code.op(ClassFileWriter.IASTORE);
+    }
+
+    /**
+     * Adds the dispatch method, which calls the block starting at the
+     * program counter, then defines the class as a hidden class
+     *
+     * @param writer Class being generated
+     * @param starts First addresses of its blocks, ascending
+     */
+    private void defineClass(ClassFileWriter writer, List<Integer> starts) {
+        ClassFileWriter.Code code = new ClassFileWriter.Code();
+        code.iload(1);
+        int switchAt = code.position();
+        code.op(ClassFileWriter.LOOKUPSWITCH);
+        while (code.position() % 4 != 0) {
+            code.u1(0);
+        }
+
+        // Each case calls its block and returns: aload, aload, invokestatic, ireturn
+        int caseLength = 6;
+        int firstCase = code.position() + 8 + 8 * starts.size();
+        code.u4(firstCase + caseLength * starts.size() - switchAt);
+        code.u4(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            code.u4(starts.get(i));
+            code.u4(firstCase + caseLength * i - switchAt);
+        }
+        for (int start : starts) {
+            code.frame();
+            code.aload(2);
+            code.aload(3);
+            writer.invokeStatic(code, writer.getName(), "b" + start, BLOCK_DESCRIPTOR);
+            code.op(ClassFileWriter.IRETURN);
+        }
+        code.frame();
+        code.iload(1); // Not a block of this class: stay, so the interpreter steps
+        code.op(ClassFileWriter.IRETURN);
+
+        writer.addDefaultConstructor("java/lang/Object");
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC, "run", "(I[I[I)I", code, 2, 4);
+
+        try {
+            Class<?> type = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true).lookupClass();
+            Blocks classBlocks = (Blocks) type.getDeclaredConstructor().newInstance();
+            for (int start : starts) {
+                blocks[start] = classBlocks;
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load compiled blocks: " + e.getMessage(), e);
+        }
+        classCount++;
+    }
+
+    private static String usage() {
+        return "Usage: java HackRecompiler [-cycles=N] [-dump=FROM-TO]... [-check] <file.asm|directory>...\n" +
+                "  A directory runs the .asm file named after it, e.g. FibonacciElement/FibonacciElement.asm.\n" +
+                "  Each program runs with the RAM presets, cycle count and compare file of its test script\n" +
+                "  (<file>.tst), if present.\n" +
+                "  -cycles=N      Cycle limit (default: the script's repeat count, else " + DEFAULT_MAX_CYCLES + ")\n" +
+                "  -dump=FROM-TO  RAM range to print, may be repeated (default: the script's output list,\n" +
+                "                 else SP, LCL, ARG, THIS, THAT and the stack)\n" +
+                "  -check         also run the HackEmulator and compare cycles, PC and all of RAM";
+    }
+
+    /**
+     * Compiles and runs programs, e.g. every test directory in a regression
+     * run, printing the cycle count, a RAM dump and whether the results match
+     * the compare file of each. Exits with status 1 if any program fails.
+     *
+     * @param args Programs and options, see usage()
+     */
+    public static void main(String[] args) {
+        ArrayList<File> programs = new ArrayList<>();
+        ArrayList<Integer> dump = new ArrayList<>();
+        long maxCycles = -1;
+        boolean check = false;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("-cycles=")) {
+                    maxCycles = Long.parseLong(arg.substring("-cycles=".length()));
+                } else if (arg.startsWith("-dump=")) {
+                    HackEmulator.parseRange(arg.substring("-dump=".length()), dump);
+                } else if (arg.equals("-check")) {
+                    check = true;
+                } else if (!arg.startsWith("-")) {
+                    File program = new File(arg);
+                    programs.add(program.isDirectory() ? new File(program, program.getName() + ".asm") : program);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid cycle count");
+            System.out.println(usage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.out.println(usage());
+            return;
+        }
+        if (programs.isEmpty()) {
+            System.out.println(usage());
+            return;
+        }
+
+        boolean ok = true;
+        for (File asm : programs) {
+            ok &= runProgram(asm, maxCycles, dump, check);
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compiles and runs one program and reports its results
+     *
+     * @param asm       Assembly file
+     * @param maxCycles Cycle limit, or -1 for the test script's
+     * @param dump      RAM addresses to print, or empty for the defaults
+     * @param check     True to compare with the HackEmulator
+     * @return True if the program ran and its results match
+     */
+    private static boolean runProgram(File asm, long maxCycles, List<Integer> dump, boolean check) {
+        try {
+            File tst = TestScript.findFor(asm);
+            TestScript script = (tst != null) ? new TestScript(tst) : null;
+            long compileStart = System.nanoTime();
+            HackRecompiler machine = load(asm);
+            long compileNanos = System.nanoTime() - compileStart;
+            applyPresets(machine, script);
+            if (maxCycles < 0) {
+                maxCycles = (script != null && script.getCycles() >= 0) ? script.getCycles() : DEFAULT_MAX_CYCLES;
+            }
+
+            long runStart = System.nanoTime();
+            machine.run(maxCycles);
+            long runNanos = System.nanoTime() - runStart;
+            System.out.println("Program: " + asm.getName() + " (" + machine.getRomSize() + " ROM words, " +
+                    machine.getBlockCount() + " block(s) in " + machine.getClassCount() + " class(es))" +
+                    ((script != null) ? ", test script " + tst.getName() : ""));
+            System.out.println("Cycles: " + machine.getCycles() +
+                    (machine.isHalted() ? " (halted)" : " (cycle limit reached)"));
+            System.out.printf("Compiled in %.1f ms, ran in %.1f ms%n", compileNanos / 1e6, runNanos / 1e6);
+
+            ArrayList<Integer> addresses = new ArrayList<>(dump);
+            if (addresses.isEmpty()) {
+                if (script != null && !script.getOutputs().isEmpty()) {
+                    addresses.addAll(script.getOutputs());
+                } else {
+                    for (int i = 0; i <= 4; i++) {
+                        addresses.add(i); // SP, LCL, ARG, THIS, THAT
+                    }
+                    for (int i = STACK_BASE; i < machine.getRam(0) && i < HackEmulator.RAM_SIZE; i++) {
+                        addresses.add(i);
+                    }
+                }
+            }
+            for (int address : addresses) {
+                System.out.println("RAM[" + address + "] = " + machine.getRam(address));
+            }
+
+            boolean ok = true;
+            if (script != null && script.getCompareTo() != null && script.getCompareTo().isFile()) {
+                CompareFile cmp = new CompareFile(script.getCompareTo());
+                ArrayList<String> mismatches = cmp.check(machine);
+                for (String mismatch : mismatches) {
+                    System.err.println("Mismatch at " + mismatch);
+                }
+                System.out.println("Compared " + cmp.getAddresses().size() + " RAM locations with " +
+                        script.getCompareTo().getName() + ": " + (mismatches.isEmpty() ? "match" : "MISMATCH"));
+                ok = mismatches.isEmpty();
+            }
+            if (check) {
+                ok &= checkAgainstInterpreter(asm, script, maxCycles, machine);
+            }
+            return ok;
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Runs a program in the HackEmulator and compares cycles, PC and all of
+     * RAM with the compiled run
+     *
+     * @param asm       Assembly file
+     * @param script    Test script, or null
+     * @param maxCycles Cycle limit
+     * @param compiled  Recompiler after running the program
+     * @return True if both runs end in the same state
+     */
+    private static boolean checkAgainstInterpreter(File asm, TestScript script, long maxCycles,
+            HackRecompiler compiled) {
+        HackEmulator emu = HackEmulator.load(asm);
+        applyPresets(emu, script);
+        long start = System.nanoTime();
+        emu.run(maxCycles);
+        long nanos = System.nanoTime() - start;
+
+        ArrayList<String> differences = new ArrayList<>();
+        if (emu.getCycles() != compiled.getCycles() || emu.getPc() != compiled.getPc()
+                || emu.isHalted() != compiled.isHalted()) {
+            differences.add("cycles " + emu.getCycles() + ", PC " + emu.getPc() + " interpreted, cycles " +
+                    compiled.getCycles() + ", PC " + compiled.getPc() + " compiled");
+        }
+        for (int address = 0; address < HackEmulator.RAM_SIZE; address++) {
+            if (emu.getRam(address) != compiled.getRam(address)) {
+                differences.add("RAM[" + address + "]: " + emu.getRam(address) + " interpreted, " +
+                        compiled.getRam(address) + " compiled");
+            }
+        }
+        for (String difference : differences) {
+            System.err.println("Differs from the interpreter at " + difference);
+        }
+        System.out.printf("Interpreter: %s, ran in %.1f ms%n", differences.isEmpty() ? "same state" : "DIFFERENT",
+                nanos / 1e6);
+        return differences.isEmpty();
+    }
+
+    private static void applyPresets(HackMachine machine, TestScript script) {
+        if (script != null) {
+            script.applyPresets(machine);
+        } else {
+            TestScript.applyDefaultPresets(machine);
+        }
+    }
+}
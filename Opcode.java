@@ -0,0 +1,98 @@
+/**
+ * VM command opcodes of the in-memory representation.
+ * Each opcode records its VM name and the matching VMParser command type.
+ */
+public enum Opcode {
+    ADD("add", VMParser.ARITHMETIC),
+    SUB("sub", VMParser.ARITHMETIC),
+    NEG("neg", VMParser.ARITHMETIC),
+    EQ("eq", VMParser.ARITHMETIC),
+    GT("gt", VMParser.ARITHMETIC),
+    LT("lt", VMParser.ARITHMETIC),
+    AND("and", VMParser.ARITHMETIC),
+    OR("or", VMParser.ARITHMETIC),
+    NOT("not", VMParser.ARITHMETIC),
+    PUSH("push", VMParser.PUSH),
+    POP("pop", VMParser.POP),
+    LABEL("label", VMParser.LABEL),
+    GOTO("goto", VMParser.GOTO),
+    IF_GOTO("if-goto", VMParser.IF),
+    FUNCTION("function", VMParser.FUNCTION),
+    CALL("call", VMParser.CALL),
+    RETURN("return", VMParser.RETURN);
+
+    private static final Opcode[] VALUES = values();
+
+    private final String vmName;
+    private final int commandType;
+
+    Opcode(String vmName, int commandType) {
+        this.vmName = vmName;
+        this.commandType = commandType;
+    }
+
+    /**
+     * Returns the opcode with the given ordinal without copying values()
+     *
+     * @param ordinal Opcode ordinal
+     * @return Opcode
+     */
+    public static Opcode of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns the arithmetic opcode with the given VM name
+     *
+     * @param name VM name of an arithmetic command
+     * @return Opcode
+     */
+    public static Opcode fromArithmetic(String name) {
+        for (Opcode op : VALUES) {
+            if (op.commandType == VMParser.ARITHMETIC && op.vmName.equals(name)) {
+                return op;
+            }
+        }
+        throw new IllegalArgumentException("Invalid arithmetic command: " + name);
+    }
+
+    /**
+     * Returns the opcode for a parsed non-arithmetic command type
+     *
+     * @param commandType VMParser command type
+     * @return Opcode
+     */
+    public static Opcode fromCommandType(int commandType) {
+        for (Opcode op : VALUES) {
+            if (op.commandType == commandType && commandType != VMParser.ARITHMETIC) {
+                return op;
+            }
+        }
+        throw new IllegalArgumentException("Invalid command type: " + commandType);
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    public int getCommandType() {
+        return commandType;
+    }
+
+    public boolean isArithmetic() {
+        return commandType == VMParser.ARITHMETIC;
+    }
+
+    public boolean isCompare() {
+        return this == EQ || this == GT || this == LT;
+    }
+
+    /**
+     * Returns whether the first argument of this opcode is a label or function symbol
+     *
+     * @return True for label, goto, if-goto, function and call
+     */
+    public boolean hasSymbol() {
+        return this == LABEL || this == GOTO || this == IF_GOTO || this == FUNCTION || this == CALL;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Compares the parse throughput of the Scanner-based VMParser with the
+ * memory-mapped VMLexer on a large generated .vm file, and checks that both
+ * produce the same commands.
+ */
+public class ParserBenchmark {
+    private static final int DEFAULT_MEGABYTES = 100;
+    private static final int RUNS = 3;
+
+    /**
+     * Writes a .vm file of about the given size, with functions mixing all
+     * command types, comments, indentation and blank lines. Labels restart
+     * in every function and calls go to a library function, as in the
+     * output of the Jack compiler.
+     *
+     * @param file      Output file
+     * @param megabytes Approximate size in megabytes
+     */
+    public static void generate(File file, int megabytes) throws IOException {
+        long target = (long) megabytes * 1024 * 1024;
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            long written = 0;
+            for (int fn = 0; written < target; fn++) {
+                StringBuilder body = new StringBuilder();
+                body.append("// function ").append(fn).append('\n');
+                body.append("function Big.f").append(fn).append(" 2\n");
+                body.append("    push argument 0\n    pop local 0   // counter\n\n");
+                body.append("label WHILE_EXP0\n");
+                body.append("    push local 0\n    push constant 0\n    gt\n    not\n");
+                body.append("    if-goto WHILE_END0\n");
+                body.append("    push local 1\n    push static ").append(fn % 240).append("\n    add\n");
+                body.append("    pop local 1\n    push this 3\n    push that 1\n    sub\n    pop temp 2\n");
+                body.append("    push local 0\n    push constant 1\n    sub\n    pop local 0\n");
+                body.append("    goto WHILE_EXP0\n");
+                body.append("label WHILE_END0\n");
+                body.append("    push local 1\n    push constant 3\n    call Math.multiply 2\n");
+                body.append("    return\n");
+                out.print(body);
+                written += body.length();
+            }
+        }
+    }
+
+    /**
+     * Parses the file several times and returns the best time in milliseconds
+     *
+     * @param file    Input .vm file
+     * @param scanner True for VMParser, false for VMLexer
+     * @return Best time of the runs
+     */
+    private static double time(File file, boolean scanner) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            VMCode code = scanner ? VMCode.parse(file, new SymbolTable()) : VMLexer.parse(file, new SymbolTable());
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+            if (code.size() == 0) {
+                throw new IllegalStateException("Nothing parsed");
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns whether two command lists are identical
+     */
+    private static boolean sameCommands(VMCode a, SymbolTable symbolsA, VMCode b, SymbolTable symbolsB) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.op(i) != b.op(i) || a.arg2(i) != b.arg2(i)) {
+                return false;
+            }
+            boolean symbol = a.op(i).hasSymbol();
+            if (symbol ? !symbolsA.name(a.arg1(i)).equals(symbolsB.name(b.arg1(i))) : a.arg1(i) != b.arg1(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Usage: java ParserBenchmark [megabytes]
+     *
+     * @param args Size of the generated file in megabytes
+     */
+    public static void main(String[] args) throws IOException {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MEGABYTES;
+        File file = File.createTempFile("Big", ".vm");
+        try {
+            generate(file, megabytes);
+            double mb = file.length() / (1024.0 * 1024.0);
+
+            SymbolTable scannerSymbols = new SymbolTable();
+            SymbolTable lexerSymbols = new SymbolTable();
+            boolean same = sameCommands(VMCode.parse(file, scannerSymbols), scannerSymbols,
+                    VMLexer.parse(file, lexerSymbols), lexerSymbols);
+
+            double scannerMs = time(file, true);
+            double lexerMs = time(file, false);
+            System.out.printf("%.1f MB of VM code%n", mb);
+            System.out.printf("VMParser (Scanner): %8.1f ms %8.1f MB/s%n", scannerMs, mb * 1000 / scannerMs);
+            System.out.printf("VMLexer (mapped):   %8.1f ms %8.1f MB/s  speedup %.1fx%n", lexerMs,
+                    mb * 1000 / lexerMs, scannerMs / lexerMs);
+            System.out.println("Same commands: " + same);
+        } finally {
+            file.delete();
+        }
+    }
+}
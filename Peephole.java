@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Peephole optimizer for generated HACK assembly.
+ * Slides a window over the instruction lines and applies rewrite rules
+ * until none matches. Every rule leaves A, D, SP and the stack exactly as
+ * the original sequence did; only the scratch register R13 may differ.
+ * Labels are never moved or removed, so no rule matches across a jump target.
+ */
+public class Peephole {
+    // How far back a redundant load of D may find the earlier identical load
+    private static final int LOAD_WINDOW = 8;
+
+    /**
+     * Optimizes a list of assembly lines
+     *
+     * @param lines Assembly code, one instruction or label per entry
+     * @return Optimized assembly code
+     */
+    public static ArrayList<String> optimize(List<String> lines) {
+        return optimize(lines, null);
+    }
+
+    /**
+     * Optimizes a list of assembly lines, keeping a parallel list of origins
+     * in step. Rules only replace and remove lines, so a kept line keeps the
+     * origin of the line it replaced.
+     *
+     * @param lines   Assembly code, one instruction or label per entry
+     * @param origins Origin of each line, e.g. a source map entry, updated to
+     *                match the optimized lines; may be null
+     * @return Optimized assembly code
+     */
+    public static ArrayList<String> optimize(List<String> lines, ArrayList<Integer> origins) {
+        if (origins != null && origins.size() != lines.size()) {
+            throw new IllegalArgumentException("Need one origin per line");
+        }
+        ArrayList<String> code = new ArrayList<>(lines);
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < code.size(); i++) {
+                if (pushPop(code, origins, i) || incrementStore(code, origins, i) || storeReload(code, origins, i)
+                        || smallConstant(code, origins, i) || redundantLoad(code, origins, i)
+                        || zeroOffset(code, origins, i) || directPop(code, origins, i) || basePop(code, origins, i)) {
+                    changed = true;
+                }
+            }
+        }
+
+        return code;
+    }
+
+    /**
+     * A push immediately popped again: the SP increment and decrement cancel.
+     * {@code @SP A=M M=D @SP M=M+1 @SP AM=M-1} becomes {@code @SP A=M M=D}
+     */
+    private static boolean pushPop(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        if (!matches(code, i, "@SP", "A=M", "M=D", "@SP", "M=M+1", "@SP", "AM=M-1")) {
+            return false;
+        }
+        remove(code, origins, i + 3, 4);
+        return true;
+    }
+
+    /**
+     * A push right after another push: increment SP and address the new top at once.
+     * {@code @SP M=M+1 @SP A=M M=D} becomes {@code @SP AM=M+1 M=D}
+     */
+    private static boolean incrementStore(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        if (!matches(code, i, "@SP", "M=M+1", "@SP", "A=M", "M=D")) {
+            return false;
+        }
+        code.set(i + 1, "AM=M+1");
+        remove(code, origins, i + 2, 2);
+        return true;
+    }
+
+    /**
+     * Reloading the value just stored at the same address.
+     * {@code M=D D=M} becomes {@code M=D}
+     */
+    private static boolean storeReload(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        if (!matches(code, i, "M=D", "D=M")) {
+            return false;
+        }
+        remove(code, origins, i + 1, 1);
+        return true;
+    }
+
+    /**
+     * Loading 0 or 1 through A when A is overwritten next.
+     * {@code @0 D=A @X} becomes {@code D=0 @X}
+     */
+    private static boolean smallConstant(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        if (i + 2 >= code.size() || !code.get(i + 1).equals("D=A") || !code.get(i + 2).startsWith("@")) {
+            return false;
+        }
+        String line = code.get(i);
+        if (!line.equals("@0") && !line.equals("@1")) {
+            return false;
+        }
+        code.set(i, "D=" + line.substring(1));
+        remove(code, origins, i + 1, 1);
+        return true;
+    }
+
+    /**
+     * Loading D with a constant it already holds, as in repeated pushes of the
+     * same constant. The earlier load must be within the window with no label
+     * and no write to D in between.
+     */
+    private static boolean redundantLoad(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        String line = code.get(i);
+        if (!line.equals("D=0") && !line.equals("D=1") && !line.equals("D=-1")) {
+            return false;
+        }
+        for (int j = i - 1; j >= 0 && j >= i - LOAD_WINDOW; j--) {
+            String prev = code.get(j);
+            if (prev.equals(line)) {
+                remove(code, origins, i, 1);
+                return true;
+            }
+            if (prev.startsWith("(") || writesD(prev)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adding index 0 to a segment base.
+     * {@code D=M @0 A=D+A D=M} becomes {@code A=M D=M} and
+     * {@code D=M @0 D=D+A @X} becomes {@code D=M @X}
+     */
+    private static boolean zeroOffset(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        if (matches(code, i, "D=M", "@0", "A=D+A", "D=M")) {
+            code.set(i, "A=M");
+            remove(code, origins, i + 1, 2);
+            return true;
+        }
+        if (matches(code, i, "D=M", "@0", "D=D+A") && i + 3 < code.size() && code.get(i + 3).startsWith("@")) {
+            remove(code, origins, i + 1, 2);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Popping to a constant address (temp, static) through R13.
+     * {@code @X D=A @R13 M=D @SP AM=M-1 D=M @R13 A=M M=D} becomes
+     * {@code @SP AM=M-1 D=M @X M=D}
+     */
+    private static boolean directPop(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        if (!isFreeAddress(code.get(i))
+                || !matches(code, i + 1, "D=A", "@R13", "M=D", "@SP", "AM=M-1", "D=M", "@R13", "A=M", "M=D")) {
+            return false;
+        }
+        String target = code.get(i);
+        remove(code, origins, i, 4);
+        code.set(i + 3, target);
+        remove(code, origins, i + 4, 1);
+        return true;
+    }
+
+    /**
+     * Popping to index 0 of a pointer segment through R13.
+     * {@code @SEG D=M @R13 M=D @SP AM=M-1 D=M @R13 A=M M=D} becomes
+     * {@code @SP AM=M-1 D=M @SEG A=M M=D}
+     */
+    private static boolean basePop(ArrayList<String> code, ArrayList<Integer> origins, int i) {
+        if (!isFreeAddress(code.get(i))
+                || !matches(code, i + 1, "D=M", "@R13", "M=D", "@SP", "AM=M-1", "D=M", "@R13", "A=M", "M=D")) {
+            return false;
+        }
+        String base = code.get(i);
+        remove(code, origins, i, 4);
+        code.set(i + 3, base);
+        return true;
+    }
+
+    private static boolean matches(List<String> code, int start, String... pattern) {
+        if (start < 0 || start + pattern.length > code.size()) {
+            return false;
+        }
+        for (int k = 0; k < pattern.length; k++) {
+            if (!code.get(start + k).equals(pattern[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that a line loads an address other than the SP and R13 registers
+     * the pop rules rely on
+     */
+    private static boolean isFreeAddress(String line) {
+        return line.startsWith("@") && !line.equals("@SP") && !line.equals("@R13");
+    }
+
+    private static boolean writesD(String line) {
+        int eq = line.indexOf('=');
+        return eq != -1 && line.substring(0, eq).contains("D");
+    }
+
+    /**
+     * Removes lines, and their origins when they are tracked
+     */
+    private static void remove(ArrayList<String> code, ArrayList<Integer> origins, int start, int count) {
+        code.subList(start, start + count).clear();
+        if (origins != null) {
+            origins.subList(start, start + count).clear();
+        }
+    }
+}
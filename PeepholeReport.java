@@ -0,0 +1,158 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the assembly of each translated unit before and after peephole
+ * optimization and reports ROM size and executed cycles for both versions.
+ * Cycles are measured by running both programs in the HackEmulator.
+ */
+public class PeepholeReport {
+    private static final long MAX_CYCLES = 10_000_000L;
+
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<int[]> ranges = new ArrayList<>();
+    private final ArrayList<int[]> lineRanges = new ArrayList<>();
+    private final ArrayList<String> before = new ArrayList<>();
+    private final ArrayList<String> after = new ArrayList<>();
+    private int romBefore;
+    private int romAfter;
+
+    /**
+     * Records one translated unit
+     *
+     * @param name       Unit name, usually the .vm file name
+     * @param unitBefore Assembly lines as generated
+     * @param unitAfter  Assembly lines after optimization
+     */
+    public void addUnit(String name, List<String> unitBefore, List<String> unitAfter) {
+        int startBefore = romBefore;
+        int startAfter = romAfter;
+        lineRanges.add(new int[] { before.size(), before.size() + unitBefore.size(),
+                after.size(), after.size() + unitAfter.size() });
+        romBefore += countInstructions(unitBefore);
+        romAfter += countInstructions(unitAfter);
+        before.addAll(unitBefore);
+        after.addAll(unitAfter);
+        names.add(name);
+        ranges.add(new int[] { startBefore, romBefore, startAfter, romAfter });
+    }
+
+    /**
+     * Records all units of another report, in order
+     *
+     * @param other Report of a separately written part of the program
+     */
+    public void addReport(PeepholeReport other) {
+        for (int i = 0; i < other.names.size(); i++) {
+            int[] lines = other.lineRanges.get(i);
+            addUnit(other.names.get(i), other.before.subList(lines[0], lines[1]),
+                    other.after.subList(lines[2], lines[3]));
+        }
+    }
+
+    /**
+     * Writes the recorded units in binary form, e.g. for a cached unit
+     *
+     * @param out Output stream
+     * @throws IOException If writing fails
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            int[] lines = lineRanges.get(i);
+            out.writeUTF(names.get(i));
+            writeLines(out, before.subList(lines[0], lines[1]));
+            writeLines(out, after.subList(lines[2], lines[3]));
+        }
+    }
+
+    /**
+     * Reads units written by writeTo
+     *
+     * @param in Input stream
+     * @return Report holding the units
+     * @throws IOException If reading fails
+     */
+    public static PeepholeReport readFrom(DataInputStream in) throws IOException {
+        PeepholeReport report = new PeepholeReport();
+        int units = in.readInt();
+        for (int i = 0; i < units; i++) {
+            String name = in.readUTF();
+            report.addUnit(name, readLines(in), readLines(in));
+        }
+        return report;
+    }
+
+    private static void writeLines(DataOutputStream out, List<String> lines) throws IOException {
+        out.writeInt(lines.size());
+        for (String line : lines) {
+            out.writeUTF(line);
+        }
+    }
+
+    private static ArrayList<String> readLines(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        ArrayList<String> lines = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            lines.add(in.readUTF());
+        }
+        return lines;
+    }
+
+    /**
+     * Runs both versions and prints the per-unit report
+     *
+     * @param out Output stream
+     * @param err Stream for errors
+     * @param tst Test script whose RAM presets are applied, may not exist
+     */
+    public void print(PrintStream out, PrintStream err, File tst) {
+        HackEmulator emuBefore = run(before, tst, err);
+        HackEmulator emuAfter = run(after, tst, err);
+
+        out.println("Peephole optimization (-O1)" + (tst.isFile() ? ", RAM preset from " + tst.getName() : ""));
+        out.printf("%-24s %10s %10s %14s %14s%n", "unit", "ROM before", "ROM after", "cycles before", "cycles after");
+        for (int i = 0; i < names.size(); i++) {
+            int[] r = ranges.get(i);
+            out.printf("%-24s %10d %10d %14d %14d%n", names.get(i), r[1] - r[0], r[3] - r[2],
+                    emuBefore.getCycles(r[0], r[1]), emuAfter.getCycles(r[2], r[3]));
+        }
+        out.printf("%-24s %10d %10d %14d %14d%n", "total", romBefore, romAfter,
+                emuBefore.getCycles(), emuAfter.getCycles());
+        if (!emuBefore.isHalted() || !emuAfter.isHalted()) {
+            out.println("Stopped after " + MAX_CYCLES + " cycles without halting");
+        }
+    }
+
+    private static HackEmulator run(List<String> lines, File tst, PrintStream err) {
+        HackEmulator emu = new HackEmulator(lines);
+        emu.enableExecutionCounts();
+        try {
+            if (tst.isFile()) {
+                new TestScript(tst).applyPresets(emu);
+            } else {
+                TestScript.applyDefaultPresets(emu);
+            }
+        } catch (FileNotFoundException e) {
+            err.println("File not found: " + tst.getName());
+        }
+        emu.run(MAX_CYCLES);
+        return emu;
+    }
+
+    private static int countInstructions(List<String> lines) {
+        int count = 0;
+        for (String line : lines) {
+            if (!line.startsWith("(")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
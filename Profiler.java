@@ -0,0 +1,306 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Runs a translated program in the HackEmulator and attributes every
+ * executed cycle to the VM command and function it was generated for,
+ * using the source map written by the translator with -map.
+ *
+ * A shadow call stack follows the program. The code of a call or return
+ * command ends with its jump, so executing the last word of a call enters
+ * the callee and executing the last word of a return goes back to the
+ * caller. A tail call's entry ends with its jump into the reused frame, so
+ * the callee takes the caller's place on the stack. Cycles spent in the shared routines count for the function on
+ * top of the stack. The profiler prints a flat profile by function, the
+ * most expensive commands and the inclusive call tree, and writes the call
+ * stacks in the collapsed format read by flamegraph.pl.
+ */
+public class Profiler {
+    private static final long DEFAULT_MAX_CYCLES = 10_000_000L;
+    private static final int DEFAULT_TOP = 20;
+
+    /**
+     * Node of the call tree: one function reached through one call path
+     */
+    private static final class Node {
+        private final String name;
+        private final Node parent;
+        private final LinkedHashMap<String, Node> children = new LinkedHashMap<>();
+        private long self;
+
+        private Node(String name, Node parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        private Node child(String childName) {
+            return children.computeIfAbsent(childName, n -> new Node(n, this));
+        }
+
+        private long inclusive() {
+            long sum = self;
+            for (Node c : children.values()) {
+                sum += c.inclusive();
+            }
+            return sum;
+        }
+    }
+
+    private final SourceMap map;
+    private final int[] entryOf;
+    private final long[] entryCycles;
+    private final HashMap<String, Long> functionCycles = new HashMap<>();
+    private final Node root = new Node(null, null);
+    private long cycles;
+
+    private Profiler(SourceMap map) {
+        this.map = map;
+        entryOf = map.entriesByAddress();
+        entryCycles = new long[map.size()];
+    }
+
+    /**
+     * Runs the program and collects the profile
+     *
+     * @param emu       Emulator with the program loaded and RAM preset
+     * @param maxCycles Cycle limit
+     */
+    private void run(HackEmulator emu, long maxCycles) {
+        Node top = root;
+        int previousPc = -1;
+        int previous = -1;
+
+        while (!emu.isHalted() && emu.getCycles() < maxCycles) {
+            int pc = emu.getPc();
+            if (pc >= entryOf.length) {
+                break;
+            }
+            int entry = entryOf[pc];
+            boolean shared = isShared(entry);
+
+            if (previous != -1 && previousPc == map.end(previous) - 1 && !shared) {
+                if (isTailCall(previous)) {
+                    // The callee replaces the caller's frame
+                    top = ((top == root || top.parent == null) ? root : top.parent).child(map.function(entry));
+                } else if (isCall(previous)) {
+                    top = top.child(map.function(entry));
+                } else if (isReturn(previous) && top.parent != root && top.parent != null) {
+                    top = top.parent;
+                }
+            }
+            if (!shared && (top == root || !top.name.equals(map.function(entry)))) {
+                // Entered code without a call, e.g. the bootstrap or a fall-through
+                top = ((top == root) ? root : top.parent).child(map.function(entry));
+            }
+
+            String function = (shared && top != root) ? top.name : map.function(entry);
+            top.self++;
+            entryCycles[entry]++;
+            functionCycles.merge(function, 1L, Long::sum);
+            cycles++;
+
+            previousPc = pc;
+            previous = entry;
+            emu.step();
+        }
+    }
+
+    private boolean isShared(int entry) {
+        return map.function(entry).startsWith("$$");
+    }
+
+    private boolean isCall(int entry) {
+        return map.command(entry).startsWith("call") && !isTailCall(entry);
+    }
+
+    private boolean isTailCall(int entry) {
+        return map.command(entry).startsWith("call") && map.command(entry).endsWith(SourceMap.TAIL_CALL_SUFFIX);
+    }
+
+    private boolean isReturn(int entry) {
+        return map.command(entry).equals("return");
+    }
+
+    private String percent(long part) {
+        return String.format("%5.1f%%", (cycles == 0) ? 0.0 : 100.0 * part / cycles);
+    }
+
+    private void printFlatProfile() {
+        System.out.println("Flat profile by function (self cycles):");
+        System.out.printf("%10s %6s  %s%n", "cycles", "%", "function");
+        ArrayList<String> names = new ArrayList<>(functionCycles.keySet());
+        names.sort((a, b) -> Long.compare(functionCycles.get(b), functionCycles.get(a)));
+        for (String name : names) {
+            System.out.printf("%10d %s  %s%n", functionCycles.get(name), percent(functionCycles.get(name)), name);
+        }
+    }
+
+    private void printTopCommands(int top) {
+        System.out.println("Most expensive commands:");
+        System.out.printf("%10s %6s  %-20s %-24s %s%n", "cycles", "%", "location", "function", "command");
+        ArrayList<Integer> entries = new ArrayList<>();
+        for (int i = 0; i < entryCycles.length; i++) {
+            if (entryCycles[i] > 0) {
+                entries.add(i);
+            }
+        }
+        entries.sort((a, b) -> Long.compare(entryCycles[b], entryCycles[a]));
+        for (int i = 0; i < Math.min(top, entries.size()); i++) {
+            int e = entries.get(i);
+            String location = map.file(e) + ((map.line(e) > 0) ? ":" + map.line(e) : "");
+            System.out.printf("%10d %s  %-20s %-24s %s%n", entryCycles[e], percent(entryCycles[e]), location,
+                    map.function(e), map.command(e));
+        }
+    }
+
+    private void printCallTree() {
+        System.out.println("Call tree (inclusive and self cycles):");
+        System.out.printf("%10s %6s %10s  %s%n", "inclusive", "%", "self", "function");
+        for (Node child : sortedChildren(root)) {
+            printNode(child, 0);
+        }
+    }
+
+    private void printNode(Node node, int depth) {
+        long inclusive = node.inclusive();
+        System.out.printf("%10d %s %10d  %s%s%n", inclusive, percent(inclusive), node.self, "  ".repeat(depth),
+                node.name);
+        for (Node child : sortedChildren(node)) {
+            printNode(child, depth + 1);
+        }
+    }
+
+    private static ArrayList<Node> sortedChildren(Node node) {
+        ArrayList<Node> children = new ArrayList<>(node.children.values());
+        children.sort((a, b) -> Long.compare(b.inclusive(), a.inclusive()));
+        return children;
+    }
+
+    /**
+     * Writes one line per call path with its self cycles: the frames from
+     * the outermost function, separated by semicolons, then the count
+     *
+     * @param file Output file
+     * @throws FileNotFoundException If the file cannot be created
+     */
+    private void writeCollapsed(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (Node child : root.children.values()) {
+                writeCollapsed(child, child.name, out);
+            }
+        }
+    }
+
+    private void writeCollapsed(Node node, String path, PrintWriter out) {
+        if (node.self > 0) {
+            out.println(path + " " + node.self);
+        }
+        for (Node child : node.children.values()) {
+            writeCollapsed(child, path + ";" + child.name, out);
+        }
+    }
+
+    private static String usage() {
+        return "Usage: java Profiler <file.asm> [-map=FILE] [-tst=FILE] [-cycles=N] [-top=N] [-collapsed=FILE]\n" +
+                "  -map=FILE        Source map written by VMTranslator -map (default: <file>.map)\n" +
+                "  -tst=FILE        Test script for RAM presets and cycle count (default: <file>.tst, if present)\n" +
+                "  -cycles=N        Cycle limit (default: the script's repeat count, else " + DEFAULT_MAX_CYCLES +
+                ")\n" +
+                "  -top=N           Number of commands listed (default: " + DEFAULT_TOP + ")\n" +
+                "  -collapsed=FILE  Collapsed stacks for flamegraph.pl (default: <file>.collapsed)";
+    }
+
+    /**
+     * Usage: java Profiler file.asm [options], see usage()
+     *
+     * @param args Program file and options
+     */
+    public static void main(String[] args) {
+        File asm = null;
+        File mapFile = null;
+        File tst = null;
+        File collapsed = null;
+        long maxCycles = -1;
+        int top = DEFAULT_TOP;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("-map=")) {
+                    mapFile = new File(arg.substring("-map=".length()));
+                } else if (arg.startsWith("-tst=")) {
+                    tst = new File(arg.substring("-tst=".length()));
+                } else if (arg.startsWith("-cycles=")) {
+                    maxCycles = Long.parseLong(arg.substring("-cycles=".length()));
+                } else if (arg.startsWith("-top=")) {
+                    top = Integer.parseInt(arg.substring("-top=".length()));
+                } else if (arg.startsWith("-collapsed=")) {
+                    collapsed = new File(arg.substring("-collapsed=".length()));
+                } else if (!arg.startsWith("-") && asm == null) {
+                    asm = new File(arg);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.out.println(usage());
+            return;
+        }
+        if (asm == null) {
+            System.out.println(usage());
+            return;
+        }
+
+        String base = asm.getPath().substring(0, asm.getPath().lastIndexOf('.') + 1);
+        if (mapFile == null) {
+            mapFile = new File(base + "map");
+        }
+        if (tst == null) {
+            tst = TestScript.findFor(asm);
+        }
+        if (collapsed == null) {
+            collapsed = new File(base + "collapsed");
+        }
+
+        try {
+            HackEmulator emu = HackEmulator.load(asm);
+            SourceMap map = SourceMap.read(mapFile);
+            if (map.getRomSize() != emu.getRomSize()) {
+                throw new IllegalArgumentException(mapFile.getName() + " maps " + map.getRomSize() +
+                        " ROM words, but the program has " + emu.getRomSize());
+            }
+            TestScript script = null;
+            if (tst != null) {
+                script = new TestScript(tst);
+                script.applyPresets(emu);
+            } else {
+                TestScript.applyDefaultPresets(emu);
+            }
+            if (maxCycles < 0) {
+                maxCycles = (script != null && script.getCycles() >= 0) ? script.getCycles() : DEFAULT_MAX_CYCLES;
+            }
+
+            Profiler profiler = new Profiler(map);
+            profiler.run(emu, maxCycles);
+
+            System.out.println("Profile of " + asm.getName() + ": " + profiler.cycles + " cycles" +
+                    (emu.isHalted() ? " (halted)" : " (cycle limit reached)"));
+            System.out.println();
+            profiler.printFlatProfile();
+            System.out.println();
+            profiler.printTopCommands(top);
+            System.out.println();
+            profiler.printCallTree();
+            System.out.println();
+            profiler.writeCollapsed(collapsed);
+            System.out.println("Collapsed stacks written to " + collapsed.getPath());
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
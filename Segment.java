@@ -0,0 +1,62 @@
+/**
+ * VM memory segments of the in-memory representation.
+ * Pointer-based segments record the register holding their base address.
+ */
+public enum Segment {
+    CONSTANT("constant", null),
+    LOCAL("local", "LCL"),
+    ARGUMENT("argument", "ARG"),
+    THIS("this", "THIS"),
+    THAT("that", "THAT"),
+    TEMP("temp", null),
+    POINTER("pointer", null),
+    STATIC("static", null);
+
+    private static final Segment[] VALUES = values();
+
+    private final String vmName;
+    private final String base;
+
+    Segment(String vmName, String base) {
+        this.vmName = vmName;
+        this.base = base;
+    }
+
+    /**
+     * Returns the segment with the given ordinal without copying values()
+     *
+     * @param ordinal Segment ordinal
+     * @return Segment
+     */
+    public static Segment of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns the segment with the given VM name
+     *
+     * @param name VM name of the segment
+     * @return Segment
+     */
+    public static Segment fromName(String name) {
+        for (Segment segment : VALUES) {
+            if (segment.vmName.equals(name)) {
+                return segment;
+            }
+        }
+        throw new IllegalArgumentException("Invalid segment: " + name);
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    /**
+     * Returns the register holding the base address, or null if the segment has none
+     *
+     * @return Base register name
+     */
+    public String getBase() {
+        return base;
+    }
+}
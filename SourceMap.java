@@ -0,0 +1,218 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Maps ROM addresses of a translated program back to the VM commands they
+ * were generated from. Each entry covers the ROM words of one command, from
+ * its start address up to the start of the next entry, and records the .vm
+ * file, line, command text and enclosing function. Code that belongs to no
+ * VM command, like the bootstrap and the shared routines, has entries with
+ * line 0.
+ *
+ * The map is written as a text file next to the .asm, one entry per line:
+ * {@code start end file line function command}, separated by tabs, with
+ * end exclusive.
+ *
+ * A call directly followed by a return, written as a tail call with
+ * -tail-calls, has one entry with the command text {@code call f n; return}
+ * that ends with the jump into the reused frame. The ordinary call and
+ * return it falls back to have entries of their own.
+ */
+public class SourceMap {
+    /** Ends the command text of a tail call, after the call */
+    public static final String TAIL_CALL_SUFFIX = "; return";
+
+    private static final String HEADER = "# start\tend\tfile\tline\tfunction\tcommand";
+
+    private final ArrayList<Integer> starts = new ArrayList<>();
+    private final ArrayList<String> files = new ArrayList<>();
+    private final ArrayList<Integer> lines = new ArrayList<>();
+    private final ArrayList<String> functions = new ArrayList<>();
+    private final ArrayList<String> commands = new ArrayList<>();
+    private int romSize;
+
+    /**
+     * Adds an entry for the code of one command
+     *
+     * @param start    ROM address of its first word
+     * @param file     Name of the .vm file
+     * @param line     Line in the .vm file, or 0 for generated code
+     * @param function Enclosing function
+     * @param command  Command text
+     */
+    public void add(int start, String file, int line, String function, String command) {
+        starts.add(start);
+        files.add(file);
+        lines.add(line);
+        functions.add(function);
+        commands.add(command);
+    }
+
+    /**
+     * Adds all entries of another map, moved by an address offset
+     *
+     * @param other  Map of code appended at the offset
+     * @param offset ROM address of the other map's address 0
+     */
+    public void append(SourceMap other, int offset) {
+        for (int i = 0; i < other.size(); i++) {
+            add(other.start(i) + offset, other.file(i), other.line(i), other.function(i), other.command(i));
+        }
+    }
+
+    /**
+     * Moves the start of an entry, used when optimization changes the code
+     *
+     * @param index Entry index
+     * @param start New ROM address of its first word
+     */
+    public void setStart(int index, int start) {
+        starts.set(index, start);
+    }
+
+    /**
+     * Sets the size of the program, which ends the last entry
+     *
+     * @param romSize Number of ROM words
+     */
+    public void setRomSize(int romSize) {
+        this.romSize = romSize;
+    }
+
+    public int getRomSize() {
+        return romSize;
+    }
+
+    public int size() {
+        return starts.size();
+    }
+
+    public int start(int index) {
+        return starts.get(index);
+    }
+
+    /**
+     * Returns the address after the last word of an entry
+     *
+     * @param index Entry index
+     * @return End address, exclusive
+     */
+    public int end(int index) {
+        return (index + 1 < starts.size()) ? starts.get(index + 1) : romSize;
+    }
+
+    public String file(int index) {
+        return files.get(index);
+    }
+
+    public int line(int index) {
+        return lines.get(index);
+    }
+
+    public String function(int index) {
+        return functions.get(index);
+    }
+
+    public String command(int index) {
+        return commands.get(index);
+    }
+
+    /**
+     * Returns the entry of every ROM address. Where entries without code
+     * share an address with the next one, the address belongs to the last.
+     *
+     * @return Entry index per ROM address
+     */
+    public int[] entriesByAddress() {
+        int[] entries = new int[romSize];
+        for (int i = 0; i < size(); i++) {
+            for (int address = start(i); address < end(i) && address < romSize; address++) {
+                entries[address] = i;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the map as a text file
+     *
+     * @param file Output file
+     * @throws FileNotFoundException If the file cannot be created
+     */
+    public void write(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println(HEADER);
+            for (int i = 0; i < size(); i++) {
+                out.println(start(i) + "\t" + end(i) + "\t" + file(i) + "\t" + line(i) + "\t" + function(i) +
+                        "\t" + command(i));
+            }
+        }
+    }
+
+    /**
+     * Writes the entries in binary form, e.g. for the map of a cached unit
+     *
+     * @param out Output stream
+     * @throws IOException If writing fails
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size());
+        for (int i = 0; i < size(); i++) {
+            out.writeInt(start(i));
+            out.writeUTF(file(i));
+            out.writeInt(line(i));
+            out.writeUTF(function(i));
+            out.writeUTF(command(i));
+        }
+    }
+
+    /**
+     * Reads entries written by writeTo
+     *
+     * @param in Input stream
+     * @return Source map without ROM size
+     * @throws IOException If reading fails
+     */
+    public static SourceMap readFrom(DataInputStream in) throws IOException {
+        SourceMap map = new SourceMap();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            map.add(in.readInt(), in.readUTF(), in.readInt(), in.readUTF(), in.readUTF());
+        }
+        return map;
+    }
+
+    /**
+     * Reads a map written by write
+     *
+     * @param file Map file
+     * @return Source map
+     */
+    public static SourceMap read(File file) {
+        SourceMap map = new SourceMap();
+        try {
+            for (String text : Files.readAllLines(file.toPath())) {
+                if (text.isEmpty() || text.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = text.split("\t", 6);
+                if (fields.length != 6) {
+                    throw new IllegalArgumentException("Invalid source map line: " + text);
+                }
+                map.add(Integer.parseInt(fields[0]), fields[2], Integer.parseInt(fields[3]), fields[4], fields[5]);
+                map.romSize = Integer.parseInt(fields[1]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid source map " + file.getName() + ": " + e.getMessage());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + file.getName() + ": " + e.getMessage());
+        }
+        return map;
+    }
+}
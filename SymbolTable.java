@@ -0,0 +1,158 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Interns label and function names into dense integer ids.
+ * A name is validated once, the first time it is interned.
+ * Names can also be interned straight from bytes; an open-addressing table
+ * keyed by String.hashCode then finds known names without creating a String.
+ */
+public class SymbolTable {
+    private static final Pattern labelReg = Pattern.compile("^[^0-9][0-9A-Za-z\\_\\:\\.\\$]+");
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<String> names = new ArrayList<>();
+    private int[] slots = new int[64];
+
+    /**
+     * Returns the id of a name, adding it to the table if it is new
+     *
+     * @param name Label or function name
+     * @return Symbol id
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (!labelReg.matcher(name).find()) {
+            throw new IllegalArgumentException("Invalid label format: " + name);
+        }
+        int newId = names.size();
+        names.add(name);
+        ids.put(name, newId);
+        addSlot(name.hashCode(), newId);
+        return newId;
+    }
+
+    /**
+     * Returns the id of a name given as ISO-8859-1 bytes, adding it to the
+     * table if it is new. Only a new name creates a String.
+     *
+     * @param bytes Buffer holding the name, read with absolute gets
+     * @param start Index of the first byte
+     * @param end   Index after the last byte
+     * @return Symbol id
+     */
+    public int intern(ByteBuffer bytes, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + (bytes.get(i) & 0xFF);
+        }
+
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (equalsName(names.get(id), bytes, start, end)) {
+                return id;
+            }
+        }
+
+        byte[] copy = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            copy[i - start] = bytes.get(i);
+        }
+        String name = new String(copy, StandardCharsets.ISO_8859_1);
+        if (!isValidName(copy)) {
+            throw new IllegalArgumentException("Invalid label format: " + name);
+        }
+        int newId = names.size();
+        names.add(name);
+        ids.put(name, newId);
+        addSlot(hash, newId);
+        return newId;
+    }
+
+    /**
+     * Applies the labelReg check to bytes: a first character that is not a
+     * digit, followed by at least one name character
+     */
+    private static boolean isValidName(byte[] name) {
+        if (name.length < 2 || (name[0] >= '0' && name[0] <= '9')) {
+            return false;
+        }
+        byte b = name[1];
+        return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z')
+                || b == '_' || b == ':' || b == '.' || b == '$';
+    }
+
+    private static boolean equalsName(String name, ByteBuffer bytes, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (name.charAt(i - start) != (bytes.get(i) & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addSlot(int hash, int id) {
+        if (2 * (names.size() + 1) > slots.length) {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            for (int oldId = 0; oldId < names.size() - 1; oldId++) {
+                insertSlot(names.get(oldId).hashCode(), oldId);
+            }
+        }
+        insertSlot(hash, id);
+    }
+
+    private void insertSlot(int hash, int id) {
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = id + 1;
+    }
+
+    // Spreads the high bits of String.hashCode into the low bits used as slot index
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the id of a name without adding it
+     *
+     * @param name Label or function name
+     * @return Symbol id, or -1 if the name is not in the table
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return (id != null) ? id : -1;
+    }
+
+    /**
+     * Returns the name of a symbol id
+     *
+     * @param id Symbol id
+     * @return Label or function name
+     */
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Returns the number of interned symbols
+     *
+     * @return Symbol count
+     */
+    public int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Generates synthetic multi-file VM programs of arbitrary size for the
+ * benchmarks. Every function loops over its argument, so the programs also
+ * run to completion in the emulator.
+ */
+public class SyntheticProgram {
+    public static final int DEFAULT_FUNCTIONS = 8;
+
+    /**
+     * Writes a synthetic program: files F0.vm to F(n-1).vm with the given
+     * number of functions each, mixing loops, comparisons, segment accesses and calls,
+     * plus a Sys.vm whose Sys.init calls into the first file
+     *
+     * @param dir       Directory to write into
+     * @param files     Number of files besides Sys.vm
+     * @param functions Number of functions per file
+     */
+    public static void generate(File dir, int files, int functions) throws IOException {
+        for (int f = 0; f < files; f++) {
+            try (PrintWriter out = new PrintWriter(new File(dir, "F" + f + ".vm"))) {
+                for (int fn = 0; fn < functions; fn++) {
+                    String name = "F" + f + ".f" + fn;
+                    out.println("function " + name + " 2");
+                    out.println("push argument 0");
+                    out.println("pop local 0");
+                    out.println("label LOOP");
+                    out.println("push local 0");
+                    out.println("push constant 0");
+                    out.println("gt");
+                    out.println("not");
+                    out.println("if-goto END");
+                    out.println("push local 1");
+                    out.println("push static " + fn);
+                    out.println("add");
+                    out.println("pop local 1");
+                    out.println("push local 0");
+                    out.println("push constant 1");
+                    out.println("sub");
+                    out.println("pop local 0");
+                    out.println("push local 1");
+                    out.println("push constant " + (fn + 1));
+                    out.println("eq");
+                    out.println("pop temp " + (fn % 8));
+                    out.println("goto LOOP");
+                    out.println("label END");
+                    if (fn + 1 < functions) {
+                        out.println("push local 1");
+                        out.println("call F" + f + ".f" + (fn + 1) + " 1");
+                        out.println("pop static " + fn);
+                    }
+                    out.println("push local 1");
+                    out.println("return");
+                }
+            }
+        }
+        try (PrintWriter out = new PrintWriter(new File(dir, "Sys.vm"))) {
+            out.println("function Sys.init 0");
+            out.println("push constant 3");
+            out.println("call F0.f0 1");
+            out.println("pop temp 0");
+            out.println("label HALT");
+            out.println("goto HALT");
+        }
+    }
+
+    /**
+     * Deletes a directory written by generate and the files in it
+     *
+     * @param dir Directory
+     */
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Usage: java SyntheticProgram directory files [functions]
+     *
+     * @param args Output directory, number of files and functions per file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java SyntheticProgram directory files [functions]");
+            return;
+        }
+        File dir = new File(args[0]);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Error: cannot create " + dir);
+            return;
+        }
+        int functions = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_FUNCTIONS;
+        generate(dir, Integer.parseInt(args[1]), functions);
+        System.out.println("Generated " + args[1] + " files with " + functions + " functions each in " + dir);
+    }
+}
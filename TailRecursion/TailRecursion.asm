@@ -0,0 +1,1133 @@
+@256
+D=A
+@SP
+M=D
+@RETURN_LABEL0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@0
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Sys.init
+0;JMP
+(RETURN_LABEL0)
+(Main.count)
+@ARG
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@2
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@LCL
+D=M-D
+@8
+D=D-A
+@Main.vm$TAIL_CALL0
+D;JLT
+@Main.vm$TAIL_ARGS0
+D;JEQ
+@LCL
+D=M
+@6
+D=D-A
+@R13
+M=D
+@ARG
+D=M
+@3
+D=D+A
+@R14
+M=D-1
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+(Main.vm$TAIL_ARGS0)
+@SP
+D=M
+@4
+D=D-A
+@R13
+M=D
+@ARG
+D=M-1
+@R14
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@ARG
+D=M
+@8
+D=D+A
+@SP
+M=D
+@LCL
+M=D
+@Main.step
+0;JMP
+(Main.vm$TAIL_CALL0)
+@Main.vm$RETURN_LABEL1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@3
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Main.step
+0;JMP
+(Main.vm$RETURN_LABEL1)
+@LCL
+D=M
+@R11
+M=D
+@5
+A=D-A
+D=M
+@R12
+M=D
+@ARG
+D=M
+@0
+D=D+A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@ARG
+D=M
+@SP
+M=D+1
+@R11
+D=M-1
+AM=D
+D=M
+@THAT
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@THIS
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@ARG
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@LCL
+M=D
+@R12
+A=M
+0;JMP
+(Main.step)
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@2
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@0
+D=D+A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@ARG
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+@THIS
+M=D
+@ARG
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@1
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D+M
+@ARG
+D=M
+@LCL
+D=M-D
+@7
+D=D-A
+@Main.vm$TAIL_CALL2
+D;JLT
+@Main.vm$TAIL_ARGS2
+D;JEQ
+@LCL
+D=M
+@6
+D=D-A
+@R13
+M=D
+@ARG
+D=M
+@2
+D=D+A
+@R14
+M=D-1
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+(Main.vm$TAIL_ARGS2)
+@SP
+D=M
+@3
+D=D-A
+@R13
+M=D
+@ARG
+D=M-1
+@R14
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@ARG
+D=M
+@7
+D=D+A
+@SP
+M=D
+@LCL
+M=D
+@Main.sum
+0;JMP
+(Main.vm$TAIL_CALL2)
+@Main.vm$RETURN_LABEL3
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@2
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Main.sum
+0;JMP
+(Main.vm$RETURN_LABEL3)
+@LCL
+D=M
+@R11
+M=D
+@5
+A=D-A
+D=M
+@R12
+M=D
+@ARG
+D=M
+@0
+D=D+A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@ARG
+D=M
+@SP
+M=D+1
+@R11
+D=M-1
+AM=D
+D=M
+@THAT
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@THIS
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@ARG
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@LCL
+M=D
+@R12
+A=M
+0;JMP
+(Main.sum)
+@ARG
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@Main.vm$FALSE0
+D;JNE
+@SP
+A=M-1
+M=-1
+@Main.vm$CONTINUE0
+0;JMP
+(Main.vm$FALSE0)
+@SP
+A=M-1
+M=0
+(Main.vm$CONTINUE0)
+@SP
+AM=M-1
+D=M
+A=A-1
+@DONE
+D;JNE
+@ARG
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@1
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M-D
+@ARG
+D=M
+@1
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@2
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=D+M
+@ARG
+D=M
+@LCL
+D=M-D
+@7
+D=D-A
+@Main.vm$TAIL_CALL4
+D;JLT
+@Main.vm$TAIL_ARGS4
+D;JEQ
+@LCL
+D=M
+@6
+D=D-A
+@R13
+M=D
+@ARG
+D=M
+@2
+D=D+A
+@R14
+M=D-1
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+(Main.vm$TAIL_ARGS4)
+@SP
+D=M
+@3
+D=D-A
+@R13
+M=D
+@ARG
+D=M-1
+@R14
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@ARG
+D=M
+@7
+D=D+A
+@SP
+M=D
+@LCL
+M=D
+@Main.sum
+0;JMP
+(Main.vm$TAIL_CALL4)
+@Main.vm$RETURN_LABEL5
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@2
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Main.sum
+0;JMP
+(Main.vm$RETURN_LABEL5)
+@LCL
+D=M
+@R11
+M=D
+@5
+A=D-A
+D=M
+@R12
+M=D
+@ARG
+D=M
+@0
+D=D+A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@ARG
+D=M
+@SP
+M=D+1
+@R11
+D=M-1
+AM=D
+D=M
+@THAT
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@THIS
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@ARG
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@LCL
+M=D
+@R12
+A=M
+0;JMP
+(DONE)
+@ARG
+D=M
+@1
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@LCL
+D=M-D
+@6
+D=D-A
+@Main.vm$TAIL_CALL6
+D;JLT
+@Main.vm$TAIL_ARGS6
+D;JEQ
+@LCL
+D=M
+@6
+D=D-A
+@R13
+M=D
+@ARG
+D=M
+@1
+D=D+A
+@R14
+M=D-1
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+@R13
+AM=M+1
+D=M
+@R14
+AM=M+1
+M=D
+(Main.vm$TAIL_ARGS6)
+@SP
+A=M-1
+D=M
+@ARG
+A=M
+M=D
+@ARG
+D=M
+@6
+D=D+A
+@SP
+M=D
+@LCL
+M=D
+@Main.identity
+0;JMP
+(Main.vm$TAIL_CALL6)
+@Main.vm$RETURN_LABEL7
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@1
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Main.identity
+0;JMP
+(Main.vm$RETURN_LABEL7)
+@LCL
+D=M
+@R11
+M=D
+@5
+A=D-A
+D=M
+@R12
+M=D
+@ARG
+D=M
+@0
+D=D+A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@ARG
+D=M
+@SP
+M=D+1
+@R11
+D=M-1
+AM=D
+D=M
+@THAT
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@THIS
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@ARG
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@LCL
+M=D
+@R12
+A=M
+0;JMP
+(Main.identity)
+@ARG
+D=M
+@0
+A=D+A
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@R11
+M=D
+@5
+A=D-A
+D=M
+@R12
+M=D
+@ARG
+D=M
+@0
+D=D+A
+@R13
+M=D
+@SP
+AM=M-1
+D=M
+@R13
+A=M
+M=D
+@ARG
+D=M
+@SP
+M=D+1
+@R11
+D=M-1
+AM=D
+D=M
+@THAT
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@THIS
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@ARG
+M=D
+@R11
+D=M-1
+AM=D
+D=M
+@LCL
+M=D
+@R12
+A=M
+0;JMP
+(Sys.init)
+@3000
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+@THIS
+M=D
+@5000
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@Sys.vm$RETURN_LABEL0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@1
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Main.count
+0;JMP
+(Sys.vm$RETURN_LABEL0)
+(END)
+@END
+0;JMP
@@ -0,0 +1,14 @@
+// Tests TailRecursion.asm on the CPU emulator.
+// TailRecursion.asm results from translating Main.vm and Sys.vm with
+// -tail-calls. The recursion is 5000 calls deep: without frame reuse the
+// stack would run past the end of RAM.
+
+compare-to TailRecursion.cmp,
+
+repeat 700000 {
+	ticktock;
+}
+
+// Outputs the stack pointer, THIS of Sys.init and the value at the stack's base.
+output-list RAM[0]%D1.6.1 RAM[3]%D1.6.1 RAM[261]%D1.6.1;
+output;
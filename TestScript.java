@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the parts of a CPU emulator test script (.tst) needed to run a
+ * program in the HackEmulator: RAM presets, the cycle count and the RAM
+ * addresses of the output list, and the compare file holding the expected
+ * results.
+ */
+public class TestScript {
+    private static final Pattern setRamReg = Pattern.compile("set\\s+RAM\\[(\\d+)\\]\\s+(-?\\d+)");
+    private static final Pattern repeatReg = Pattern.compile("repeat\\s+(\\d+)");
+    private static final Pattern outputReg = Pattern.compile("RAM\\[(\\d+)\\]%");
+    private static final Pattern compareToReg = Pattern.compile("compare-to\\s+([^\\s,;]+)");
+
+    private final ArrayList<int[]> presets = new ArrayList<>();
+    private final ArrayList<Integer> outputs = new ArrayList<>();
+    private long cycles = -1;
+    private File compareTo;
+
+    /**
+     * Parses a test script. Each ticktock of a repeat block is one cycle.
+     *
+     * @param tst Test script
+     * @throws FileNotFoundException If the script is not found
+     */
+    public TestScript(File tst) throws FileNotFoundException {
+        Scanner scanner = new Scanner(tst);
+        boolean inOutputList = false;
+
+        while (scanner.hasNextLine()) {
+            String line = VMParser.noComments(scanner.nextLine());
+
+            Matcher set = setRamReg.matcher(line);
+            while (set.find()) {
+                presets.add(new int[] { Integer.parseInt(set.group(1)), Integer.parseInt(set.group(2)) });
+            }
+            Matcher repeat = repeatReg.matcher(line);
+            if (repeat.find()) {
+                cycles = Long.parseLong(repeat.group(1));
+            }
+            Matcher compare = compareToReg.matcher(line);
+            if (compare.find()) {
+                compareTo = new File(tst.getAbsoluteFile().getParentFile(), compare.group(1));
+            }
+            if (line.contains("output-list")) {
+                inOutputList = true;
+            }
+            if (inOutputList) {
+                Matcher out = outputReg.matcher(line);
+                while (out.find()) {
+                    outputs.add(Integer.parseInt(out.group(1)));
+                }
+                if (line.contains(";")) {
+                    inOutputList = false;
+                }
+            }
+        }
+
+        scanner.close();
+    }
+
+    /**
+     * Finds the test script with the same name as a program, e.g. Prog.tst for Prog.asm
+     *
+     * @param program Program file
+     * @return Test script next to the program, or null if there is none
+     */
+    public static File findFor(File program) {
+        String path = program.getPath();
+        File tst = new File(path.substring(0, path.lastIndexOf('.') + 1) + "tst");
+        return tst.isFile() ? tst : null;
+    }
+
+    /**
+     * Sets the RAM presets of the script in an emulator
+     *
+     * @param emu Emulator
+     */
+    public void applyPresets(HackMachine emu) {
+        for (int[] preset : presets) {
+            emu.setRam(preset[0], preset[1]);
+        }
+    }
+
+    /**
+     * Sets the segment pointers used when a program has no test script:
+     * SP 256, LCL 300, ARG 400, THIS 3000 and THAT 3010
+     *
+     * @param emu Emulator
+     */
+    public static void applyDefaultPresets(HackMachine emu) {
+        emu.setRam(0, 256);
+        emu.setRam(1, 300);
+        emu.setRam(2, 400);
+        emu.setRam(3, 3000);
+        emu.setRam(4, 3010);
+    }
+
+    /**
+     * Returns the RAM addresses listed by the output-list command
+     *
+     * @return RAM addresses in output order
+     */
+    public ArrayList<Integer> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Returns the number of cycles the script runs the program for
+     *
+     * @return Cycle count, or -1 if the script has no repeat block
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Returns the compare file named by the compare-to command, resolved
+     * against the directory of the script
+     *
+     * @return Compare file, or null if the script has none
+     */
+    public File getCompareTo() {
+        return compareTo;
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of translated units, one per .vm file. The code of a file
+ * depends only on its name, its content and the code generation settings:
+ * generated labels are numbered per file and prefixed with its name. So a
+ * unit saved by ASMWriter.writeUnit can be spliced into any later build.
+ *
+ * Entries are kept in a directory per fingerprint of the translator version
+ * and the options, named {@code File.vm.<content hash>.unit}. The translator
+ * version is a hash of the class files of the translator itself, so a
+ * rebuilt translator never reuses stale code. Storing a new entry for a file
+ * removes its older ones.
+ */
+public class TranslationCache {
+    public static final String DEFAULT_DIR = ".vmcache";
+
+    // Classes whose code determines the translation of a file
+    private static final Class<?>[] TRANSLATOR = { VMTranslator.class, ASMWriter.class, AsmBuffer.class,
+            Peephole.class, PeepholeReport.class, VMLexer.class, VMParser.class, VMCode.class, VMOptimizer.class,
+            Opcode.class, Segment.class, SymbolTable.class, SourceMap.class, TranslationCache.class };
+
+    private static final String SUFFIX = ".unit";
+
+    private final File dir;
+    private int hits;
+    private int misses;
+
+    /**
+     * Opens the cache for one set of code generation options
+     *
+     * @param root    Cache directory, created when the first entry is stored
+     * @param options Translator options
+     */
+    public TranslationCache(File root, TranslatorOptions options) {
+        MessageDigest digest = newDigest();
+        for (Class<?> c : TRANSLATOR) {
+            try (InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class")) {
+                digest.update((in != null) ? in.readAllBytes() : c.getName().getBytes());
+            } catch (IOException e) {
+                digest.update(c.getName().getBytes());
+            }
+        }
+        digest.update(options.getCodeGenerationKey().getBytes());
+        dir = new File(root, hex(digest.digest()).substring(0, 16));
+    }
+
+    /**
+     * Reads the unit of a file from the cache. A missing, unreadable or
+     * truncated entry is a miss.
+     *
+     * @param vmFile  .vm file
+     * @param content Content of the file
+     * @param writer  Writer the unit will be appended to
+     * @return Finished unit writer, or null on a miss
+     */
+    public ASMWriter load(File vmFile, byte[] content, ASMWriter writer) {
+        File entry = entry(vmFile, content);
+        if (entry.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+                ASMWriter unit = writer.readUnit(in);
+                hits++;
+                return unit;
+            } catch (IOException e) {
+                // Treated as a miss and overwritten by the next store
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Stores the unit of a file and removes older entries for the file
+     *
+     * @param vmFile  .vm file
+     * @param content Content of the file the unit was translated from
+     * @param unit    Finished unit writer
+     */
+    public void store(File vmFile, byte[] content, ASMWriter unit) {
+        File entry = entry(vmFile, content);
+        try {
+            Files.createDirectories(dir.toPath());
+            File temp = File.createTempFile(vmFile.getName() + ".", ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                unit.writeUnit(out);
+            }
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot write cache entry " + entry.getName() + ": " + e.getMessage());
+        }
+
+        File[] older = dir.listFiles((d, name) -> name.startsWith(vmFile.getName() + ".")
+                && name.endsWith(SUFFIX) && !name.equals(entry.getName()));
+        if (older != null) {
+            for (File f : older) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of units read from the cache since the last reset
+     *
+     * @return Cache hits
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of files not found in the cache since the last reset
+     *
+     * @return Cache misses
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    public void resetCounts() {
+        hits = 0;
+        misses = 0;
+    }
+
+    private File entry(File vmFile, byte[] content) {
+        return new File(dir, vmFile.getName() + "." + hex(newDigest().digest(content)) + SUFFIX);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
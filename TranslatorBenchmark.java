@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Measures translation throughput of a directory with one worker thread
+ * against several, on a synthetic program of many .vm files.
+ * Also checks that both translations are identical.
+ */
+public class TranslatorBenchmark {
+    private static final int DEFAULT_FILES = 1000;
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 5;
+
+    /**
+     * Translates the files repeatedly and returns the average time per run
+     *
+     * @param vmFiles List of .vm files
+     * @param options Translator options
+     * @param result  Receives the assembly of the last run
+     * @return Average milliseconds per run
+     */
+    private static double time(ArrayList<File> vmFiles, TranslatorOptions options, ArrayList<String> result) {
+        ArrayList<String> lines = null;
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            lines = VMTranslator.translateToLines(vmFiles, options);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            lines = VMTranslator.translateToLines(vmFiles, options);
+        }
+        long elapsed = System.nanoTime() - start;
+        result.addAll(lines);
+        return elapsed / 1e6 / MEASURED_RUNS;
+    }
+
+    /**
+     * Usage: java TranslatorBenchmark [files] [threads] [translator options]
+     *
+     * @param args Number of files, number of threads and translator options
+     */
+    public static void main(String[] args) throws IOException {
+        int files = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_FILES;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        String[] optionArgs = new String[Math.max(0, args.length - 2)];
+        System.arraycopy(args, Math.min(2, args.length), optionArgs, 0, optionArgs.length);
+
+        File dir = Files.createTempDirectory("vmbench").toFile();
+        try {
+            SyntheticProgram.generate(dir, files, SyntheticProgram.DEFAULT_FUNCTIONS);
+            ArrayList<File> vmFiles = VMTranslator.getVMFiles(dir);
+
+            TranslatorOptions sequential = TranslatorOptions.parse(optionArgs);
+            sequential.setThreads(1);
+            TranslatorOptions parallel = sequential.copy();
+            parallel.setThreads(threads);
+
+            ArrayList<String> sequentialLines = new ArrayList<>();
+            ArrayList<String> parallelLines = new ArrayList<>();
+            double sequentialMs = time(vmFiles, sequential, sequentialLines);
+            double parallelMs = time(vmFiles, parallel, parallelLines);
+
+            System.out.println(vmFiles.size() + " files, " + sequentialLines.size() + " assembly lines");
+            System.out.printf("%2d thread(s): %8.1f ms/run %8.0f files/s%n", 1, sequentialMs,
+                    vmFiles.size() * 1000 / sequentialMs);
+            System.out.printf("%2d thread(s): %8.1f ms/run %8.0f files/s  speedup %.2fx%n", threads, parallelMs,
+                    vmFiles.size() * 1000 / parallelMs, sequentialMs / parallelMs);
+            System.out.println("Output identical: " + sequentialLines.equals(parallelLines));
+        } finally {
+            SyntheticProgram.delete(dir);
+        }
+    }
+}
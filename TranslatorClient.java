@@ -0,0 +1,141 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Thin client for the TranslatorDaemon: sends its command line to the
+ * daemon, prints the translator's output and exits with its status.
+ * Takes the same arguments as VMTranslator, plus the daemon address.
+ */
+public class TranslatorClient {
+
+    /**
+     * Sends one request to a daemon and prints the response
+     *
+     * @param address Address of the daemon
+     * @param args    VMTranslator command line
+     * @param out     Receives the translator's stdout, may be null
+     * @param err     Receives the translator's stderr, may be null
+     * @return Exit status of the request
+     * @throws IOException If the daemon cannot be reached
+     */
+    static int send(SocketAddress address, String[] args, PrintStream out, PrintStream err) throws IOException {
+        try (SocketChannel channel = TranslatorDaemon.connect(address)) {
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(Channels.newInputStream(channel));
+            int status = response.readInt();
+            String outText = readText(response);
+            String errText = readText(response);
+            if (out != null) {
+                out.print(outText);
+                out.flush();
+            }
+            if (err != null) {
+                err.print(errText);
+                err.flush();
+            }
+            return status;
+        }
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes the paths of a command line absolute, since the daemon runs in
+     * its own working directory: the inputs, -out, -manifest and -summary
+     * against the working directory, and a relative -cache directory against
+     * the input directory, as VMTranslator resolves it. In a batch each
+     * program has its own cache directory, found from its absolute input.
+     *
+     * @param args VMTranslator command line
+     * @return Command line with absolute paths
+     */
+    static String[] absolutePaths(ArrayList<String> args) {
+        ArrayList<String> inputs = new ArrayList<>();
+        boolean batch = false;
+        for (String arg : args) {
+            if (!arg.startsWith("-")) {
+                inputs.add(arg);
+            } else if (arg.equals("-batch") || arg.startsWith("-manifest=")) {
+                batch = true;
+            }
+        }
+
+        String[] result = new String[args.size()];
+        for (int i = 0; i < result.length; i++) {
+            String arg = args.get(i);
+            if (!arg.startsWith("-")) {
+                arg = new File(arg).getAbsolutePath();
+            } else if (arg.startsWith("-out=") || arg.startsWith("-manifest=") || arg.startsWith("-summary=")) {
+                int eq = arg.indexOf('=');
+                arg = arg.substring(0, eq + 1) + new File(arg.substring(eq + 1)).getAbsolutePath();
+            } else if (arg.startsWith("-cache=") && !batch && inputs.size() == 1) {
+                File cache = new File(arg.substring("-cache=".length()));
+                if (!cache.isAbsolute()) {
+                    File input = new File(inputs.get(0)).getAbsoluteFile();
+                    cache = new File(input.isDirectory() ? input : input.getParentFile(), cache.getPath());
+                }
+                arg = "-cache=" + cache.getPath();
+            }
+            result[i] = arg;
+        }
+        return result;
+    }
+
+    /**
+     * Usage: java TranslatorClient [-socket=PATH | -port=N] [translator options] file|dir,
+     * or java TranslatorClient [-socket=PATH | -port=N] -stop
+     *
+     * @param args Daemon address and VMTranslator command line
+     */
+    public static void main(String[] args) {
+        String socket = TranslatorDaemon.DEFAULT_SOCKET;
+        int port = 0;
+        ArrayList<String> request = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("-socket=")) {
+                    socket = arg.substring("-socket=".length());
+                } else if (arg.startsWith("-port=")) {
+                    port = Integer.parseInt(arg.substring("-port=".length()));
+                } else {
+                    request.add(arg);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: invalid port: " + e.getMessage());
+            System.exit(2);
+        }
+        if (request.isEmpty()) {
+            System.out.println("Usage: java TranslatorClient [-socket=PATH | -port=N] [translator options] " +
+                    "file|dir\n       java TranslatorClient [-socket=PATH | -port=N] -stop");
+            System.exit(2);
+        }
+
+        SocketAddress address = TranslatorDaemon.address(socket, port);
+        try {
+            System.exit(send(address, absolutePaths(request), System.out, System.err));
+        } catch (IOException e) {
+            System.err.println("Cannot reach the translator daemon at " + address + ": " + e.getMessage() +
+                    "\nStart it with: java TranslatorDaemon" + ((port != 0) ? " -port=" + port : ""));
+            System.exit(2);
+        }
+    }
+}
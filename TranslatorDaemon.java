@@ -0,0 +1,252 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a warm translator resident and serves translate requests over a
+ * Unix domain socket or a loopback TCP port, so that repeated builds pay
+ * neither JVM startup nor a cold JIT. Requests are handled concurrently on
+ * a pool of handler threads; each runs VMTranslator.run with its own
+ * output streams.
+ *
+ * Protocol, one request per connection, in DataOutputStream encoding: the
+ * client sends the number of arguments and each argument as UTF, exactly
+ * the command line of VMTranslator. The daemon answers with the exit status
+ * and the text printed to stdout and stderr, each as a length-prefixed
+ * UTF-8 byte array. Relative paths are resolved against the daemon's
+ * working directory, so TranslatorClient sends absolute paths. The single
+ * argument -stop shuts the daemon down.
+ */
+public class TranslatorDaemon {
+    public static final String DEFAULT_SOCKET = new File(System.getProperty("java.io.tmpdir"),
+            "vmtranslator.sock").getPath();
+    private static final int DEFAULT_HANDLERS = 4;
+
+    // Request that shuts the daemon down
+    static final String STOP = "-stop";
+
+    private final ServerSocketChannel server;
+    private final String socketPath;
+
+    private TranslatorDaemon(ServerSocketChannel server, String socketPath) {
+        this.server = server;
+        this.socketPath = socketPath;
+    }
+
+    /**
+     * Returns the address of a daemon
+     *
+     * @param socket Path of the Unix domain socket, used when port is 0
+     * @param port   Loopback TCP port, or 0
+     * @return Socket address
+     */
+    static SocketAddress address(String socket, int port) {
+        if (port != 0) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        }
+        return UnixDomainSocketAddress.of(socket);
+    }
+
+    /**
+     * Connects to a daemon
+     *
+     * @param address Address of the daemon
+     * @return Connected channel
+     * @throws IOException If no daemon is listening
+     */
+    static SocketChannel connect(SocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open((address instanceof UnixDomainSocketAddress)
+                ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+        try {
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Opens the listening socket. A socket file left behind by a daemon that
+     * did not shut down is removed; a live daemon is an error.
+     *
+     * @param socket Path of the Unix domain socket, used when port is 0
+     * @param port   Loopback TCP port, or 0
+     * @return Daemon ready to accept requests
+     * @throws IOException If the socket cannot be opened
+     */
+    private static TranslatorDaemon open(String socket, int port) throws IOException {
+        SocketAddress address = address(socket, port);
+        if (port != 0) {
+            return new TranslatorDaemon(ServerSocketChannel.open(StandardProtocolFamily.INET).bind(address), null);
+        }
+
+        File file = new File(socket);
+        if (file.exists()) {
+            boolean running;
+            try {
+                connect(address).close();
+                running = true;
+            } catch (IOException e) {
+                running = false;
+            }
+            if (running) {
+                throw new IllegalArgumentException("A daemon is already listening on " + socket);
+            }
+            Files.delete(file.toPath());
+        }
+        return new TranslatorDaemon(ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(address), socket);
+    }
+
+    /**
+     * Accepts connections until a stop request closes the socket
+     *
+     * @param handlers Number of requests served at once
+     */
+    private void serve(int handlers) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(handlers);
+        try {
+            while (true) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                pool.submit(() -> handle(client));
+            }
+        } finally {
+            pool.shutdown();
+            if (socketPath != null) {
+                Files.deleteIfExists(new File(socketPath).toPath());
+            }
+        }
+    }
+
+    /**
+     * Reads one request, runs the translator and writes the response
+     *
+     * @param client Connection of the request
+     */
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+            ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+            int status;
+            try (PrintStream out = new PrintStream(outBytes, true, StandardCharsets.UTF_8);
+                    PrintStream err = new PrintStream(errBytes, true, StandardCharsets.UTF_8)) {
+                status = execute(args, out, err);
+            }
+
+            DataOutputStream response = new DataOutputStream(Channels.newOutputStream(channel));
+            response.writeInt(status);
+            writeBytes(response, outBytes.toByteArray());
+            writeBytes(response, errBytes.toByteArray());
+            response.flush();
+
+            if (args.length == 1 && args[0].equals(STOP)) {
+                server.close();
+            }
+        } catch (EOFException e) {
+            // Closed before sending a whole request, e.g. a check that the daemon is up
+        } catch (IOException e) {
+            System.err.println("Request failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs one request. Errors never reach the daemon itself.
+     *
+     * @return Exit status for the client
+     */
+    private static int execute(String[] args, PrintStream out, PrintStream err) {
+        if (args.length == 1 && args[0].equals(STOP)) {
+            out.println("Translator daemon stopped");
+            return 0;
+        }
+        for (String arg : args) {
+            if (arg.equals("-watch")) {
+                err.println("Error: -watch is not supported by the daemon");
+                return 1;
+            }
+        }
+        try {
+            return VMTranslator.run(args, out, err);
+        } catch (RuntimeException e) {
+            err.println("Error: " + e);
+            return 1;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Usage: java TranslatorDaemon [-socket=PATH | -port=N] [-handlers=N]
+     *
+     * @param args Socket path or TCP port, and number of requests served at once
+     */
+    public static void main(String[] args) {
+        String socket = DEFAULT_SOCKET;
+        int port = 0;
+        int handlers = DEFAULT_HANDLERS;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("-socket=")) {
+                    socket = arg.substring("-socket=".length());
+                } else if (arg.startsWith("-port=")) {
+                    port = Integer.parseInt(arg.substring("-port=".length()));
+                } else if (arg.startsWith("-handlers=")) {
+                    handlers = Integer.parseInt(arg.substring("-handlers=".length()));
+                } else {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+            if (handlers < 1 || port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Handlers must be positive and the port 1-65535");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.out.println("Usage: java TranslatorDaemon [-socket=PATH | -port=N] [-handlers=N]\n" +
+                    "  -socket=PATH  Unix domain socket to listen on (default: " + DEFAULT_SOCKET + ")\n" +
+                    "  -port=N       listen on loopback TCP port N instead\n" +
+                    "  -handlers=N   requests served at once (default: " + DEFAULT_HANDLERS + ")");
+            return;
+        }
+
+        try {
+            TranslatorDaemon daemon = open(socket, port);
+            System.out.println("Translator daemon listening on " + ((port != 0) ? "127.0.0.1:" + port : socket));
+            daemon.serve(handlers);
+        } catch (IOException e) {
+            System.err.println("Cannot listen on " + ((port != 0) ? "port " + port : socket) + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
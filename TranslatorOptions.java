@@ -0,0 +1,568 @@
+import java.util.ArrayList;
+
+/**
+ * Holds the command line options of the translator.
+ * Options start with '-' and may appear anywhere before or after the input.
+ */
+public class TranslatorOptions {
+    private boolean sharedReturn;
+    private boolean sharedCall;
+    private boolean sharedCompare;
+    private boolean fuseBranches;
+    private boolean peephole;
+    private boolean cacheTos;
+    private boolean foldConstants;
+    private boolean verify;
+    private boolean deadFunctionElimination;
+    private boolean inline;
+    private boolean elideFrames;
+    private boolean tailCalls;
+    private boolean specializeIndex;
+    private boolean compactPrologue;
+    private boolean scannerParser;
+    private boolean sourceMap;
+    private String outputFormat = "asm";
+    private String cacheDir;
+    private String outputPath;
+    private boolean batch;
+    private String manifest;
+    private String summaryPath;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private boolean watch;
+    private int cycleWeight = 1;
+    private int romWeight = 1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private final ArrayList<String> inputs = new ArrayList<>();
+
+    /**
+     * Parses the command line arguments into options and input paths.
+     *
+     * @param args Command line arguments
+     * @return Parsed options
+     */
+    public static TranslatorOptions parse(String[] args) {
+        TranslatorOptions options = new TranslatorOptions();
+
+        for (String arg : args) {
+            if (!arg.startsWith("-")) {
+                options.inputs.add(arg);
+                continue;
+            }
+
+            if (arg.startsWith("-cost-weights=")) {
+                options.parseCostWeights(arg.substring("-cost-weights=".length()));
+                continue;
+            }
+
+            if (arg.startsWith("-threads=")) {
+                options.parseThreads(arg.substring("-threads=".length()));
+                continue;
+            }
+
+            if (arg.startsWith("-format=")) {
+                options.parseOutputFormat(arg.substring("-format=".length()));
+                continue;
+            }
+
+            if (arg.startsWith("-jobs=")) {
+                options.jobs = parsePositive("Jobs", arg.substring("-jobs=".length()));
+                continue;
+            }
+
+            if (arg.startsWith("-manifest=")) {
+                options.manifest = arg.substring("-manifest=".length());
+                continue;
+            }
+
+            if (arg.startsWith("-summary=")) {
+                options.summaryPath = arg.substring("-summary=".length());
+                continue;
+            }
+
+            if (arg.startsWith("-out=")) {
+                options.outputPath = arg.substring("-out=".length());
+                continue;
+            }
+
+            if (arg.startsWith("-cache=")) {
+                options.cacheDir = arg.substring("-cache=".length());
+                continue;
+            }
+
+            switch (arg) {
+                case "-cache":
+                    options.cacheDir = TranslationCache.DEFAULT_DIR;
+                    break;
+                case "-watch":
+                    options.watch = true;
+                    break;
+                case "-batch":
+                    options.batch = true;
+                    break;
+                case "-shared-return":
+                    options.sharedReturn = true;
+                    break;
+                case "-shared-call":
+                    options.sharedCall = true;
+                    break;
+                case "-shared-compare":
+                    options.sharedCompare = true;
+                    break;
+                case "-fuse-branches":
+                    options.fuseBranches = true;
+                    break;
+                case "-O1":
+                    options.peephole = true;
+                    break;
+                case "-cache-tos":
+                    options.cacheTos = true;
+                    break;
+                case "-fold":
+                    options.foldConstants = true;
+                    break;
+                case "-verify":
+                    options.verify = true;
+                    break;
+                case "-dce":
+                    options.deadFunctionElimination = true;
+                    break;
+                case "-scanner-parser":
+                    options.scannerParser = true;
+                    break;
+                case "-inline":
+                    options.inline = true;
+                    break;
+                case "-elide-frames":
+                    options.elideFrames = true;
+                    break;
+                case "-tail-calls":
+                    options.tailCalls = true;
+                    break;
+                case "-specialize-index":
+                    options.specializeIndex = true;
+                    break;
+                case "-compact-prologue":
+                    options.compactPrologue = true;
+                    break;
+                case "-map":
+                    options.sourceMap = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        return options;
+    }
+
+    /**
+     * Applies the code generation options to a writer.
+     *
+     * @param writer ASMWriter instance
+     */
+    public void configure(ASMWriter writer) {
+        writer.setSharedReturn(sharedReturn);
+        writer.setSharedCall(sharedCall);
+        writer.setSharedCompare(sharedCompare);
+        writer.setCostWeights(cycleWeight, romWeight);
+        writer.setPeephole(peephole);
+        writer.setCacheTos(cacheTos);
+        writer.setSpecializeIndex(specializeIndex);
+        writer.setCompactPrologue(compactPrologue);
+        writer.setSourceMap(sourceMap);
+    }
+
+    /**
+     * Parses cost model weights given as CYCLES:ROM.
+     *
+     * @param value Weights of one cycle and one ROM word
+     */
+    private void parseCostWeights(String value) {
+        String[] parts = value.split(":");
+        try {
+            if (parts.length != 2) {
+                throw new NumberFormatException();
+            }
+            cycleWeight = Integer.parseInt(parts[0]);
+            romWeight = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Cost weights must be CYCLES:ROM, got: " + value);
+        }
+    }
+
+    /**
+     * Parses the number of worker threads for translating files.
+     *
+     * @param value Number of threads, at least 1
+     */
+    private void parseThreads(String value) {
+        threads = parsePositive("Threads", value);
+    }
+
+    /**
+     * Parses a count that must be at least 1.
+     *
+     * @param name  Name of the option, for the error message
+     * @param value Number
+     * @return Parsed count
+     */
+    private static int parsePositive(String name, String value) {
+        int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            count = 0;
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException(name + " must be a positive number, got: " + value);
+        }
+        return count;
+    }
+
+    /**
+     * Parses the output format: asm, hack or rom.
+     *
+     * @param value Output format
+     */
+    private void parseOutputFormat(String value) {
+        if (!value.equals("asm") && !value.equals("hack") && !value.equals("rom")) {
+            throw new IllegalArgumentException("Format must be asm, hack or rom, got: " + value);
+        }
+        outputFormat = value;
+    }
+
+    /**
+     * Returns whether comparisons may use the shared routines.
+     *
+     * @return True if shared comparisons are enabled
+     */
+    public boolean isSharedCompare() {
+        return sharedCompare;
+    }
+
+    /**
+     * Returns whether a comparison followed by if-goto becomes one conditional jump.
+     *
+     * @return True if branch fusion is enabled
+     */
+    public boolean isFuseBranches() {
+        return fuseBranches;
+    }
+
+    /**
+     * Returns whether the peephole optimizer runs on the generated code.
+     *
+     * @return True for -O1
+     */
+    public boolean isPeephole() {
+        return peephole;
+    }
+
+    /**
+     * Returns whether constant arithmetic is folded at VM level.
+     *
+     * @return True if constant folding is enabled
+     */
+    public boolean isFoldConstants() {
+        return foldConstants;
+    }
+
+    /**
+     * Returns whether the result is checked against the plain translation in the emulator.
+     *
+     * @return True if verification is enabled
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * Returns whether functions unreachable from Sys.init are left out.
+     *
+     * @return True if dead function elimination is enabled
+     */
+    public boolean isDeadFunctionElimination() {
+        return deadFunctionElimination;
+    }
+
+    /**
+     * Returns whether calls to small leaf functions are replaced by their bodies.
+     *
+     * @return True if inlining is enabled
+     */
+    public boolean isInline() {
+        return inline;
+    }
+
+    /**
+     * Returns whether calls to functions that never set THIS or THAT leave
+     * them out of the frame.
+     *
+     * @return True if frame saving is elided
+     */
+    public boolean isElideFrames() {
+        return elideFrames;
+    }
+
+    /**
+     * Returns whether a call directly followed by a return reuses the
+     * current frame.
+     *
+     * @return True if tail calls are enabled
+     */
+    public boolean isTailCalls() {
+        return tailCalls;
+    }
+
+    /**
+     * Returns whether push and pop code is specialized by segment and index.
+     *
+     * @return True if index-specialized push and pop is enabled
+     */
+    public boolean isSpecializeIndex() {
+        return specializeIndex;
+    }
+
+    public void setSpecializeIndex(boolean enabled) {
+        specializeIndex = enabled;
+    }
+
+    /**
+     * Returns whether function prologues are encoded by their number of locals.
+     *
+     * @return True if the compact prologue is enabled
+     */
+    public boolean isCompactPrologue() {
+        return compactPrologue;
+    }
+
+    /**
+     * Returns whether the code of a file depends on the other files of the
+     * program, so that translated units cannot be cached.
+     *
+     * @return True if -inline, -dce or -elide-frames is enabled
+     */
+    public boolean isWholeProgram() {
+        return inline || deadFunctionElimination || elideFrames;
+    }
+
+    /**
+     * Returns whether files are parsed with the Scanner-based VMParser instead of the byte lexer.
+     *
+     * @return True if the Scanner-based parser is used
+     */
+    public boolean isScannerParser() {
+        return scannerParser;
+    }
+
+    /**
+     * Returns whether a source map from ROM addresses to VM commands is written next to the output.
+     *
+     * @return True if the source map is enabled
+     */
+    public boolean isSourceMap() {
+        return sourceMap;
+    }
+
+    public void setSourceMap(boolean enabled) {
+        sourceMap = enabled;
+    }
+
+    /**
+     * Returns the output format, which is also the extension of the output file.
+     *
+     * @return "asm" for assembly, "hack" for binary text or "rom" for a raw ROM image
+     */
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Returns whether several programs are translated in one run: with
+     * -batch or -manifest, or when more than one input is given.
+     *
+     * @return True for batch mode
+     */
+    public boolean isBatch() {
+        return batch || manifest != null || inputs.size() > 1;
+    }
+
+    /**
+     * Returns the manifest file listing the programs of a batch.
+     *
+     * @return Manifest path, or null
+     */
+    public String getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Returns the file the batch summary is written to.
+     *
+     * @return Summary path, or null to print the summary
+     */
+    public String getSummaryPath() {
+        return summaryPath;
+    }
+
+    /**
+     * Returns the number of programs of a batch translated at once.
+     *
+     * @return Number of jobs
+     */
+    public int getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Returns the output file given with -out.
+     *
+     * @return Output path, or null to write next to the input
+     */
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    /**
+     * Returns the directory of the translation cache, relative to the input
+     * directory unless absolute. Watch mode uses the default directory when
+     * none is given.
+     *
+     * @return Cache directory, or null if units are not cached
+     */
+    public String getCacheDir() {
+        return (cacheDir == null && watch) ? TranslationCache.DEFAULT_DIR : cacheDir;
+    }
+
+    /**
+     * Returns whether the translator keeps running and rebuilds whenever a .vm file changes.
+     *
+     * @return True for watch mode
+     */
+    public boolean isWatch() {
+        return watch;
+    }
+
+    /**
+     * Returns the options that change the code generated for a file, as
+     * one string. Translations with equal keys produce the same units.
+     *
+     * @return Code generation key
+     */
+    public String getCodeGenerationKey() {
+        return "shared-return=" + sharedReturn + " shared-call=" + sharedCall + " shared-compare=" +
+                sharedCompare + " cost-weights=" + cycleWeight + ":" + romWeight + " fuse-branches=" +
+                fuseBranches + " O1=" + peephole + " cache-tos=" + cacheTos + " fold=" + foldConstants +
+                " map=" + sourceMap + " elide-frames=" + elideFrames +
+                " tail-calls=" + tailCalls + " specialize-index=" + specializeIndex +
+                " compact-prologue=" + compactPrologue;
+    }
+
+    /**
+     * Returns the number of worker threads used to translate the files.
+     *
+     * @return Number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setDeadFunctionElimination(boolean enabled) {
+        deadFunctionElimination = enabled;
+    }
+
+    /**
+     * Returns a copy of these options with the same inputs.
+     *
+     * @return Copy of the options
+     */
+    public TranslatorOptions copy() {
+        TranslatorOptions copy = new TranslatorOptions();
+        copy.sharedReturn = sharedReturn;
+        copy.sharedCall = sharedCall;
+        copy.sharedCompare = sharedCompare;
+        copy.cycleWeight = cycleWeight;
+        copy.romWeight = romWeight;
+        copy.fuseBranches = fuseBranches;
+        copy.peephole = peephole;
+        copy.cacheTos = cacheTos;
+        copy.foldConstants = foldConstants;
+        copy.verify = verify;
+        copy.deadFunctionElimination = deadFunctionElimination;
+        copy.inline = inline;
+        copy.elideFrames = elideFrames;
+        copy.tailCalls = tailCalls;
+        copy.specializeIndex = specializeIndex;
+        copy.compactPrologue = compactPrologue;
+        copy.threads = threads;
+        copy.scannerParser = scannerParser;
+        copy.sourceMap = sourceMap;
+        copy.outputFormat = outputFormat;
+        copy.cacheDir = cacheDir;
+        copy.outputPath = outputPath;
+        copy.batch = batch;
+        copy.manifest = manifest;
+        copy.summaryPath = summaryPath;
+        copy.jobs = jobs;
+        copy.watch = watch;
+        copy.inputs.addAll(inputs);
+        return copy;
+    }
+
+    /**
+     * Returns the input paths given on the command line.
+     *
+     * @return List of input paths
+     */
+    public ArrayList<String> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * Returns the usage message listing all options.
+     *
+     * @return Usage message
+     */
+    public static String usage() {
+        return "Usage: java VMTranslator [options] [filename|directory]\n" +
+                "       java VMTranslator [options] -batch|-manifest=FILE [filename|directory ...]\n" +
+                "Options:\n" +
+                "  -shared-return   jump to one shared $$RETURN routine at every return\n" +
+                "  -shared-call     build call frames in one shared $$CALL routine\n" +
+                "  -shared-compare  share eq/gt/lt routines where the cost model allows\n" +
+                "  -cost-weights=C:R  weight of one cycle and one ROM word (default 1:1)\n" +
+                "  -fuse-branches   write eq/gt/lt followed by if-goto as one conditional jump\n" +
+                "  -O1              run the peephole optimizer and report ROM and cycles per file\n" +
+                "  -cache-tos       keep the top of the stack in D between commands\n" +
+                "  -fold            fold constant arithmetic and identities before code generation\n" +
+                "  -verify          run the result and the plain translation in the emulator and compare\n" +
+                "  -dce             leave out functions not reachable from Sys.init (directories only)\n" +
+                "  -inline          replace calls to small leaf functions by their bodies\n" +
+                "  -elide-frames    do not save and restore THIS and THAT around calls to functions that\n" +
+                "                   never set them, directly or through their callees (with Sys.vm only)\n" +
+                "  -tail-calls      let a call directly followed by return reuse the current frame\n" +
+                "  -specialize-index  write the shortest push/pop sequence for each segment and index,\n" +
+                "                   and report ROM and cycles per segment against the generic code\n" +
+                "  -compact-prologue  zero few locals with unrolled stores, many with a shared $$LOCALS loop\n" +
+                "  -threads=N       translate files on N worker threads (default: number of processors)\n" +
+                "  -scanner-parser  parse with the Scanner-based VMParser instead of the byte lexer\n" +
+                "  -map             write a source map from ROM addresses to VM commands (.map), see Profiler\n" +
+                "  -format=F        output asm (default), hack (binary text) or rom (raw 16-bit big-endian\n" +
+                "                   words), assembling in memory for hack and rom\n" +
+                "  -out=FILE        write the output to FILE instead of next to the input (the source\n" +
+                "                   map is written next to it)\n" +
+                "  -cache[=DIR]     reuse the units of unchanged files from DIR (default: .vmcache in the\n" +
+                "                   input directory); not used with -inline, -dce and -elide-frames\n" +
+                "  -watch           rebuild whenever a .vm file changes, using the cache\n" +
+                "Batch mode, also used when more than one input is given:\n" +
+                "  -batch           translate every input as its own program; directories without .vm\n" +
+                "                   files are searched for subdirectories that hold them\n" +
+                "  -manifest=FILE   also translate the inputs listed in FILE, one per line, relative to it\n" +
+                "  -jobs=N          translate N programs at once (default: number of processors)\n" +
+                "  -summary=FILE    write the CSV summary to FILE instead of printing it";
+    }
+}
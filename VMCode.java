@@ -0,0 +1,186 @@
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Compact in-memory representation of the commands of one .vm file.
+ * Commands are stored in parallel primitive arrays: the opcode ordinal, a
+ * first argument (segment ordinal for push/pop, symbol id for labels and
+ * functions) and a second argument (index, local count or argument count).
+ * Each command also keeps the line of the .vm file it came from.
+ */
+public class VMCode {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String fileName;
+    private byte[] ops;
+    private int[] args1;
+    private int[] args2;
+    private int[] lines;
+    private int size;
+    private int sourceLine;
+
+    /**
+     * Creates an empty command list
+     *
+     * @param fileName Name of the .vm file, used for static variables
+     */
+    public VMCode(String fileName) {
+        this(fileName, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty command list with room for a number of commands
+     *
+     * @param fileName Name of the .vm file, used for static variables
+     * @param capacity Initial capacity
+     */
+    public VMCode(String fileName, int capacity) {
+        this.fileName = fileName;
+        ops = new byte[Math.max(capacity, 1)];
+        args1 = new int[ops.length];
+        args2 = new int[ops.length];
+        lines = new int[ops.length];
+    }
+
+    /**
+     * Parses a .vm file into its command list, interning labels and
+     * function names in the given symbol table
+     *
+     * @param fileIn  Input .vm file
+     * @param symbols Symbol table shared by the whole program
+     * @return Command list
+     */
+    public static VMCode parse(File fileIn, SymbolTable symbols) {
+        VMCode code = new VMCode(fileIn.getName());
+        VMParser parser = new VMParser(fileIn);
+
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            int type = parser.commandType();
+            code.setSourceLine(parser.lineNumber());
+
+            switch (type) {
+                case VMParser.ARITHMETIC:
+                    code.add(Opcode.fromArithmetic(parser.arg1()), 0, 0);
+                    break;
+                case VMParser.PUSH:
+                case VMParser.POP:
+                    code.add(Opcode.fromCommandType(type), Segment.fromName(parser.arg1()).ordinal(), parser.arg2());
+                    break;
+                case VMParser.RETURN:
+                    code.add(Opcode.RETURN, 0, 0);
+                    break;
+                case VMParser.FUNCTION:
+                case VMParser.CALL:
+                    code.add(Opcode.fromCommandType(type), symbols.intern(parser.arg1()), parser.arg2());
+                    break;
+                default:
+                    code.add(Opcode.fromCommandType(type), symbols.intern(parser.arg1()), 0);
+                    break;
+            }
+        }
+
+        return code;
+    }
+
+    /**
+     * Sets the source line recorded for the commands added from now on.
+     * Passes that copy or rewrite commands set it to the line of the command
+     * they are working on.
+     *
+     * @param line Line number in the .vm file, or 0 if unknown
+     */
+    public void setSourceLine(int line) {
+        sourceLine = line;
+    }
+
+    /**
+     * Appends a command
+     *
+     * @param op   Opcode
+     * @param arg1 First argument
+     * @param arg2 Second argument
+     */
+    public void add(Opcode op, int arg1, int arg2) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            args1 = Arrays.copyOf(args1, capacity);
+            args2 = Arrays.copyOf(args2, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        ops[size] = (byte) op.ordinal();
+        args1[size] = arg1;
+        args2[size] = arg2;
+        lines[size] = sourceLine;
+        size++;
+    }
+
+    /**
+     * Appends a copy of a command of another list, keeping its source line
+     *
+     * @param from  Command list to copy from
+     * @param index Command index in that list
+     */
+    public void copy(VMCode from, int index) {
+        setSourceLine(from.line(index));
+        add(from.op(index), from.arg1(index), from.arg2(index));
+    }
+
+    /**
+     * Replaces the command at an index
+     *
+     * @param index Command index
+     * @param op    Opcode
+     * @param arg1  First argument
+     * @param arg2  Second argument
+     */
+    public void set(int index, Opcode op, int arg1, int arg2) {
+        ops[index] = (byte) op.ordinal();
+        args1[index] = arg1;
+        args2[index] = arg2;
+    }
+
+    /**
+     * Drops the commands from an index to the end
+     *
+     * @param newSize Number of commands to keep
+     */
+    public void truncate(int newSize) {
+        size = newSize;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Opcode op(int index) {
+        return Opcode.of(ops[index]);
+    }
+
+    public int arg1(int index) {
+        return args1[index];
+    }
+
+    public int arg2(int index) {
+        return args2[index];
+    }
+
+    public int line(int index) {
+        return lines[index];
+    }
+
+    /**
+     * Returns the segment of a push or pop command
+     *
+     * @param index Command index
+     * @return Segment
+     */
+    public Segment segment(int index) {
+        return Segment.of(args1[index]);
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parses a .vm file straight from its bytes into a VMCode command list.
+ * The file is memory-mapped and tokenized in place: comments are skipped
+ * while scanning, keywords are matched against byte patterns, numbers are
+ * accumulated digit by digit and names are interned from the buffer, so no
+ * String is created per token. Accepts the same input as VMParser.
+ */
+public class VMLexer {
+    private static final int MAX_TOKENS = 3;
+    private static final int BYTES_PER_COMMAND = 10;
+
+    // Keyword bytes and, per first byte, the ordinals of the keywords starting with it
+    private static final byte[][] OPCODE_NAMES = new byte[Opcode.values().length][];
+    private static final byte[][] SEGMENT_NAMES = new byte[Segment.values().length][];
+    private static final int[][] OPCODES_BY_FIRST = new int[128][];
+    private static final int[][] SEGMENTS_BY_FIRST = new int[128][];
+
+    // Bytes that may end a token: white space, and '/' when it starts a comment
+    private static final boolean[] MAY_END_TOKEN = new boolean[256];
+
+    static {
+        for (Opcode op : Opcode.values()) {
+            OPCODE_NAMES[op.ordinal()] = op.getVmName().getBytes(StandardCharsets.ISO_8859_1);
+        }
+        for (Segment segment : Segment.values()) {
+            SEGMENT_NAMES[segment.ordinal()] = segment.getVmName().getBytes(StandardCharsets.ISO_8859_1);
+        }
+        indexByFirstByte(OPCODE_NAMES, OPCODES_BY_FIRST);
+        indexByFirstByte(SEGMENT_NAMES, SEGMENTS_BY_FIRST);
+        for (char c : new char[] { ' ', '\t', '\r', '\n', '/' }) {
+            MAY_END_TOKEN[c] = true;
+        }
+    }
+
+    private static void indexByFirstByte(byte[][] names, int[][] index) {
+        for (int first = 0; first < index.length; first++) {
+            int count = 0;
+            for (byte[] name : names) {
+                if (name[0] == first) {
+                    count++;
+                }
+            }
+            index[first] = new int[count];
+            count = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i][0] == first) {
+                    index[first][count++] = i;
+                }
+            }
+        }
+    }
+
+    private final ByteBuffer bytes;
+    private final String fileName;
+    private final int[] tokenStart = new int[MAX_TOKENS];
+    private final int[] tokenEnd = new int[MAX_TOKENS];
+    private int pos;
+    private int line;
+
+    private VMLexer(ByteBuffer bytes, String fileName) {
+        this.bytes = bytes;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Memory-maps a .vm file and parses it into its command list
+     *
+     * @param fileIn  Input .vm file
+     * @param symbols Symbol table shared by the whole program
+     * @return Command list
+     */
+    public static VMCode parse(File fileIn, SymbolTable symbols) {
+        try (FileChannel channel = FileChannel.open(fileIn.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(bytes, fileIn.getName(), symbols);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + fileIn.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses VM code held in a buffer, from index 0 to its limit
+     *
+     * @param bytes    VM code as ISO-8859-1 bytes
+     * @param fileName Name of the .vm file, used for static variables
+     * @param symbols  Symbol table shared by the whole program
+     * @return Command list
+     */
+    public static VMCode parse(ByteBuffer bytes, String fileName, SymbolTable symbols) {
+        VMLexer lexer = new VMLexer(bytes, fileName);
+        VMCode code = new VMCode(fileName, bytes.limit() / BYTES_PER_COMMAND);
+
+        int tokens;
+        while ((tokens = lexer.nextLine()) >= 0) {
+            if (tokens > 0) {
+                lexer.parseCommand(tokens, code, symbols);
+            }
+        }
+
+        return code;
+    }
+
+    /**
+     * Splits the next line into tokens, skipping a trailing comment
+     *
+     * @return Number of tokens on the line, or -1 at the end of the input
+     */
+    private int nextLine() {
+        int limit = bytes.limit();
+        if (pos >= limit) {
+            return -1;
+        }
+        line++;
+
+        int tokens = 0;
+        while (pos < limit) {
+            byte b = bytes.get(pos);
+            if (b == '\n') {
+                pos++;
+                break;
+            }
+            if (b == ' ' || b == '\t' || b == '\r') {
+                pos++;
+                continue;
+            }
+            if (isComment(b, pos, limit)) {
+                while (pos < limit && bytes.get(pos) != '\n') {
+                    pos++;
+                }
+                continue;
+            }
+
+            if (tokens == MAX_TOKENS) {
+                throw error("Too many arguments in command");
+            }
+            tokenStart[tokens] = pos;
+            do {
+                pos++;
+            } while (pos < limit && !isDelimiter(bytes.get(pos), pos, limit));
+            tokenEnd[tokens++] = pos;
+        }
+
+        return tokens;
+    }
+
+    private boolean isDelimiter(byte b, int at, int limit) {
+        return MAY_END_TOKEN[b & 0xFF] && (b != '/' || isComment(b, at, limit));
+    }
+
+    private boolean isComment(byte b, int at, int limit) {
+        return b == '/' && at + 1 < limit && bytes.get(at + 1) == '/';
+    }
+
+    /**
+     * Appends the command made of the current tokens
+     */
+    private void parseCommand(int tokens, VMCode code, SymbolTable symbols) {
+        code.setSourceLine(line);
+        Opcode op = matchOpcode();
+        if (op.isArithmetic() || op == Opcode.RETURN) {
+            code.add(op, 0, 0);
+            return;
+        }
+
+        if (tokens < 2) {
+            throw error("Missing argument for " + op.getVmName());
+        }
+        switch (op) {
+            case PUSH:
+            case POP:
+                code.add(op, matchSegment().ordinal(), parseNumber(tokens));
+                break;
+            case FUNCTION:
+            case CALL:
+                code.add(op, symbols.intern(bytes, tokenStart[1], tokenEnd[1]), parseNumber(tokens));
+                break;
+            default:
+                code.add(op, symbols.intern(bytes, tokenStart[1], tokenEnd[1]), 0);
+                break;
+        }
+    }
+
+    private Opcode matchOpcode() {
+        int match = matchKeyword(0, OPCODE_NAMES, OPCODES_BY_FIRST);
+        if (match == -1) {
+            throw error("Unknown command type: " + token(0));
+        }
+        return Opcode.of(match);
+    }
+
+    private Segment matchSegment() {
+        int match = matchKeyword(1, SEGMENT_NAMES, SEGMENTS_BY_FIRST);
+        if (match == -1) {
+            throw error("Invalid segment: " + token(1));
+        }
+        return Segment.of(match);
+    }
+
+    /**
+     * Finds the keyword equal to a token among those with its first byte
+     *
+     * @return Keyword ordinal, or -1 if none matches
+     */
+    private int matchKeyword(int token, byte[][] names, int[][] byFirst) {
+        int first = bytes.get(tokenStart[token]);
+        if (first < 0) {
+            return -1;
+        }
+        for (int i : byFirst[first]) {
+            if (tokenEquals(token, names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean tokenEquals(int token, byte[] name) {
+        int start = tokenStart[token];
+        if (tokenEnd[token] - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (bytes.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the third token as a decimal integer
+     */
+    private int parseNumber(int tokens) {
+        if (tokens < 3) {
+            throw error("Missing second argument");
+        }
+        int start = tokenStart[2];
+        int end = tokenEnd[2];
+        boolean negative = bytes.get(start) == '-';
+        if (negative) {
+            start++;
+        }
+        if (start == end) {
+            throw error("Second argument is not an integer: " + token(2));
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw error("Second argument is not an integer: " + token(2));
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE) {
+                throw error("Second argument is out of range: " + token(2));
+            }
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    // Copies a token into a String, only used for error messages
+    private String token(int token) {
+        byte[] copy = new byte[tokenEnd[token] - tokenStart[token]];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = bytes.get(tokenStart[token] + i);
+        }
+        return new String(copy, StandardCharsets.ISO_8859_1);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(fileName + " line " + line + ": " + message);
+    }
+}
@@ -0,0 +1,475 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Whole-program passes over the parsed .vm files of a directory.
+ * Functions are identified by the symbol id of their name and span from
+ * their function command to the next function command of the same file.
+ */
+public class VMLinker {
+    // Largest function body, in VM commands, that is inlined
+    private static final int MAX_INLINE_COMMANDS = 20;
+
+    // ROM size the program must stay within after inlining
+    private static final int ROM_BUDGET = HackEmulator.ROM_SIZE;
+
+    private static final int TEMP_SLOTS = 8;
+
+    /**
+     * Finds the functions reachable through call commands from an entry function
+     *
+     * @param program Command list per file
+     * @param symbols Symbol table of the program
+     * @param entry   Name of the entry function
+     * @return Reachability flag per symbol id
+     */
+    public static boolean[] liveFunctions(ArrayList<VMCode> program, SymbolTable symbols, String entry) {
+        int[][] bodies = functionBodies(program, symbols.size());
+        boolean[] live = new boolean[symbols.size()];
+        int[] worklist = new int[symbols.size()];
+        int pending = 0;
+
+        int entryId = symbols.lookup(entry);
+        if (entryId != -1) {
+            live[entryId] = true;
+            worklist[pending++] = entryId;
+        }
+
+        while (pending > 0) {
+            int[] body = bodies[worklist[--pending]];
+            if (body == null) {
+                continue; // Called but not defined in this program
+            }
+            VMCode code = program.get(body[0]);
+            for (int i = body[1]; i < body[2]; i++) {
+                if (code.op(i) == Opcode.CALL && !live[code.arg1(i)]) {
+                    live[code.arg1(i)] = true;
+                    worklist[pending++] = code.arg1(i);
+                }
+            }
+        }
+
+        return live;
+    }
+
+    /**
+     * Finds the functions that return with THIS and THAT unchanged: defined
+     * functions that neither pop to the pointer segment nor call a function
+     * that might. A call to a function outside the program might.
+     *
+     * @param program Command list per file
+     * @param symbols Symbol table of the program
+     * @return Flag per symbol id
+     */
+    public static boolean[] pointerPreservingFunctions(ArrayList<VMCode> program, SymbolTable symbols) {
+        int[][] bodies = functionBodies(program, symbols.size());
+        boolean[] preserving = new boolean[symbols.size()];
+        for (int id = 0; id < bodies.length; id++) {
+            if (bodies[id] != null) {
+                boolean[] sets = pointerWrites(program.get(bodies[id][0]), bodies[id]);
+                preserving[id] = !sets[0] && !sets[1];
+            }
+        }
+
+        // Drop callers of non-preserving functions until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int id = 0; id < bodies.length; id++) {
+                if (!preserving[id]) {
+                    continue;
+                }
+                int[] body = bodies[id];
+                VMCode code = program.get(body[0]);
+                for (int i = body[1]; i < body[2]; i++) {
+                    if (code.op(i) == Opcode.CALL && !preserving[code.arg1(i)]) {
+                        preserving[id] = false;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return preserving;
+    }
+
+    /**
+     * Locates the body of every function
+     *
+     * @param program     Command list per file
+     * @param symbolCount Number of symbols in the program
+     * @return Per symbol id, {file index, first command, end command}, or null
+     *         if the symbol is not a defined function
+     */
+    public static int[][] functionBodies(ArrayList<VMCode> program, int symbolCount) {
+        int[][] bodies = new int[symbolCount][];
+
+        for (int f = 0; f < program.size(); f++) {
+            VMCode code = program.get(f);
+            int[] current = null;
+            for (int i = 0; i < code.size(); i++) {
+                if (code.op(i) == Opcode.FUNCTION) {
+                    if (current != null) {
+                        current[2] = i;
+                    }
+                    current = new int[] { f, i, code.size() };
+                    bodies[code.arg1(i)] = current;
+                }
+            }
+        }
+
+        return bodies;
+    }
+
+    /**
+     * Copies the functions whose liveness matches a flag. Commands before the
+     * first function of a file belong to no function and are kept with the
+     * live ones.
+     *
+     * @param program  Command list per file
+     * @param live     Liveness per symbol id
+     * @param keepLive True to keep the live functions, false to keep the dead ones
+     * @return Filtered command list per file
+     */
+    public static ArrayList<VMCode> filterFunctions(ArrayList<VMCode> program, boolean[] live, boolean keepLive) {
+        ArrayList<VMCode> result = new ArrayList<>();
+
+        for (VMCode code : program) {
+            VMCode out = new VMCode(code.getFileName(), code.size());
+            boolean keep = keepLive;
+            for (int i = 0; i < code.size(); i++) {
+                if (code.op(i) == Opcode.FUNCTION) {
+                    keep = live[code.arg1(i)] == keepLive;
+                }
+                if (keep) {
+                    out.copy(code, i);
+                }
+            }
+            result.add(out);
+        }
+
+        return result;
+    }
+
+    /**
+     * Lists the names of the functions defined in a program
+     *
+     * @param program Command list per file
+     * @param symbols Symbol table of the program
+     * @return Function names in program order
+     */
+    public static ArrayList<String> functionNames(ArrayList<VMCode> program, SymbolTable symbols) {
+        ArrayList<String> names = new ArrayList<>();
+        for (VMCode code : program) {
+            for (int i = 0; i < code.size(); i++) {
+                if (code.op(i) == Opcode.FUNCTION) {
+                    names.add(symbols.name(code.arg1(i)));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Inlines calls to small leaf functions. A function is inlined when it
+     * makes no calls, has at most MAX_INLINE_COMMANDS commands, only uses
+     * statics of the caller's own file, and returns with exactly one value on
+     * its working stack. Its arguments and locals are moved to temp slots
+     * that no command of the program uses, and its labels are renamed per
+     * call site. THIS and THAT are saved and restored around the body when
+     * the function changes them, as its return would have done. Call sites
+     * are inlined in program order while the estimated ROM size stays within
+     * the budget. Inlined commands take the source line of the call site.
+     *
+     * @param program Command list per file
+     * @param symbols Symbol table of the program
+     * @param inlined Receives the name of the callee of every inlined site
+     * @return Command list per file with the calls inlined
+     */
+    public static ArrayList<VMCode> inlineCalls(ArrayList<VMCode> program, SymbolTable symbols,
+            ArrayList<String> inlined) {
+        int[][] bodies = functionBodies(program, symbols.size());
+        int[] freeTemps = freeTempSlots(program);
+        int romEstimate = 0;
+        for (VMCode code : program) {
+            romEstimate += estimateWords(code, 0, code.size());
+        }
+
+        ArrayList<VMCode> result = new ArrayList<>();
+        int site = 0;
+        for (VMCode code : program) {
+            VMCode out = new VMCode(code.getFileName(), code.size());
+            for (int i = 0; i < code.size(); i++) {
+                if (code.op(i) == Opcode.CALL) {
+                    int[] body = bodies[code.arg1(i)];
+                    VMCode callee = (body != null) ? program.get(body[0]) : null;
+                    if (callee != null && isInlinable(callee, body, code, code.arg2(i), freeTemps.length)) {
+                        int before = out.size();
+                        out.setSourceLine(code.line(i));
+                        inlineBody(callee, body, code.arg2(i), freeTemps, symbols, site++, out);
+                        int growth = estimateWords(out, before, out.size()) - estimateWords(code, i, i + 1);
+                        if (romEstimate + growth <= ROM_BUDGET) {
+                            romEstimate += growth;
+                            inlined.add(symbols.name(code.arg1(i)));
+                            continue;
+                        }
+                        out.truncate(before);
+                    }
+                }
+                out.copy(code, i);
+            }
+            result.add(out);
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks whether a function body can be inlined at a call site
+     */
+    private static boolean isInlinable(VMCode callee, int[] body, VMCode caller, int numArgs, int freeTemps) {
+        int numLocals = callee.arg2(body[1]);
+        boolean[] setsPointer = pointerWrites(callee, body);
+        int saves = (setsPointer[0] ? 1 : 0) + (setsPointer[1] ? 1 : 0);
+        if (body[2] - body[1] > MAX_INLINE_COMMANDS || numArgs + numLocals + saves > freeTemps) {
+            return false;
+        }
+
+        for (int i = body[1] + 1; i < body[2]; i++) {
+            Opcode op = callee.op(i);
+            if (op == Opcode.CALL || op == Opcode.FUNCTION) {
+                return false;
+            }
+            if (op == Opcode.PUSH || op == Opcode.POP) {
+                Segment segment = callee.segment(i);
+                int index = callee.arg2(i);
+                if ((segment == Segment.ARGUMENT && index >= numArgs)
+                        || (segment == Segment.LOCAL && index >= numLocals)
+                        || (segment == Segment.STATIC && !callee.getFileName().equals(caller.getFileName()))) {
+                    return false;
+                }
+            }
+        }
+
+        return hasSingleReturnValue(callee, body);
+    }
+
+    /**
+     * Checks that every return of a body sees exactly one value on the
+     * working stack and that the depth is the same along every path to a label
+     */
+    private static boolean hasSingleReturnValue(VMCode callee, int[] body) {
+        HashMap<Integer, Integer> labelDepths = new HashMap<>();
+        int depth = 0;
+        boolean reachable = true;
+
+        for (int i = body[1] + 1; i < body[2]; i++) {
+            Opcode op = callee.op(i);
+            if (op == Opcode.LABEL) {
+                Integer known = labelDepths.get(callee.arg1(i));
+                if (!reachable) {
+                    if (known == null) {
+                        return false;
+                    }
+                    depth = known;
+                    reachable = true;
+                } else if (known != null && known != depth) {
+                    return false;
+                }
+                labelDepths.put(callee.arg1(i), depth);
+                continue;
+            }
+            if (!reachable) {
+                continue;
+            }
+
+            depth += stackEffect(op);
+            if (depth < 0) {
+                return false;
+            }
+            if (op == Opcode.GOTO || op == Opcode.IF_GOTO) {
+                Integer known = labelDepths.get(callee.arg1(i));
+                if (known != null && known != depth) {
+                    return false;
+                }
+                labelDepths.put(callee.arg1(i), depth);
+                reachable = (op == Opcode.IF_GOTO);
+            } else if (op == Opcode.RETURN) {
+                if (depth != 1) {
+                    return false;
+                }
+                reachable = false;
+            }
+        }
+
+        return !reachable;
+    }
+
+    private static int stackEffect(Opcode op) {
+        switch (op) {
+            case PUSH:
+                return 1;
+            case POP:
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case EQ:
+            case GT:
+            case LT:
+            case IF_GOTO:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Appends the inlined body of a function for one call site
+     */
+    private static void inlineBody(VMCode callee, int[] body, int numArgs, int[] freeTemps, SymbolTable symbols,
+            int site, VMCode out) {
+        String prefix = symbols.name(callee.arg1(body[1])) + "$inline" + site + "$";
+        int numLocals = callee.arg2(body[1]);
+        int temp = Segment.TEMP.ordinal();
+        boolean[] setsPointer = pointerWrites(callee, body);
+        int saveThis = numArgs + numLocals;
+        int saveThat = saveThis + (setsPointer[0] ? 1 : 0);
+
+        for (int a = numArgs - 1; a >= 0; a--) {
+            out.add(Opcode.POP, temp, freeTemps[a]);
+        }
+        for (int l = 0; l < numLocals; l++) {
+            out.add(Opcode.PUSH, Segment.CONSTANT.ordinal(), 0);
+            out.add(Opcode.POP, temp, freeTemps[numArgs + l]);
+        }
+        if (setsPointer[0]) {
+            out.add(Opcode.PUSH, Segment.POINTER.ordinal(), 0);
+            out.add(Opcode.POP, temp, freeTemps[saveThis]);
+        }
+        if (setsPointer[1]) {
+            out.add(Opcode.PUSH, Segment.POINTER.ordinal(), 1);
+            out.add(Opcode.POP, temp, freeTemps[saveThat]);
+        }
+
+        int end = symbols.intern(prefix + "END");
+        for (int i = body[1] + 1; i < body[2]; i++) {
+            Opcode op = callee.op(i);
+            int arg1 = callee.arg1(i);
+            int arg2 = callee.arg2(i);
+
+            if (op == Opcode.PUSH || op == Opcode.POP) {
+                Segment segment = callee.segment(i);
+                if (segment == Segment.ARGUMENT) {
+                    arg1 = temp;
+                    arg2 = freeTemps[arg2];
+                } else if (segment == Segment.LOCAL) {
+                    arg1 = temp;
+                    arg2 = freeTemps[numArgs + arg2];
+                }
+            } else if (op == Opcode.LABEL || op == Opcode.GOTO || op == Opcode.IF_GOTO) {
+                arg1 = symbols.intern(prefix + symbols.name(arg1));
+            } else if (op == Opcode.RETURN) {
+                if (i != body[2] - 1) {
+                    out.add(Opcode.GOTO, end, 0);
+                }
+                continue;
+            }
+            out.add(op, arg1, arg2);
+        }
+
+        out.add(Opcode.LABEL, end, 0);
+        if (setsPointer[0]) {
+            out.add(Opcode.PUSH, temp, freeTemps[saveThis]);
+            out.add(Opcode.POP, Segment.POINTER.ordinal(), 0);
+        }
+        if (setsPointer[1]) {
+            out.add(Opcode.PUSH, temp, freeTemps[saveThat]);
+            out.add(Opcode.POP, Segment.POINTER.ordinal(), 1);
+        }
+    }
+
+    /**
+     * Finds which of THIS (0) and THAT (1) a body sets through the pointer segment
+     */
+    private static boolean[] pointerWrites(VMCode callee, int[] body) {
+        boolean[] sets = new boolean[2];
+        for (int i = body[1] + 1; i < body[2]; i++) {
+            if (callee.op(i) == Opcode.POP && callee.segment(i) == Segment.POINTER) {
+                sets[callee.arg2(i)] = true;
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Lists the temp indices that no command of the program uses
+     */
+    static int[] freeTempSlots(ArrayList<VMCode> program) {
+        boolean[] used = new boolean[TEMP_SLOTS];
+        int usedCount = 0;
+        for (VMCode code : program) {
+            for (int i = 0; i < code.size(); i++) {
+                Opcode op = code.op(i);
+                if ((op == Opcode.PUSH || op == Opcode.POP) && code.segment(i) == Segment.TEMP
+                        && !used[code.arg2(i)]) {
+                    used[code.arg2(i)] = true;
+                    usedCount++;
+                }
+            }
+        }
+
+        int[] free = new int[TEMP_SLOTS - usedCount];
+        int n = 0;
+        for (int i = 0; i < TEMP_SLOTS; i++) {
+            if (!used[i]) {
+                free[n++] = i;
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Estimates the ROM words of commands with the default code generator
+     */
+    private static int estimateWords(VMCode code, int from, int to) {
+        int words = 0;
+        for (int i = from; i < to; i++) {
+            switch (code.op(i)) {
+                case PUSH:
+                    words += 10;
+                    break;
+                case POP:
+                    words += 12;
+                    break;
+                case EQ:
+                case GT:
+                case LT:
+                    words += 15;
+                    break;
+                case LABEL:
+                    break;
+                case GOTO:
+                    words += 2;
+                    break;
+                case IF_GOTO:
+                    words += 6;
+                    break;
+                case FUNCTION:
+                    words += 7 * code.arg2(i);
+                    break;
+                case CALL:
+                    words += 45;
+                    break;
+                case RETURN:
+                    words += 40;
+                    break;
+                default:
+                    words += 5;
+                    break;
+            }
+        }
+        return words;
+    }
+}
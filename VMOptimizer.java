@@ -0,0 +1,180 @@
+/**
+ * VM-level optimization passes over the in-memory command lists.
+ * Passes run before code generation and never change what the program
+ * computes: values follow the 16-bit two's-complement arithmetic of the
+ * generated HACK code.
+ */
+public class VMOptimizer {
+
+    /**
+     * Folds constant arithmetic and removes algebraic identities.
+     * Commands are copied to a new list and the tail of that list is
+     * rewritten after every command, so folded results can fold again.
+     * Labels and function commands are never constants, so nothing is
+     * folded across a jump target.
+     *
+     * @param code Commands of one .vm file
+     * @return Optimized commands
+     */
+    public static VMCode foldConstants(VMCode code) {
+        VMCode out = new VMCode(code.getFileName(), code.size());
+
+        for (int i = 0; i < code.size(); i++) {
+            out.copy(code, i);
+            while (simplifyTail(out)) {
+                // Keep rewriting until the tail is stable
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Applies one rewrite to the last commands of a list
+     *
+     * @param out Command list being built
+     * @return True if the list changed
+     */
+    private static boolean simplifyTail(VMCode out) {
+        int last = out.size() - 1;
+        if (last < 0) {
+            return false;
+        }
+        Opcode op = out.op(last);
+
+        if (op == Opcode.NEG || op == Opcode.NOT) {
+            int length = constantLength(out, last);
+            if (length > 0) {
+                int value = (short) (op == Opcode.NEG ? -constantValue(out, last) : ~constantValue(out, last));
+                if (encodedLength(value) < length + 1) {
+                    replaceTail(out, length + 1, value);
+                    return true;
+                }
+            }
+            if (last > 0 && out.op(last - 1) == op && constantLength(out, last - 1) == 0) {
+                // not not x = x, neg neg x = x
+                out.truncate(last - 1);
+                return true;
+            }
+            return false;
+        }
+
+        if (isBinary(op)) {
+            int lengthY = constantLength(out, last);
+            if (lengthY == 0) {
+                return false;
+            }
+            int y = constantValue(out, last);
+            int lengthX = constantLength(out, last - lengthY);
+            if (lengthX > 0) {
+                int x = constantValue(out, last - lengthY);
+                replaceTail(out, lengthX + lengthY + 1, apply(op, x, y));
+                return true;
+            }
+            boolean identity = ((op == Opcode.ADD || op == Opcode.SUB || op == Opcode.OR) && y == 0)
+                    || (op == Opcode.AND && y == -1);
+            if (identity) {
+                out.truncate(last - lengthY);
+                return true;
+            }
+            return false;
+        }
+
+        if (op == Opcode.IF_GOTO) {
+            int length = constantLength(out, last);
+            if (length == 0) {
+                return false;
+            }
+            int label = out.arg1(last);
+            boolean taken = constantValue(out, last) != 0;
+            out.truncate(last - length);
+            if (taken) {
+                out.add(Opcode.GOTO, label, 0);
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isBinary(Opcode op) {
+        return op == Opcode.ADD || op == Opcode.SUB || op == Opcode.AND || op == Opcode.OR || op.isCompare();
+    }
+
+    /**
+     * Evaluates a binary command. Comparisons test the sign of x - y in
+     * 16 bits, exactly as the D=M-D sequence of the generated code does.
+     */
+    private static int apply(Opcode op, int x, int y) {
+        switch (op) {
+            case ADD:
+                return (short) (x + y);
+            case SUB:
+                return (short) (x - y);
+            case AND:
+                return (short) (x & y);
+            case OR:
+                return (short) (x | y);
+            case EQ:
+                return ((short) (x - y) == 0) ? -1 : 0;
+            case GT:
+                return ((short) (x - y) > 0) ? -1 : 0;
+            case LT:
+                return ((short) (x - y) < 0) ? -1 : 0;
+            default:
+                throw new IllegalArgumentException("Not a binary command: " + op.getVmName());
+        }
+    }
+
+    /**
+     * Returns how many commands before an index form a constant: push constant k,
+     * optionally followed by neg or not
+     *
+     * @param code Command list
+     * @param end  Index after the constant
+     * @return Number of commands, or 0 if they do not form a constant
+     */
+    private static int constantLength(VMCode code, int end) {
+        if (end >= 1 && isPushConstant(code, end - 1)) {
+            return 1;
+        }
+        if (end >= 2 && (code.op(end - 1) == Opcode.NEG || code.op(end - 1) == Opcode.NOT)
+                && isPushConstant(code, end - 2)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static int constantValue(VMCode code, int end) {
+        if (isPushConstant(code, end - 1)) {
+            return (short) code.arg2(end - 1);
+        }
+        int k = (short) code.arg2(end - 2);
+        return (short) (code.op(end - 1) == Opcode.NEG ? -k : ~k);
+    }
+
+    private static boolean isPushConstant(VMCode code, int index) {
+        return code.op(index) == Opcode.PUSH && code.segment(index) == Segment.CONSTANT;
+    }
+
+    private static int encodedLength(int value) {
+        return (value >= 0) ? 1 : 2;
+    }
+
+    /**
+     * Replaces the last commands of a list with a constant. Negative values
+     * become push constant -v; neg, and -32768 becomes push constant 32767; not.
+     */
+    private static void replaceTail(VMCode out, int length, int value) {
+        out.truncate(out.size() - length);
+        if (value >= 0) {
+            out.add(Opcode.PUSH, Segment.CONSTANT.ordinal(), value);
+        } else if (value == Short.MIN_VALUE) {
+            out.add(Opcode.PUSH, Segment.CONSTANT.ordinal(), Short.MAX_VALUE);
+            out.add(Opcode.NOT, 0, 0);
+        } else {
+            out.add(Opcode.PUSH, Segment.CONSTANT.ordinal(), -value);
+            out.add(Opcode.NEG, 0, 0);
+        }
+    }
+}
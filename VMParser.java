@@ -14,6 +14,8 @@ public class VMParser {
     private int argType;
     private String argument1;
     private int argument2;
+    private final ArrayList<Integer> lineNumbers = new ArrayList<>();
+    private int commandIndex = -1;
 
     public static final int ARITHMETIC = 0;
     public static final int PUSH = 1;
@@ -68,10 +70,13 @@ public class VMParser {
         Scanner fileScanner = new Scanner(fileIn);
         StringBuilder preprocessed = new StringBuilder();
 
+        int lineNumber = 0;
         while (fileScanner.hasNextLine()) {
             String line = noComments(fileScanner.nextLine()).trim();
+            lineNumber++;
             if (!line.isEmpty()) {
                 preprocessed.append(line).append("\n");
+                lineNumbers.add(lineNumber);
             }
         }
 
@@ -94,6 +99,7 @@ public class VMParser {
      */
     public void advance() {
         currentCmd = cmds.nextLine();
+        commandIndex++;
         argument1 = "";
         argument2 = -1;
 
@@ -228,6 +234,15 @@ public class VMParser {
         }
     }
 
+    /**
+     * Returns the line of the input file holding the current command.
+     * 
+     * @return Line number, starting at 1
+     */
+    public int lineNumber() {
+        return lineNumbers.get(commandIndex);
+    }
+
     /**
      * Removes comments from a line of code.
      * 
@@ -1,10 +1,72 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class VMTranslator {
 
+    // Assumed number of iterations of a loop, per nesting level
+    private static final int LOOP_FREQUENCY = 10;
+    private static final int MAX_LOOP_DEPTH = 3;
+
+    // Cycle limit for programs that never reach a halt loop during -verify
+    private static final long VERIFY_CYCLES = 10_000_000L;
+    private static final int TEMP_BASE = 5;
+    // R11-R15, scratch registers of the generated code; returns keep the frame and return address in R11 and R12
+    private static final int SCRATCH_BASE = 11;
+    private static final int STATIC_BASE = 16;
+    private static final int STACK_BASE = 256;
+    private static final int HEAP_BASE = 2048;
+
+    // Return address, LCL, ARG, THIS and THAT saved by a call
+    private static final int FRAME_SIZE = 5;
+
+    // Function called by the bootstrap code
+    private static final String ENTRY_FUNCTION = "Sys.init";
+
+    /**
+     * Result of translating one program, for the batch summary
+     */
+    static final class BuildResult {
+        private final File input;
+        private boolean ok;
+        private int commands;
+        private int romWords;
+        private String outputPath = "";
+        private String error = "";
+        private long elapsedNanos;
+
+        private BuildResult(File input) {
+            this.input = input;
+        }
+    }
+
+    // Quiet time after a file event before watch mode rebuilds
+    private static final long WATCH_SETTLE_MILLIS = 20;
+
     /**
-     * Return all the .vm files in a directory
+     * Return all the .vm files in a directory, sorted by name
      * 
      * @param dir Directory to search for .vm files
      * @return List of .vm files
@@ -20,6 +82,7 @@ public class VMTranslator {
                 }
             }
         }
+        result.sort((a, b) -> a.getName().compareTo(b.getName()));
 
         return result;
     }
@@ -30,7 +93,7 @@ public class VMTranslator {
      * @param fileIn Input file or directory
      * @return List of .vm files
      */
-    private static ArrayList<File> processInput(File fileIn) {
+    static ArrayList<File> processInput(File fileIn) {
         ArrayList<File> vmFiles = new ArrayList<>();
 
         if (fileIn.isFile()) {
@@ -45,6 +108,8 @@ public class VMTranslator {
             if (vmFiles.isEmpty()) {
                 throw new IllegalArgumentException("No .vm file in this directory");
             }
+        } else {
+            throw new IllegalArgumentException("No such file or directory: " + fileIn.getPath());
         }
 
         return vmFiles;
@@ -53,15 +118,17 @@ public class VMTranslator {
     /**
      * Generate the output file path based on the input file or directory
      * 
-     * @param fileIn  Input file or directory
-     * @param vmFiles List of .vm files
+     * @param fileIn    Input file or directory
+     * @param vmFiles   List of .vm files
+     * @param extension Extension of the output format, e.g. "asm"
      * @return Output file path
      */
-    private static String generateOutputFilePath(File fileIn, ArrayList<File> vmFiles) {
+    private static String generateOutputFilePath(File fileIn, ArrayList<File> vmFiles, String extension) {
         if (fileIn.isFile()) {
-            return fileIn.getAbsolutePath().substring(0, fileIn.getAbsolutePath().lastIndexOf(".")) + ".asm";
+            String path = fileIn.getAbsolutePath();
+            return path.substring(0, path.lastIndexOf(".")) + "." + extension;
         } else {
-            return fileIn.getAbsolutePath() + "/" + fileIn.getName() + ".asm";
+            return fileIn.getAbsolutePath() + "/" + fileIn.getName() + "." + extension;
         }
     }
 
@@ -81,77 +148,1052 @@ public class VMTranslator {
     }
 
     /**
-     * Translate the .vm files into assembly code
+     * Estimate the loop nesting depth of every command in a file.
+     * A loop is a goto or if-goto back to a label defined earlier in the file.
+     * 
+     * @param code        Commands of one .vm file
+     * @param symbolCount Number of symbols in the program
+     * @return Loop depth per command index
+     */
+    private static int[] loopDepths(VMCode code, int symbolCount) {
+        int[] labels = new int[symbolCount];
+        Arrays.fill(labels, -1);
+        int[] depths = new int[code.size() + 1];
+
+        for (int i = 0; i < code.size(); i++) {
+            Opcode op = code.op(i);
+            if (op == Opcode.LABEL) {
+                labels[code.arg1(i)] = i;
+            } else if ((op == Opcode.GOTO || op == Opcode.IF_GOTO) && labels[code.arg1(i)] != -1) {
+                depths[labels[code.arg1(i)]]++;
+                depths[i + 1]--;
+            }
+        }
+
+        for (int i = 1; i < depths.length; i++) {
+            depths[i] += depths[i - 1];
+        }
+        return depths;
+    }
+
+    /**
+     * Estimate how many times a command runs relative to straight-line code
+     * 
+     * @param depths Loop depth per command index, or null if not computed
+     * @param index  Command index
+     * @return Estimated execution frequency
+     */
+    private static int siteFrequency(int[] depths, int index) {
+        int frequency = 1;
+        if (depths != null) {
+            for (int d = 0; d < Math.min(depths[index], MAX_LOOP_DEPTH); d++) {
+                frequency *= LOOP_FREQUENCY;
+            }
+        }
+        return frequency;
+    }
+
+    /**
+     * Parse the .vm files into their in-memory command lists, with the byte
+     * lexer unless the Scanner-based parser is requested
      * 
      * @param vmFiles List of .vm files
-     * @param writer  ASMWriter instance
+     * @param symbols Symbol table shared by all files
+     * @param options Translator options
+     * @return Command list per file, in the same order
      */
-    private static void translateVMFiles(ArrayList<File> vmFiles, ASMWriter writer) {
+    static ArrayList<VMCode> parseVMFiles(ArrayList<File> vmFiles, SymbolTable symbols,
+            TranslatorOptions options) {
+        ArrayList<VMCode> program = new ArrayList<>();
         for (File f : vmFiles) {
-            writer.setFileName(f);
-            VMParser parser = new VMParser(f);
-
-            while (parser.hasMoreCommands()) {
-                parser.advance();
-                int type = parser.commandType();
-
-                switch (type) {
-                    case VMParser.ARITHMETIC:
-                        writer.writeArithmetic(parser.arg1());
-                        break;
-                    case VMParser.POP:
-                    case VMParser.PUSH:
-                        writer.writePushPop(type, parser.arg1(), parser.arg2());
-                        break;
-                    case VMParser.LABEL:
-                        writer.writeLabel(parser.arg1());
-                        break;
-                    case VMParser.GOTO:
-                        writer.writeGoto(parser.arg1());
-                        break;
-                    case VMParser.IF:
-                        writer.writeIf(parser.arg1());
-                        break;
-                    case VMParser.RETURN:
-                        writer.writeReturn();
-                        break;
-                    case VMParser.FUNCTION:
-                        writer.writeFunction(parser.arg1(), parser.arg2());
-                        break;
-                    case VMParser.CALL:
-                        writer.writeCall(parser.arg1(), parser.arg2());
-                        break;
+            program.add(options.isScannerParser() ? VMCode.parse(f, symbols) : VMLexer.parse(f, symbols));
+        }
+        return program;
+    }
+
+    /**
+     * Translate the parsed .vm files into assembly code.
+     * With more than one thread, each file is written by its own unit writer
+     * on a pool of worker threads and the units are appended in file order.
+     * Label numbering restarts in every file, so the output is the same for
+     * any number of threads.
+     * 
+     * @param program Command list per file
+     * @param symbols Symbol table of the program
+     * @param writer  ASMWriter instance
+     * @param options Translator options
+     */
+    static void translateVMFiles(ArrayList<VMCode> program, SymbolTable symbols, ASMWriter writer,
+            TranslatorOptions options) {
+        int threads = Math.min(options.getThreads(), program.size());
+        if (threads <= 1) {
+            for (VMCode code : program) {
+                translateVMFile(code, symbols, writer, options);
+            }
+            return;
+        }
+
+        for (ASMWriter unit : translateUnits(program, symbols, writer, options)) {
+            writer.appendUnit(unit);
+        }
+    }
+
+    /**
+     * Translate each parsed .vm file with its own unit writer, on a pool of
+     * worker threads unless only one thread is allowed
+     * 
+     * @param program Command list per file
+     * @param symbols Symbol table of the program
+     * @param writer  Writer the units are created for
+     * @param options Translator options
+     * @return Finished unit writer per file, in the same order
+     */
+    private static ArrayList<ASMWriter> translateUnits(ArrayList<VMCode> program, SymbolTable symbols,
+            ASMWriter writer, TranslatorOptions options) {
+        ArrayList<ASMWriter> result = new ArrayList<>();
+        int threads = Math.min(options.getThreads(), program.size());
+        if (threads <= 1) {
+            for (VMCode code : program) {
+                result.add(translateVMFile(code, symbols, writer.newUnitWriter(), options));
+            }
+            return result;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<ASMWriter>> units = new ArrayList<>();
+            for (VMCode code : program) {
+                ASMWriter unit = writer.newUnitWriter();
+                units.add(pool.submit(() -> translateVMFile(code, symbols, unit, options)));
+            }
+            for (Future<ASMWriter> unit : units) {
+                result.add(unit.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Translation interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Translate the .vm files through the translation cache. Units of
+     * unchanged files are read from the cache; the other files are parsed,
+     * translated and stored. The units are appended in file order, so the
+     * output is the same as without the cache.
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options
+     * @param writer  ASMWriter instance
+     * @param cache   Translation cache for the options
+     */
+    private static void translateCached(ArrayList<File> vmFiles, TranslatorOptions options, ASMWriter writer,
+            TranslationCache cache) {
+        ASMWriter[] units = new ASMWriter[vmFiles.size()];
+        byte[][] contents = new byte[vmFiles.size()][];
+        SymbolTable symbols = new SymbolTable();
+        ArrayList<VMCode> program = new ArrayList<>();
+        for (int i = 0; i < vmFiles.size(); i++) {
+            File f = vmFiles.get(i);
+            try {
+                contents[i] = Files.readAllBytes(f.toPath());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read " + f.getName() + ": " + e.getMessage());
+            }
+            units[i] = cache.load(f, contents[i], writer);
+            if (units[i] == null) {
+                // Parsed from the hashed bytes, so the entry matches its key even if the file changes now
+                VMCode code = options.isScannerParser() ? VMCode.parse(f, symbols)
+                        : VMLexer.parse(ByteBuffer.wrap(contents[i]), f.getName(), symbols);
+                program.add(options.isFoldConstants() ? VMOptimizer.foldConstants(code) : code);
+            }
+        }
+
+        ArrayList<ASMWriter> translated = translateUnits(program, symbols, writer, options);
+        int next = 0;
+        for (int i = 0; i < units.length; i++) {
+            if (units[i] == null) {
+                units[i] = translated.get(next++);
+                cache.store(vmFiles.get(i), contents[i], units[i]);
+            }
+            writer.appendUnit(units[i]);
+        }
+    }
+
+    /**
+     * Translate one parsed .vm file.
+     * When branch fusion is enabled, a comparison directly followed by an
+     * if-goto is written as a single conditional jump. With tail calls, a
+     * call directly followed by a return reuses the current frame. When the writer
+     * records a source map, every command is marked with its line and
+     * enclosing function before it is written.
+     * 
+     * @param code    Commands of one .vm file
+     * @param symbols Symbol table of the program, only read
+     * @param unit    Writer for the file, usually a unit writer
+     * @param options Translator options
+     * @return The writer, with the file's unit finished
+     */
+    private static ASMWriter translateVMFile(VMCode code, SymbolTable symbols, ASMWriter unit,
+            TranslatorOptions options) {
+        unit.setFileName(code.getFileName());
+        unit.addCommands(code.size());
+        int[] depths = options.isSharedCompare() ? loopDepths(code, symbols.size()) : null;
+        boolean mapped = unit.getSourceMap() != null;
+        String function = "(" + code.getFileName() + ")";
+
+        for (int i = 0; i < code.size(); i++) {
+            Opcode op = code.op(i);
+            unit.setSiteFrequency(siteFrequency(depths, i));
+            if (op == Opcode.FUNCTION) {
+                function = symbols.name(code.arg1(i));
+            }
+
+            if (options.isFuseBranches() && op.isCompare() && i + 1 < code.size()
+                    && code.op(i + 1) == Opcode.IF_GOTO) {
+                if (mapped) {
+                    unit.markCommand(code.getFileName(), code.line(i), function,
+                            commandText(code, i, symbols) + "; " + commandText(code, i + 1, symbols));
                 }
+                unit.writeCompareIf(op, symbols.name(code.arg1(i + 1)));
+                i++;
+                continue;
+            }
+
+            if (options.isTailCalls() && op == Opcode.CALL && i + 1 < code.size()
+                    && code.op(i + 1) == Opcode.RETURN) {
+                if (mapped) {
+                    unit.markCommand(code.getFileName(), code.line(i), function,
+                            commandText(code, i, symbols) + SourceMap.TAIL_CALL_SUFFIX);
+                }
+                unit.writeTailCall(symbols.name(code.arg1(i)), code.arg2(i));
+                i++;
+                continue;
+            }
+
+            if (mapped) {
+                unit.markCommand(code.getFileName(), code.line(i), function, commandText(code, i, symbols));
+            }
+            switch (op) {
+                case PUSH:
+                case POP:
+                    unit.writePushPop(op, code.segment(i), code.arg2(i));
+                    break;
+                case LABEL:
+                    unit.writeLabel(symbols.name(code.arg1(i)));
+                    break;
+                case GOTO:
+                    unit.writeGoto(symbols.name(code.arg1(i)));
+                    break;
+                case IF_GOTO:
+                    unit.writeIf(symbols.name(code.arg1(i)));
+                    break;
+                case RETURN:
+                    unit.writeReturn();
+                    break;
+                case FUNCTION:
+                    unit.writeFunction(symbols.name(code.arg1(i)), code.arg2(i));
+                    break;
+                case CALL:
+                    unit.writeCall(symbols.name(code.arg1(i)), code.arg2(i));
+                    break;
+                default:
+                    unit.writeArithmetic(op);
+                    break;
             }
         }
+
+        unit.finishUnit();
+        return unit;
     }
 
-    public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java VMTranslator [filename|directory]");
+    /**
+     * Returns a command as it would appear in a .vm file
+     * 
+     * @param code    Command list
+     * @param index   Command index
+     * @param symbols Symbol table of the program
+     * @return Command text
+     */
+    static String commandText(VMCode code, int index, SymbolTable symbols) {
+        Opcode op = code.op(index);
+        switch (op) {
+            case PUSH:
+            case POP:
+                return op.getVmName() + " " + code.segment(index).getVmName() + " " + code.arg2(index);
+            case LABEL:
+            case GOTO:
+            case IF_GOTO:
+                return op.getVmName() + " " + symbols.name(code.arg1(index));
+            case FUNCTION:
+            case CALL:
+                return op.getVmName() + " " + symbols.name(code.arg1(index)) + " " + code.arg2(index);
+            default:
+                return op.getVmName();
+        }
+    }
+
+    /**
+     * Translate a whole program: bootstrap, parsing, VM passes and code generation
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options
+     * @param writer  ASMWriter instance, closed when done
+     * @param inlined Receives the callee of every inlined call site, may be null
+     * @return Names of the functions dropped as unreachable
+     */
+    static ArrayList<String> translateProgram(ArrayList<File> vmFiles, TranslatorOptions options,
+            ASMWriter writer, ArrayList<String> inlined) {
+        return translateProgram(vmFiles, options, writer, inlined, null);
+    }
+
+    /**
+     * Translate a whole program, reusing cached units of unchanged files.
+     * Inlining and dead function elimination work on the whole program, so
+     * the cache is not used with them.
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options
+     * @param writer  ASMWriter instance, closed when done
+     * @param inlined Receives the callee of every inlined call site, may be null
+     * @param cache   Translation cache, may be null
+     * @return Names of the functions dropped as unreachable
+     */
+    static ArrayList<String> translateProgram(ArrayList<File> vmFiles, TranslatorOptions options,
+            ASMWriter writer, ArrayList<String> inlined, TranslationCache cache) {
+        options.configure(writer);
+        boolean hasSysInit = containsSysInit(vmFiles);
+
+        if (hasSysInit) {
+            writer.writeBootstrapInit(); // Include bootstrap code if Sys.vm exists
+        }
+
+        if (cache != null && !options.isWholeProgram()) {
+            translateCached(vmFiles, options, writer, cache);
+            writer.close();
+            return new ArrayList<>();
+        }
+
+        SymbolTable symbols = new SymbolTable();
+        ArrayList<VMCode> program = parseVMFiles(vmFiles, symbols, options);
+        if (options.isFoldConstants()) {
+            for (int i = 0; i < program.size(); i++) {
+                program.set(i, VMOptimizer.foldConstants(program.get(i)));
+            }
+        }
+
+        if (options.isInline()) {
+            program = VMLinker.inlineCalls(program, symbols, (inlined != null) ? inlined : new ArrayList<>());
+        }
+
+        ArrayList<String> dropped = new ArrayList<>();
+        if (options.isDeadFunctionElimination() && hasSysInit) {
+            boolean[] live = VMLinker.liveFunctions(program, symbols, ENTRY_FUNCTION);
+            dropped = VMLinker.functionNames(VMLinker.filterFunctions(program, live, false), symbols);
+            program = VMLinker.filterFunctions(program, live, true);
+        }
+
+        // Only in a closed program, where the bootstrap is the only caller outside the analyzed code
+        if (options.isElideFrames() && hasSysInit) {
+            boolean[] preserving = VMLinker.pointerPreservingFunctions(program, symbols);
+            Set<String> lean = new TreeSet<>();
+            for (int id = 0; id < preserving.length; id++) {
+                if (preserving[id]) {
+                    lean.add(symbols.name(id));
+                }
+            }
+            writer.setPointerPreservingFunctions(lean);
+        }
+
+        translateVMFiles(program, symbols, writer, options);
+
+        writer.close();
+        return dropped;
+    }
+
+    /**
+     * Translate a program into assembly lines in memory
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options
+     * @return Assembly code, one instruction or label per entry
+     */
+    static ArrayList<String> translateToLines(ArrayList<File> vmFiles, TranslatorOptions options) {
+        StringWriter out = new StringWriter();
+        translateProgram(vmFiles, options, new ASMWriter(out), null);
+        return asmLines(out.toString());
+    }
+
+    /**
+     * Splits assembly code into lines, leaving out empty ones
+     * 
+     * @param asm Assembly code
+     * @return One instruction or label per entry
+     */
+    private static ArrayList<String> asmLines(String asm) {
+        ArrayList<String> lines = new ArrayList<>();
+        for (String line : asm.split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Check that the program translated with the given options computes the
+     * same results as the plain translation. Both versions run in the
+     * HackEmulator; the RAM addresses of the test script's output list are
+     * compared. Without a test script, all of RAM is compared except the
+     * R11-R15 scratch registers, the temp slots the program never names,
+     * which -inline uses, the stack above SP and the frames saved by calls:
+     * return addresses depend on the code layout, and -elide-frames leaves
+     * saved THIS and THAT unwritten. Both versions must then halt,
+     * since RAM after a cycle limit depends on the cycles each one took.
+     * When the test script names a compare file, the optimized results are
+     * also checked against it.
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options
+     * @param tst     Test script, may not exist
+     * @param out     Stream for the results
+     * @param err     Stream for mismatches
+     * @return True if the results match
+     */
+    private static boolean verify(ArrayList<File> vmFiles, TranslatorOptions options, File tst, PrintStream out,
+            PrintStream err) {
+        HackEmulator reference = new HackEmulator(translateToLines(vmFiles, new TranslatorOptions()));
+        HackEmulator optimized = new HackEmulator(translateToLines(vmFiles, options));
+
+        ArrayList<Integer> addresses = new ArrayList<>();
+        CompareFile cmp = null;
+        try {
+            if (tst.isFile()) {
+                TestScript script = new TestScript(tst);
+                script.applyPresets(reference);
+                script.applyPresets(optimized);
+                addresses.addAll(script.getOutputs());
+                if (script.getCompareTo() != null && script.getCompareTo().isFile()) {
+                    cmp = new CompareFile(script.getCompareTo());
+                }
+            } else {
+                TestScript.applyDefaultPresets(reference);
+                TestScript.applyDefaultPresets(optimized);
+            }
+        } catch (FileNotFoundException e) {
+            err.println("File not found: " + tst.getName());
+            return false;
+        }
+
+        reference.run(VERIFY_CYCLES);
+        optimized.run(VERIFY_CYCLES);
+
+        String covered = "";
+        if (addresses.isEmpty()) {
+            for (int i = 0; i < TEMP_BASE; i++) {
+                addresses.add(i); // SP, LCL, ARG, THIS, THAT
+            }
+            boolean[] temps = new boolean[SCRATCH_BASE - TEMP_BASE];
+            Arrays.fill(temps, true);
+            for (int free : VMLinker.freeTempSlots(parseVMFiles(vmFiles, new SymbolTable(), options))) {
+                if (free < temps.length) {
+                    temps[free] = false;
+                }
+            }
+            for (int i = 0; i < temps.length; i++) {
+                if (temps[i]) {
+                    addresses.add(TEMP_BASE + i);
+                }
+            }
+            for (int i = STATIC_BASE; i < STACK_BASE; i++) {
+                addresses.add(i);
+            }
+            boolean[] frames = containsSysInit(vmFiles) ? frameSlots(reference) : new boolean[0];
+            for (int i = STACK_BASE; i < reference.getRam(0); i++) {
+                if (i - STACK_BASE >= frames.length || !frames[i - STACK_BASE]) {
+                    addresses.add(i);
+                }
+            }
+            for (int i = HEAP_BASE; i < HackEmulator.RAM_SIZE; i++) {
+                addresses.add(i); // Heap, screen, keyboard and the rest of RAM
+            }
+            covered = " (RAM 0-" + (TEMP_BASE - 1) + ", the temp slots in use, " + STATIC_BASE + "-" + (STACK_BASE - 1) +
+                    ", the stack up to SP without saved frames, " + HEAP_BASE + "-" +
+                    (HackEmulator.RAM_SIZE - 1) + ")";
+        }
+
+        boolean ok = true;
+        if (!covered.isEmpty() && (!reference.isHalted() || !optimized.isHalted())) {
+            err.println((reference.isHalted() ? "The result" : "The plain translation") + " did not halt within " +
+                    VERIFY_CYCLES + " cycles, so its RAM cannot be compared");
+            ok = false;
+        }
+        for (int address : addresses) {
+            if (reference.getRam(address) != optimized.getRam(address)) {
+                err.println("Mismatch at RAM[" + address + "]: expected " + reference.getRam(address) +
+                        ", got " + optimized.getRam(address));
+                ok = false;
+            }
+        }
+        out.println("Verified " + addresses.size() + " RAM locations" + covered + " against the plain translation: " +
+                (ok ? "match" : "MISMATCH"));
+
+        if (cmp != null) {
+            ArrayList<String> mismatches = cmp.check(optimized);
+            for (String mismatch : mismatches) {
+                err.println("Mismatch at " + mismatch);
+            }
+            out.println("Verified " + cmp.getAddresses().size() + " RAM locations against the compare file: " +
+                    (mismatches.isEmpty() ? "match" : "MISMATCH"));
+            ok &= mismatches.isEmpty();
+        }
+        return ok;
+    }
+
+    /**
+     * Marks the frames saved by calls on the stack, following the saved LCL
+     * of each frame from the current function down to the bootstrap frame
+     * of Sys.init
+     * 
+     * @param emu Emulator that ran a program with bootstrap code
+     * @return Flag per stack address from STACK_BASE up to SP
+     */
+    private static boolean[] frameSlots(HackMachine emu) {
+        boolean[] slots = new boolean[Math.max(0, emu.getRam(0) - STACK_BASE)];
+        int lcl = emu.getRam(1);
+        while (lcl - FRAME_SIZE >= STACK_BASE && lcl - STACK_BASE <= slots.length) {
+            for (int i = lcl - FRAME_SIZE; i < lcl; i++) {
+                slots[i - STACK_BASE] = true;
+            }
+            int caller = emu.getRam(lcl - 4);
+            if (caller >= lcl) {
+                break; // Not a frame built by a call
+            }
+            lcl = caller;
+        }
+        return slots;
+    }
+
+    /**
+     * Print the functions dropped by dead function elimination and the ROM
+     * words saved, measured against a translation that keeps every function
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options
+     * @param dropped Names of the dropped functions
+     * @param romSize ROM size of the linked program
+     * @param out     Stream for the report
+     */
+    private static void reportDeadFunctions(ArrayList<File> vmFiles, TranslatorOptions options,
+            ArrayList<String> dropped, int romSize, PrintStream out) {
+        if (!containsSysInit(vmFiles)) {
+            out.println("Dead function elimination skipped: no Sys.vm, so there is no Sys.init entry");
             return;
         }
 
-        String fileInName = args[0];
+        TranslatorOptions full = options.copy();
+        full.setDeadFunctionElimination(false);
+        int fullSize = 0;
+        for (String line : translateToLines(vmFiles, full)) {
+            if (!line.startsWith("(")) {
+                fullSize++;
+            }
+        }
+
+        out.println("Dead function elimination: dropped " + dropped.size() + " function(s), saved " +
+                (fullSize - romSize) + " ROM words (" + fullSize + " -> " + romSize + ")");
+        for (String name : dropped) {
+            out.println("  " + name);
+        }
+    }
+
+    /**
+     * Print the ROM words and executed cycles of the push and pop commands
+     * of each segment, for the generic and the index-specialized code.
+     * Both translations run in the HackEmulator, and their words and cycles
+     * are attributed to commands through source maps.
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options, with -specialize-index
+     * @param tst     Test script whose RAM presets are applied, may not exist
+     * @param out     Stream for the report
+     * @param err     Stream for errors
+     */
+    private static void reportSegments(ArrayList<File> vmFiles, TranslatorOptions options, File tst,
+            PrintStream out, PrintStream err) {
+        TranslatorOptions generic = options.copy();
+        generic.setSpecializeIndex(false);
+        generic.setSourceMap(true);
+        TranslatorOptions specialized = options.copy();
+        specialized.setSourceMap(true);
+
+        // ROM and cycles of the generic code, then of the specialized code
+        TreeMap<String, long[]> costs = new TreeMap<>();
+        addSegmentCosts(vmFiles, generic, tst, costs, 0, err);
+        addSegmentCosts(vmFiles, specialized, tst, costs, 2, err);
+
+        out.println("Index-specialized push/pop (-specialize-index)" +
+                (tst.isFile() ? ", RAM preset from " + tst.getName() : ""));
+        out.printf("%-16s %10s %10s %10s %14s %14s %10s%n", "command", "ROM before", "ROM after", "ROM delta",
+                "cycles before", "cycles after", "cycles delta");
+        long[] total = new long[4];
+        for (Map.Entry<String, long[]> entry : costs.entrySet()) {
+            long[] c = entry.getValue();
+            out.printf("%-16s %10d %10d %10d %14d %14d %10d%n", entry.getKey(), c[0], c[2], c[2] - c[0],
+                    c[1], c[3], c[3] - c[1]);
+            for (int i = 0; i < total.length; i++) {
+                total[i] += c[i];
+            }
+        }
+        out.printf("%-16s %10d %10d %10d %14d %14d %10d%n", "total", total[0], total[2], total[2] - total[0],
+                total[1], total[3], total[3] - total[1]);
+    }
+
+    /**
+     * Translate a program with a source map, run it and add the ROM words
+     * and cycles of its push and pop commands, keyed by command and segment
+     * 
+     * @param vmFiles List of .vm files
+     * @param options Translator options, with the source map enabled
+     * @param tst     Test script whose RAM presets are applied, may not exist
+     * @param costs   Receives ROM words at column and cycles at column + 1
+     * @param column  First column of this translation
+     * @param err     Stream for errors
+     */
+    private static void addSegmentCosts(ArrayList<File> vmFiles, TranslatorOptions options, File tst,
+            Map<String, long[]> costs, int column, PrintStream err) {
+        StringWriter asm = new StringWriter();
+        ASMWriter writer = new ASMWriter(asm);
+        translateProgram(vmFiles, options, writer, null);
+        HackEmulator emu = new HackEmulator(asmLines(asm.toString()));
+        emu.enableExecutionCounts();
+        try {
+            if (tst.isFile()) {
+                new TestScript(tst).applyPresets(emu);
+            } else {
+                TestScript.applyDefaultPresets(emu);
+            }
+        } catch (FileNotFoundException e) {
+            err.println("File not found: " + tst.getName());
+        }
+        emu.run(VERIFY_CYCLES);
+
+        SourceMap map = writer.getSourceMap();
+        for (int i = 0; i < map.size(); i++) {
+            String[] words = map.command(i).split(" ");
+            if (words.length != 3 || !(words[0].equals("push") || words[0].equals("pop"))) {
+                continue;
+            }
+            long[] c = costs.computeIfAbsent(words[0] + " " + words[1], key -> new long[4]);
+            c[column] += map.end(i) - map.start(i);
+            c[column + 1] += emu.getCycles(map.start(i), map.end(i));
+        }
+    }
+
+    public static void main(String[] args) {
+        int status = run(args, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs the translator with command line arguments, as main does, but
+     * printing to the given streams. Used by the TranslatorDaemon to serve
+     * several requests at once.
+     * 
+     * @param args Command line arguments
+     * @param out  Stream for reports
+     * @param err  Stream for errors
+     * @return 0 on success, 1 on an error or a failed -verify
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        TranslatorOptions options;
+        try {
+            options = TranslatorOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println("Error: " + e.getMessage());
+            out.println(TranslatorOptions.usage());
+            return 1;
+        }
+
+        if (options.isBatch()) {
+            return runBatch(options, out, err);
+        }
+        if (options.getInputs().size() != 1) {
+            out.println(TranslatorOptions.usage());
+            return 1;
+        }
+
+        String fileInName = options.getInputs().get(0);
         File fileIn = new File(fileInName);
+        TranslationCache cache = openCache(fileIn, options);
+
+        boolean ok = build(fileIn, options, cache, out, err).ok;
+        if (options.isWatch()) {
+            watch(fileIn, options, cache, out, err);
+        }
+        return ok ? 0 : 1;
+    }
+
+    /**
+     * Opens the translation cache of an input, if the options ask for one
+     * 
+     * @param fileIn  Input file or directory
+     * @param options Translator options
+     * @return Translation cache, or null
+     */
+    private static TranslationCache openCache(File fileIn, TranslatorOptions options) {
+        if (options.getCacheDir() == null) {
+            return null;
+        }
+        File cacheDir = new File(options.getCacheDir());
+        if (!cacheDir.isAbsolute()) {
+            cacheDir = new File(inputDirectory(fileIn), options.getCacheDir());
+        }
+        return new TranslationCache(cacheDir, options);
+    }
+
+    /**
+     * Translate every program of a batch on a bounded pool of workers. A
+     * failing program does not stop the others. The output of each program
+     * is printed in input order under a header line, followed by a CSV
+     * summary with one row per program. The worker threads of the file
+     * level pool are shared out among the jobs.
+     * 
+     * @param options Translator options
+     * @param out     Stream for reports and the summary
+     * @param err     Stream for errors
+     * @return 0 if every program was translated, else 1
+     */
+    private static int runBatch(TranslatorOptions options, PrintStream out, PrintStream err) {
+        ArrayList<File> programs;
+        try {
+            if (options.getOutputPath() != null || options.isWatch()) {
+                throw new IllegalArgumentException("-out and -watch take a single input, not a batch");
+            }
+            programs = findPrograms(options);
+        } catch (IllegalArgumentException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        }
+        if (programs.isEmpty()) {
+            err.println("Error: No programs found");
+            return 1;
+        }
+
+        int jobs = Math.min(options.getJobs(), programs.size());
+        TranslatorOptions programOptions = options.copy();
+        programOptions.setThreads(Math.max(1, options.getThreads() / jobs));
+
+        ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[programs.size()];
+        ArrayList<Future<BuildResult>> futures = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            for (int i = 0; i < programs.size(); i++) {
+                File program = programs.get(i);
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                outputs[i] = output;
+                futures.add(pool.submit(() -> {
+                    try (PrintStream programOut = new PrintStream(output, true)) {
+                        try {
+                            return build(program, programOptions, openCache(program, programOptions),
+                                    programOut, programOut);
+                        } catch (RuntimeException e) {
+                            BuildResult failed = new BuildResult(program);
+                            failed.error = "Error: " + e;
+                            programOut.println(failed.error);
+                            return failed;
+                        }
+                    }
+                }));
+            }
+
+            ArrayList<BuildResult> results = new ArrayList<>();
+            for (int i = 0; i < programs.size(); i++) {
+                results.add(futures.get(i).get());
+                out.println("== " + programs.get(i).getPath());
+                out.print(outputs[i].toString());
+            }
+            return writeSummary(results, options, out, err) ? 0 : 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("Error: Batch interrupted");
+            return 1;
+        } catch (ExecutionException e) {
+            err.println("Error: " + e.getCause());
+            return 1;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Collects the programs of a batch from the inputs and the manifest. A
+     * .vm file is a program of its own, as is a directory holding .vm files.
+     * Subdirectories of a directory are searched in name order, so a tree
+     * of projects yields every project in it. Paths that do not exist are
+     * kept, to be reported as failed programs.
+     * 
+     * @param options Translator options
+     * @return Program inputs, each a .vm file or a directory
+     */
+    static ArrayList<File> findPrograms(TranslatorOptions options) {
+        ArrayList<File> inputs = new ArrayList<>();
+        for (String input : options.getInputs()) {
+            inputs.add(new File(input));
+        }
+        if (options.getManifest() != null) {
+            File manifest = new File(options.getManifest());
+            try {
+                for (String line : Files.readAllLines(manifest.toPath())) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    File input = new File(line);
+                    inputs.add(input.isAbsolute() ? input : new File(manifest.getAbsoluteFile().getParentFile(), line));
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read manifest " + manifest.getName() + ": " + e.getMessage());
+            }
+        }
+
+        ArrayList<File> programs = new ArrayList<>();
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                addPrograms(input, programs);
+            } else {
+                programs.add(input);
+            }
+        }
+        return programs;
+    }
+
+    private static void addPrograms(File dir, ArrayList<File> programs) {
+        if (!getVMFiles(dir).isEmpty()) {
+            programs.add(dir);
+        }
+        File[] children = dir.listFiles(f -> f.isDirectory() && !f.getName().startsWith("."));
+        if (children != null) {
+            Arrays.sort(children, (a, b) -> a.getName().compareTo(b.getName()));
+            for (File child : children) {
+                addPrograms(child, programs);
+            }
+        }
+    }
+
+    /**
+     * Writes the batch summary as CSV: program, status, VM commands, ROM
+     * words, output path, elapsed milliseconds and error message
+     * 
+     * @param results Result per program
+     * @param options Translator options
+     * @param out     Stream the summary is printed to without -summary
+     * @param err     Stream for errors
+     * @return True if every program succeeded and the summary was written
+     */
+    private static boolean writeSummary(ArrayList<BuildResult> results, TranslatorOptions options, PrintStream out,
+            PrintStream err) {
+        StringBuilder csv = new StringBuilder("program,status,commands,rom_words,output,elapsed_ms,error\n");
+        int failed = 0;
+        for (BuildResult r : results) {
+            csv.append(csvField(r.input.getPath())).append(',').append(r.ok ? "ok" : "failed").append(',')
+                    .append(r.commands).append(',').append(r.romWords).append(',')
+                    .append(csvField(r.outputPath)).append(',')
+                    .append(String.format("%.1f", r.elapsedNanos / 1e6)).append(',')
+                    .append(csvField(r.error)).append('\n');
+            if (!r.ok) {
+                failed++;
+            }
+        }
 
+        out.println();
+        out.println("Translated " + (results.size() - failed) + " of " + results.size() + " program(s)" +
+                ((failed > 0) ? ", " + failed + " failed" : ""));
+        if (options.getSummaryPath() == null) {
+            out.print(csv);
+            return failed == 0;
+        }
+        try {
+            Files.writeString(new File(options.getSummaryPath()).toPath(), csv);
+            out.println("Summary written to " + options.getSummaryPath());
+        } catch (IOException e) {
+            err.println("Cannot write summary: " + e.getMessage());
+            return false;
+        }
+        return failed == 0;
+    }
+
+    // Quotes a CSV field that contains a separator, quote or line break
+    private static String csvField(String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Returns the directory holding the .vm files of the input
+     * 
+     * @param fileIn Input file or directory
+     * @return Input directory
+     */
+    private static File inputDirectory(File fileIn) {
+        return fileIn.isDirectory() ? fileIn : fileIn.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Translate the input once, write the output and print the reports
+     * 
+     * @param fileIn  Input file or directory
+     * @param options Translator options
+     * @param cache   Translation cache, may be null
+     * @param out     Stream for reports
+     * @param err     Stream for errors
+     * @return Result of the build
+     */
+    private static BuildResult build(File fileIn, TranslatorOptions options, TranslationCache cache,
+            PrintStream out, PrintStream err) {
+        long start = System.nanoTime();
+        BuildResult result = new BuildResult(fileIn);
+        if (cache != null) {
+            cache.resetCounts();
+        }
         try {
             ArrayList<File> vmFiles = processInput(fileIn);
-            String fileOutPath = generateOutputFilePath(fileIn, vmFiles);
+            String format = options.getOutputFormat();
+            String defaultPath = generateOutputFilePath(fileIn, vmFiles, format);
+            String fileOutPath = (options.getOutputPath() != null) ? options.getOutputPath() : defaultPath;
 
+            // Binary formats are assembled from the in-memory assembly code
             File fileOut = new File(fileOutPath);
-            ASMWriter writer = new ASMWriter(fileOut);
+            AsmBuffer code = format.equals("asm") ? null : new AsmBuffer();
+            ASMWriter writer = (code == null) ? new ASMWriter(fileOut) : new ASMWriter(code);
+            ArrayList<String> inlined = new ArrayList<>();
+            ArrayList<String> dropped = translateProgram(vmFiles, options, writer, inlined, cache);
+            if (format.equals("hack")) {
+                HackAssembler.writeHack(HackAssembler.assemble(code), fileOut);
+            } else if (format.equals("rom")) {
+                HackAssembler.writeRom(HackAssembler.assemble(code), fileOut);
+            }
+            result.commands = writer.getCommandCount();
+            result.romWords = writer.getRomSize();
+            result.outputPath = fileOutPath;
+            out.println("File created: " + fileOutPath + " (" + writer.getRomSize() + " ROM words)");
+            if (cache != null) {
+                if (options.isWholeProgram()) {
+                    out.println("Cache not used with -inline, -dce or -elide-frames");
+                } else {
+                    out.println("Reused " + cache.getHits() + " cached unit(s), translated " +
+                            cache.getMisses() + " file(s) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                }
+            }
 
-            if (containsSysInit(vmFiles)) {
-                writer.writeBootstrapInit(); // Include bootstrap code if Sys.vm exists
+            if (options.isInline()) {
+                out.println("Inlined " + inlined.size() + " call site(s)");
+                for (String name : new TreeSet<>(inlined)) {
+                    out.println("  " + name + " x" + Collections.frequency(inlined, name));
+                }
             }
 
-            translateVMFiles(vmFiles, writer);
+            if (options.isElideFrames() && !containsSysInit(vmFiles)) {
+                out.println("Frame elision skipped: no Sys.vm, so any function may be called from outside");
+            } else if (options.isElideFrames()) {
+                Set<String> lean = writer.getPointerPreservingFunctions();
+                out.println("Calls without THIS/THAT save to " + lean.size() + " function(s)");
+                for (String name : lean) {
+                    out.println("  " + name);
+                }
+            }
 
-            writer.close();
-            System.out.println("File created: " + fileOutPath);
+            if (options.isDeadFunctionElimination()) {
+                reportDeadFunctions(vmFiles, options, dropped, writer.getRomSize(), out);
+            }
+
+            if (options.isSourceMap()) {
+                int dot = fileOutPath.lastIndexOf('.');
+                boolean hasExtension = dot > fileOutPath.lastIndexOf(File.separatorChar);
+                File map = new File((hasExtension ? fileOutPath.substring(0, dot) : fileOutPath) + ".map");
+                writer.getSourceMap().write(map);
+                out.println("Source map created: " + map.getPath());
+            }
+
+            File tst = new File(defaultPath.substring(0, defaultPath.lastIndexOf(".")) + ".tst");
+            if (writer.getPeepholeReport() != null) {
+                writer.getPeepholeReport().print(out, err, tst);
+            }
+            if (options.isSpecializeIndex()) {
+                reportSegments(vmFiles, options, tst, out, err);
+            }
+            result.ok = !options.isVerify() || verify(vmFiles, options, tst, out, err);
+            if (!result.ok) {
+                result.error = "Verification failed";
+            }
+        } catch (FileNotFoundException e) {
+            result.error = "Cannot write source map: " + e.getMessage();
+            err.println(result.error);
         } catch (IllegalArgumentException e) {
-            System.err.println("Error: " + e.getMessage());
+            result.error = "Error: " + e.getMessage();
+            err.println(result.error);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Rebuild whenever a .vm file of the input is created, changed or
+     * deleted, until the process is stopped. Events arriving within a few
+     * milliseconds of each other, as when an editor saves, cause one rebuild.
+     * 
+     * @param fileIn  Input file or directory
+     * @param options Translator options
+     * @param cache   Translation cache, may be null
+     * @param out     Stream for reports
+     * @param err     Stream for errors
+     */
+    private static void watch(File fileIn, TranslatorOptions options, TranslationCache cache, PrintStream out,
+            PrintStream err) {
+        File dir = inputDirectory(fileIn);
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            out.println("Watching " + dir.getPath() + " for changes, press Ctrl+C to stop");
+
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        String name = String.valueOf(event.context());
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || (fileIn.isDirectory() ? name.endsWith(".vm") : name.equals(fileIn.getName()))) {
+                            changed = true;
+                        }
+                    }
+                    if (!key.reset()) {
+                        err.println("Stopped watching: " + dir.getPath() + " is no longer accessible");
+                        return;
+                    }
+                    key = watcher.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                if (changed) {
+                    out.println();
+                    build(fileIn, options, cache, out, err);
+                }
+            }
+        } catch (IOException e) {
+            err.println("Cannot watch " + dir.getPath() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,174 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Checks the translator options on every test program: each directory
+ * holding .vm files and a test script of its own name. A program is
+ * translated with -verify and the options, so the result is compared with
+ * the plain translation and with the compare file. Programs that only run
+ * when translated with an option, like TailRecursion with -tail-calls, fail
+ * in the plain translation; they are translated with that option and
+ * checked against their compare file only. The output is written to a
+ * temporary file, leaving the .asm files of the test programs as they are.
+ */
+public class VerifySuite {
+    // Options used when none are given
+    private static final String[] DEFAULT_OPTIONS = { "-fold" };
+
+    // Cycle limit for test scripts without a repeat count
+    private static final long MAX_CYCLES = 10_000_000L;
+
+    // Options a test program needs to run at all
+    private static final HashMap<String, String> REQUIRED_OPTIONS = new HashMap<>();
+    static {
+        REQUIRED_OPTIONS.put("TailRecursion", "-tail-calls");
+    }
+
+    /**
+     * Finds the test programs under a directory, in name order
+     *
+     * @param dir      Directory to search
+     * @param programs Receives the program directories
+     */
+    private static void findPrograms(File dir, ArrayList<File> programs) {
+        if (!VMTranslator.getVMFiles(dir).isEmpty() && new File(dir, dir.getName() + ".tst").isFile()) {
+            programs.add(dir);
+        }
+        File[] children = dir.listFiles(f -> f.isDirectory() && !f.getName().startsWith("."));
+        if (children != null) {
+            Arrays.sort(children, (a, b) -> a.getName().compareTo(b.getName()));
+            for (File child : children) {
+                findPrograms(child, programs);
+            }
+        }
+    }
+
+    /**
+     * Translates a program with -verify and the options
+     *
+     * @param program Program directory
+     * @param options Translator options
+     * @param output  Output file
+     * @param log     Receives the translator's output
+     * @return True if the results match
+     */
+    private static boolean verify(File program, ArrayList<String> options, File output, PrintStream log) {
+        ArrayList<String> args = new ArrayList<>(options);
+        args.add("-verify");
+        args.add("-out=" + output.getPath());
+        args.add(program.getPath());
+        return VMTranslator.run(args.toArray(new String[0]), log, log) == 0;
+    }
+
+    /**
+     * Translates a program with the options and checks its compare file
+     *
+     * @param program Program directory
+     * @param options Translator options
+     * @param log     Receives mismatches and errors
+     * @return True if the results match
+     */
+    private static boolean checkCompareFile(File program, ArrayList<String> options, PrintStream log) {
+        ArrayList<String> args = new ArrayList<>(options);
+        args.add(program.getPath());
+        try {
+            TranslatorOptions parsed = TranslatorOptions.parse(args.toArray(new String[0]));
+            HackEmulator emu = new HackEmulator(
+                    VMTranslator.translateToLines(VMTranslator.processInput(program), parsed));
+            TestScript script = new TestScript(new File(program, program.getName() + ".tst"));
+            script.applyPresets(emu);
+            emu.run((script.getCycles() >= 0) ? script.getCycles() : MAX_CYCLES);
+            if (script.getCompareTo() == null || !script.getCompareTo().isFile()) {
+                log.println("No compare file");
+                return false;
+            }
+            ArrayList<String> mismatches = new CompareFile(script.getCompareTo()).check(emu);
+            for (String mismatch : mismatches) {
+                log.println("Mismatch at " + mismatch);
+            }
+            return mismatches.isEmpty();
+        } catch (FileNotFoundException e) {
+            log.println("File not found: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.println("Error: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Runs the check on every test program and prints one line per
+     * program, followed by the translator's output for failed ones.
+     * Exits with status 1 if any program fails.
+     *
+     * @param args Translator options, default -fold, and optionally the
+     *             directory to search, default the working directory
+     */
+    public static void main(String[] args) {
+        ArrayList<String> options = new ArrayList<>();
+        File root = new File(".");
+        for (String arg : args) {
+            if (arg.startsWith("-")) {
+                options.add(arg);
+            } else {
+                root = new File(arg);
+            }
+        }
+        if (options.isEmpty()) {
+            Collections.addAll(options, DEFAULT_OPTIONS);
+        }
+
+        ArrayList<File> programs = new ArrayList<>();
+        findPrograms(root, programs);
+        if (programs.isEmpty()) {
+            System.err.println("Error: No test programs found in " + root.getPath());
+            System.exit(1);
+        }
+
+        File output;
+        try {
+            output = File.createTempFile("verify", ".asm");
+        } catch (IOException e) {
+            System.err.println("Error: Cannot create output file: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        output.deleteOnExit();
+
+        System.out.println("Options: " + String.join(" ", options));
+        int failed = 0;
+        for (File program : programs) {
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            String required = REQUIRED_OPTIONS.get(program.getName());
+            boolean ok;
+            String check;
+            try (PrintStream logStream = new PrintStream(log, true)) {
+                if (required == null) {
+                    ok = verify(program, options, output, logStream);
+                    check = "plain translation and compare file";
+                } else {
+                    ArrayList<String> withRequired = new ArrayList<>(options);
+                    withRequired.add(required);
+                    ok = checkCompareFile(program, withRequired, logStream);
+                    check = "compare file, with " + required;
+                }
+            }
+            System.out.printf("%-8s %-28s %s%n", ok ? "ok" : "FAILED", program.getPath(), check);
+            if (!ok) {
+                System.out.print(log.toString());
+                failed++;
+            }
+        }
+
+        System.out.println((programs.size() - failed) + " of " + programs.size() + " test program(s) match");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}